@@ -3,6 +3,7 @@ package codeu.controller;
 import codeu.helper.AdminHelper;
 import codeu.model.store.basic.ConversationStore;
 import codeu.model.store.basic.MessageStore;
+import codeu.model.store.basic.StoreSnapshotter;
 import codeu.model.store.basic.UserStore;
 
 import javax.servlet.ServletException;
@@ -16,6 +17,8 @@ public class AdminServlet extends HttpServlet {
 
     private static final String ADMIN_MESSAGE = "adminMessage";
 
+    private static final String DELETION_MESSAGE = "deletionMessage";
+
     /** Store class that gives access to Conversations. */
     private ConversationStore conversationStore;
 
@@ -25,6 +28,9 @@ public class AdminServlet extends HttpServlet {
     /** Store class that gives access to Users. */
     private UserStore userStore;
 
+    /** Local snapshot of the stores, or null if snapshots aren't enabled. */
+    private StoreSnapshotter storeSnapshotter;
+
     /** Set up state for admin page (displaying stats or allowing deletions) */
     @Override
     public void init() throws ServletException {
@@ -32,6 +38,7 @@ public class AdminServlet extends HttpServlet {
         setConversationStore(ConversationStore.getInstance());
         setMessageStore(MessageStore.getInstance());
         setUserStore(UserStore.getInstance());
+        setStoreSnapshotter(StoreSnapshotter.getInstance());
     }
 
     /**
@@ -58,6 +65,24 @@ public class AdminServlet extends HttpServlet {
         this.userStore = userStore;
     }
 
+    /**
+     * Sets the StoreSnapshotter used by this servlet. This function provides a common setup method
+     * for use by the test framework or the servlet's init() function.
+     */
+    void setStoreSnapshotter(StoreSnapshotter storeSnapshotter) {
+        this.storeSnapshotter = storeSnapshotter;
+    }
+
+    /**
+     * Deletes the local snapshot, which still holds the deleted entities. Restoring it would bring
+     * them back, since the Datastore queries run at startup only find entities that exist.
+     */
+    private void deleteSnapshot() throws IOException {
+        if (storeSnapshotter != null) {
+            storeSnapshotter.delete();
+        }
+    }
+
     /**
      * This function fires when a user navigates to the admin page. It displays a message on the page, which differs
      * depending on if you are logged in, and whether or not you are an admin. It also has administrative buttons to
@@ -91,15 +116,25 @@ public class AdminServlet extends HttpServlet {
 
         if (AdminHelper.isAdmin(user)) {
             if (request.getParameter("deleteUsersButton") != null) {
-                messageStore.deleteAllMessages();
-                userStore.deleteAllUsers();
+                int deletedMessages = messageStore.deleteAllMessages();
+                int deletedUsers = userStore.deleteAllUsers();
+                deleteSnapshot();
+                // The admin is logged out along with everyone else, so the message is kept in the
+                // session and shown once on the page the logout redirects to.
+                request.getSession().setAttribute(DELETION_MESSAGE, "Deleted " + deletedUsers
+                        + " users and " + deletedMessages + " messages.");
                 response.sendRedirect("/logout");
                 return;
             } else if (request.getParameter("deleteMessagesButton") != null) {
-                messageStore.deleteAllMessages();
+                int deletedMessages = messageStore.deleteAllMessages();
+                deleteSnapshot();
+                request.setAttribute(DELETION_MESSAGE, "Deleted " + deletedMessages + " messages.");
             } else if (request.getParameter("deleteConversationsButton") != null) {
-                messageStore.deleteAllMessages();
-                conversationStore.deleteAllConversations();
+                int deletedMessages = messageStore.deleteAllMessages();
+                int deletedConversations = conversationStore.deleteAllConversations();
+                deleteSnapshot();
+                request.setAttribute(DELETION_MESSAGE, "Deleted " + deletedConversations
+                        + " conversations and " + deletedMessages + " messages.");
             }
         }
 
@@ -0,0 +1,248 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.controller;
+
+import codeu.helper.ChatHelper;
+import codeu.helper.JsonWriter;
+import codeu.model.data.Conversation;
+import codeu.model.data.Message;
+import codeu.model.data.User;
+import codeu.model.store.basic.ConversationStore;
+import codeu.model.store.basic.MessageStore;
+import codeu.model.store.basic.UserStore;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet class responsible for the read-only JSON API, for clients other than the site's pages:
+ *
+ * <ul>
+ *   <li>GET /api/conversations: the conversations the logged-in user can access
+ *   <li>GET /api/conversations/{title}: one conversation
+ *   <li>GET /api/conversations/{title}/messages?before={messageId}&amp;limit={n}: a page of a
+ *       conversation's messages, paged like the chat page
+ *   <li>GET /api/users/{username}: one user
+ * </ul>
+ *
+ * <p>Responses are written to the response as they're produced, with no copy of the data built up
+ * first, so a large page of messages costs no more memory than a small one.
+ */
+public class ApiServlet extends HttpServlet {
+
+  /** Number of messages returned when the request doesn't specify a limit. */
+  static final int DEFAULT_PAGE_SIZE = 100;
+
+  /**
+   * Upper bound on the limit parameter. Pages are read-only views of the store and are streamed
+   * out, so this can be much larger than the chat page's.
+   */
+  static final int MAX_PAGE_SIZE = 5000;
+
+  private static final String CONVERSATIONS_PREFIX = "/api/conversations";
+
+  private static final String USERS_PREFIX = "/api/users/";
+
+  private static final String MESSAGES_SUFFIX = "/messages";
+
+  /** Store class that gives access to Conversations. */
+  private ConversationStore conversationStore;
+
+  /** Store class that gives access to Messages. */
+  private MessageStore messageStore;
+
+  /** Store class that gives access to Users. */
+  private UserStore userStore;
+
+  /** Set up state for handling API requests. */
+  @Override
+  public void init() throws ServletException {
+    super.init();
+    setConversationStore(ConversationStore.getInstance());
+    setMessageStore(MessageStore.getInstance());
+    setUserStore(UserStore.getInstance());
+  }
+
+  /**
+   * Sets the ConversationStore used by this servlet. This function provides a common setup method
+   * for use by the test framework or the servlet's init() function.
+   */
+  void setConversationStore(ConversationStore conversationStore) {
+    this.conversationStore = conversationStore;
+  }
+
+  /**
+   * Sets the MessageStore used by this servlet. This function provides a common setup method for
+   * use by the test framework or the servlet's init() function.
+   */
+  void setMessageStore(MessageStore messageStore) {
+    this.messageStore = messageStore;
+  }
+
+  /**
+   * Sets the UserStore used by this servlet. This function provides a common setup method for use
+   * by the test framework or the servlet's init() function.
+   */
+  void setUserStore(UserStore userStore) {
+    this.userStore = userStore;
+  }
+
+  /** Routes the request to the handler for its path. Unknown paths get a 404. */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    String requestUrl = request.getRequestURI();
+    String user = (String) request.getSession().getAttribute("user");
+
+    if (requestUrl.startsWith(USERS_PREFIX)) {
+      doGetUser(response, requestUrl.substring(USERS_PREFIX.length()));
+    } else if (requestUrl.equals(CONVERSATIONS_PREFIX)) {
+      doGetConversations(response, user);
+    } else if (requestUrl.startsWith(CONVERSATIONS_PREFIX + "/")) {
+      String title = requestUrl.substring(CONVERSATIONS_PREFIX.length() + 1);
+      if (title.endsWith(MESSAGES_SUFFIX)) {
+        title = title.substring(0, title.length() - MESSAGES_SUFFIX.length());
+        doGetMessages(request, response, user, title);
+      } else {
+        doGetConversation(response, user, title);
+      }
+    } else {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+    }
+  }
+
+  private void doGetConversations(HttpServletResponse response, String user) throws IOException {
+    JsonWriter json = startJson(response);
+    json.beginObject().name("conversations").beginArray();
+    for (Conversation conversation : conversationStore.getConversationsForUser(user)) {
+      writeConversation(json, conversation);
+    }
+    json.endArray().endObject();
+  }
+
+  private void doGetConversation(HttpServletResponse response, String user, String title)
+      throws IOException {
+    Conversation conversation = getAccessibleConversation(response, user, title);
+    if (conversation == null) {
+      return;
+    }
+    writeConversation(startJson(response), conversation);
+  }
+
+  /**
+   * Writes the newest {@code limit} messages added before the message whose ID is {@code before},
+   * oldest first, like a chat page. If there are older messages, {@code next} is the before
+   * parameter that fetches them; otherwise it's null.
+   */
+  private void doGetMessages(
+      HttpServletRequest request, HttpServletResponse response, String user, String title)
+      throws IOException {
+    Conversation conversation = getAccessibleConversation(response, user, title);
+    if (conversation == null) {
+      return;
+    }
+
+    UUID before = ChatServlet.parseId(request.getParameter("before"));
+    int limit = parseLimit(request.getParameter("limit"));
+    List<Message> messages = messageStore.getMessagesBefore(conversation.getId(), before, limit);
+    String next = null;
+    if (!messages.isEmpty()) {
+      UUID oldest = messages.get(0).getId();
+      if (!messageStore.getMessagesBefore(conversation.getId(), oldest, 1).isEmpty()) {
+        next = oldest.toString();
+      }
+    }
+
+    JsonWriter json = startJson(response);
+    json.beginObject().name("messages").beginArray();
+    for (Message message : messages) {
+      User author = userStore.getUser(message.getAuthorId());
+      ChatServlet.writeMessage(json, message, author == null ? null : author.getName());
+    }
+    json.endArray().name("next").value(next).endObject();
+  }
+
+  /** Writes a user's public details; the password hash stays private. */
+  private void doGetUser(HttpServletResponse response, String username) throws IOException {
+    User user = userStore.getUser(username);
+    if (user == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    startJson(response)
+        .beginObject()
+        .name("id").value(user.getId())
+        .name("name").value(user.getName())
+        .name("creation").value(user.getCreationTime())
+        .endObject();
+  }
+
+  /**
+   * Returns the Conversation with the given title if the user can access it. Otherwise this sends
+   * a 404 or 403 and returns null.
+   */
+  private Conversation getAccessibleConversation(
+      HttpServletResponse response, String user, String title) throws IOException {
+    Conversation conversation = conversationStore.getConversationWithTitle(title);
+    if (conversation == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return null;
+    }
+    if (!ChatHelper.hasAccess(user, conversation)) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return null;
+    }
+    return conversation;
+  }
+
+  private static void writeConversation(JsonWriter json, Conversation conversation)
+      throws IOException {
+    json.beginObject()
+        .name("id").value(conversation.getId())
+        .name("title").value(conversation.getTitle())
+        .name("owner").value(conversation.getOwnerId())
+        .name("type").value(conversation.getConversationType().name())
+        .name("creation").value(conversation.getCreationTime())
+        .name("users").beginArray();
+    for (String username : conversation.getUsers()) {
+      json.value(username);
+    }
+    json.endArray().endObject();
+  }
+
+  /** Sets the headers of a JSON response and returns a writer for its body. */
+  private static JsonWriter startJson(HttpServletResponse response) throws IOException {
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    response.setHeader("Cache-Control", "no-store");
+    return new JsonWriter(response.getWriter());
+  }
+
+  /** Parses the limit parameter, clamping it to the API's page sizes. */
+  private static int parseLimit(String limit) {
+    if (limit == null) {
+      return DEFAULT_PAGE_SIZE;
+    }
+    try {
+      return Math.max(1, Math.min(MAX_PAGE_SIZE, Integer.parseInt(limit)));
+    } catch (NumberFormatException e) {
+      return DEFAULT_PAGE_SIZE;
+    }
+  }
+}
@@ -14,7 +14,9 @@
 
 package codeu.controller;
 
+import codeu.helper.CacheHelper;
 import codeu.helper.ChatHelper;
+import codeu.helper.JsonWriter;
 import codeu.model.data.Conversation;
 import codeu.model.data.Message;
 import codeu.model.data.User;
@@ -22,8 +24,13 @@ import codeu.model.store.basic.ConversationStore;
 import codeu.model.store.basic.MessageStore;
 import codeu.model.store.basic.UserStore;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -36,6 +43,27 @@ import org.jsoup.nodes.Document.OutputSettings;
 /** Servlet class responsible for the chat page. */
 public class ChatServlet extends HttpServlet {
 
+  /** Number of messages shown on a chat page when the request doesn't specify a limit. */
+  static final int DEFAULT_PAGE_SIZE = 50;
+
+  /** Upper bound on the limit parameter so a single page can't render a whole history. */
+  static final int MAX_PAGE_SIZE = 500;
+
+  /** Suffix of the chat URL that returns new messages as JSON instead of rendering a page. */
+  private static final String MESSAGES_SUFFIX = "/messages";
+
+  /** Suffix of the chat URL that waits for new messages before returning them as JSON. */
+  private static final String POLL_SUFFIX = "/poll";
+
+  /** Suffix of the chat URL that streams new messages as Server-Sent Events. */
+  private static final String STREAM_SUFFIX = "/stream";
+
+  /**
+   * The event most recently encoded for a stream. A new Message is passed to every stream of its
+   * Conversation in turn, so this saves encoding it once per stream.
+   */
+  private volatile EncodedEvent lastEvent;
+
   /** Store class that gives access to Conversations. */
   private ConversationStore conversationStore;
 
@@ -80,8 +108,12 @@ public class ChatServlet extends HttpServlet {
 
   /**
    * This function fires when a user navigates to the chat page. It gets the conversation title from
-   * the URL, finds the corresponding Conversation, and fetches the messages in that Conversation.
-   * It then forwards to chat.jsp for rendering.
+   * the URL, finds the corresponding Conversation, and fetches one page of the messages in that
+   * Conversation. By default this is the newest page; the optional before parameter (the ID of the
+   * oldest message on the page the user was looking at) pages back through older history and the
+   * optional limit parameter sets the page size.
+   * It then forwards to chat.jsp for rendering. If the browser already has the current page, it's
+   * answered with 304 Not Modified instead, before any of that work.
    */
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response)
@@ -89,6 +121,25 @@ public class ChatServlet extends HttpServlet {
     String requestUrl = request.getRequestURI();
     String conversationTitle = requestUrl.substring("/chat/".length());
 
+    if (conversationTitle.endsWith(MESSAGES_SUFFIX)) {
+      conversationTitle =
+          conversationTitle.substring(0, conversationTitle.length() - MESSAGES_SUFFIX.length());
+      doGetNewMessages(request, response, conversationTitle);
+      return;
+    }
+    if (conversationTitle.endsWith(STREAM_SUFFIX)) {
+      conversationTitle =
+          conversationTitle.substring(0, conversationTitle.length() - STREAM_SUFFIX.length());
+      doGetStream(request, response, conversationTitle);
+      return;
+    }
+    if (conversationTitle.endsWith(POLL_SUFFIX)) {
+      conversationTitle =
+          conversationTitle.substring(0, conversationTitle.length() - POLL_SUFFIX.length());
+      doGetPoll(request, response, conversationTitle);
+      return;
+    }
+
     Conversation conversation = conversationStore.getConversationWithTitle(conversationTitle);
     if (conversation == null) {
       // couldn't find conversation, redirect to conversation list
@@ -103,13 +154,31 @@ public class ChatServlet extends HttpServlet {
     }
 
     UUID conversationId = conversation.getId();
+    String addNewUserMessage = (String) request.getSession().getAttribute("addNewUserMessage");
+    // a page showing a one-time message can't be reused, so it gets no validators
+    if (addNewUserMessage == null && isPageNotModified(request, response, user, conversation)) {
+      return;
+    }
 
-    List<Message> messages = messageStore.getMessagesInConversation(conversationId);
+    UUID before = parseId(request.getParameter("before"));
+    int limit = parseLimit(request.getParameter("limit"));
+
+    List<Message> messages = messageStore.getMessagesBefore(conversationId, before, limit);
 
     request.setAttribute("conversation", conversation);
     request.setAttribute("messages", messages);
+    request.setAttribute("authorNames", resolveAuthorNames(messages));
+    User owner = userStore.getUser(conversation.getOwnerId());
+    request.setAttribute("ownerName", owner == null ? null : owner.getName());
+    request.setAttribute("limit", limit);
+    if (!messages.isEmpty()) {
+      UUID oldestShown = messages.get(0).getId();
+      if (!messageStore.getMessagesBefore(conversationId, oldestShown, 1).isEmpty()) {
+        // tell chat.jsp where the next page of older history starts
+        request.setAttribute("olderMessagesCursor", oldestShown.toString());
+      }
+    }
 
-    String addNewUserMessage = (String) request.getSession().getAttribute("addNewUserMessage");
     if (addNewUserMessage != null) {
       request.setAttribute("addNewUserMessage", addNewUserMessage);
       request.getSession().setAttribute("addNewUserMessage", null);
@@ -118,6 +187,251 @@ public class ChatServlet extends HttpServlet {
     request.getRequestDispatcher("/WEB-INF/view/chat.jsp").forward(request, response);
   }
 
+  /**
+   * Checks whether the browser's copy of the chat page is current, and answers with 304 Not
+   * Modified if so. Messages are only ever appended, so the page (whichever window of history it
+   * shows, which is set by the URL) is the same as long as the Conversation's Message count and
+   * newest Message are.
+   */
+  private boolean isPageNotModified(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      String user,
+      Conversation conversation) {
+    List<Message> messages = messageStore.getMessagesInConversation(conversation.getId());
+    Instant lastModified = conversation.getCreationTime();
+    int newestHash = 0;
+    if (!messages.isEmpty()) {
+      Message newest = messages.get(messages.size() - 1);
+      lastModified = newest.getCreationTime();
+      newestHash = newest.getId().hashCode();
+    }
+    String version =
+        Integer.toHexString(conversation.getId().hashCode())
+            + "-"
+            + Integer.toHexString(messages.size())
+            + "-"
+            + Integer.toHexString(newestHash);
+    return CacheHelper.isNotModified(request, response, user, version, lastModified.toEpochMilli());
+  }
+
+  /**
+   * Responds to /chat/{title}/messages?since={messageId} with the messages added to the
+   * Conversation after the given message, as JSON. Chat pages poll this to show new messages
+   * without reloading. At most MAX_PAGE_SIZE messages are returned; if the since parameter is
+   * missing or unknown, these are the newest messages in the Conversation.
+   */
+  private void doGetNewMessages(
+      HttpServletRequest request, HttpServletResponse response, String conversationTitle)
+      throws IOException {
+    Conversation conversation = conversationStore.getConversationWithTitle(conversationTitle);
+    if (conversation == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+
+    String user = (String) request.getSession().getAttribute("user");
+    if (!ChatHelper.hasAccess(user, conversation)) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    writeNewMessages(response, conversation.getId(), parseId(request.getParameter("since")));
+  }
+
+  /**
+   * Responds to /chat/{title}/poll?since={messageId} like /messages, except that if there are no
+   * new messages yet, the request waits for one instead of returning an empty list; see
+   * MessagePoll. After MessagePoll.TIMEOUT_MILLIS with none, it returns an empty list after all.
+   * Chat pages use this when the browser can't open a stream.
+   */
+  private void doGetPoll(
+      HttpServletRequest request, HttpServletResponse response, String conversationTitle)
+      throws IOException {
+    Conversation conversation = conversationStore.getConversationWithTitle(conversationTitle);
+    if (conversation == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+
+    String user = (String) request.getSession().getAttribute("user");
+    if (!ChatHelper.hasAccess(user, conversation)) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    UUID conversationId = conversation.getId();
+    UUID since = parseId(request.getParameter("since"));
+    MessagePoll poll =
+        new MessagePoll(
+            messageStore,
+            conversationId,
+            asyncResponse -> writeNewMessages(asyncResponse, conversationId, since));
+    poll.subscribe();
+    if (!getNewMessages(conversationId, since).isEmpty()) {
+      poll.cancel();
+      writeNewMessages(response, conversationId, since);
+      return;
+    }
+    poll.park(request.startAsync());
+  }
+
+  /**
+   * Returns the messages added to the Conversation after the given message. At most
+   * MAX_PAGE_SIZE messages are returned; if the message is null or unknown, these are the newest
+   * messages in the Conversation.
+   */
+  private List<Message> getNewMessages(UUID conversationId, UUID since) {
+    List<Message> messages = messageStore.getMessagesSince(conversationId, since);
+    if (messages.size() > MAX_PAGE_SIZE) {
+      messages = messages.subList(messages.size() - MAX_PAGE_SIZE, messages.size());
+    }
+    return messages;
+  }
+
+  /** Writes the messages added to the Conversation after the given message as JSON. */
+  private void writeNewMessages(HttpServletResponse response, UUID conversationId, UUID since)
+      throws IOException {
+    List<Message> messages = getNewMessages(conversationId, since);
+
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    response.setHeader("Cache-Control", "no-store");
+
+    Map<UUID, String> authorNames = resolveAuthorNames(messages);
+    JsonWriter json = new JsonWriter(response.getWriter());
+    json.beginObject().name("messages").beginArray();
+    for (Message message : messages) {
+      writeMessage(json, message, authorNames.get(message.getAuthorId()));
+    }
+    json.endArray().endObject();
+  }
+
+  /**
+   * Responds to /chat/{title}/stream with a Server-Sent Events stream of the messages added to the
+   * Conversation, one event per message, with the same JSON as /messages and the message ID as the
+   * event ID. The stream starts with the messages after the one named by the Last-Event-ID header
+   * an EventSource sends when it reconnects, or else by the since parameter; see MessageStream.
+   */
+  private void doGetStream(
+      HttpServletRequest request, HttpServletResponse response, String conversationTitle)
+      throws IOException {
+    Conversation conversation = conversationStore.getConversationWithTitle(conversationTitle);
+    if (conversation == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+
+    String user = (String) request.getSession().getAttribute("user");
+    if (!ChatHelper.hasAccess(user, conversation)) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    String lastEventId = request.getHeader("Last-Event-ID");
+    UUID since = parseId(lastEventId != null ? lastEventId : request.getParameter("since"));
+
+    response.setContentType("text/event-stream");
+    response.setCharacterEncoding("UTF-8");
+    response.setHeader("Cache-Control", "no-store");
+
+    UUID conversationId = conversation.getId();
+    MessageStream stream =
+        new MessageStream(
+            request.startAsync(),
+            response.getOutputStream(),
+            messageStore,
+            conversationId,
+            this::encodeEvent);
+    stream.open(() -> getNewMessages(conversationId, since));
+  }
+
+  /** Encodes a Message as a Server-Sent Event, reusing the last encoding if it's the same one. */
+  private byte[] encodeEvent(Message message) {
+    EncodedEvent event = lastEvent;
+    if (event != null && event.message == message) {
+      return event.bytes;
+    }
+    User author = userStore.getUser(message.getAuthorId());
+    StringWriter text = new StringWriter();
+    text.write("id: " + message.getId() + "\ndata: ");
+    try {
+      writeMessage(new JsonWriter(text), message, author == null ? null : author.getName());
+    } catch (IOException e) {
+      // a StringWriter doesn't throw
+      throw new UncheckedIOException(e);
+    }
+    text.write("\n\n");
+    event = new EncodedEvent(message, text.toString().getBytes(StandardCharsets.UTF_8));
+    lastEvent = event;
+    return event.bytes;
+  }
+
+  /** A Message and its encoding as a Server-Sent Event. */
+  private static final class EncodedEvent {
+    final Message message;
+    final byte[] bytes;
+
+    EncodedEvent(Message message, byte[] bytes) {
+      this.message = message;
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * Writes the JSON object a chat page's script expects for a message. The JSON API uses the same
+   * form.
+   */
+  static void writeMessage(JsonWriter json, Message message, String authorName)
+      throws IOException {
+    json.beginObject()
+        .name("id").value(message.getId())
+        .name("author").value(authorName)
+        .name("content").value(message.getContent())
+        .name("creation").value(message.getCreationTime())
+        .endObject();
+  }
+
+  /**
+   * Looks up the display name of every distinct author of the given Messages, so that rendering
+   * them needs no further store lookups. Authors that no longer exist map to null.
+   */
+  private Map<UUID, String> resolveAuthorNames(List<Message> messages) {
+    Map<UUID, String> authorNames = new HashMap<>();
+    for (Message message : messages) {
+      UUID authorId = message.getAuthorId();
+      if (!authorNames.containsKey(authorId)) {
+        User author = userStore.getUser(authorId);
+        authorNames.put(authorId, author == null ? null : author.getName());
+      }
+    }
+    return authorNames;
+  }
+
+  /** Parses a UUID request parameter, returning null if it's absent or bad. */
+  static UUID parseId(String id) {
+    if (id == null) {
+      return null;
+    }
+    try {
+      return UUID.fromString(id);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /** Parses the limit parameter of a chat page request, clamping it to a sensible page size. */
+  private static int parseLimit(String limit) {
+    if (limit == null) {
+      return DEFAULT_PAGE_SIZE;
+    }
+    try {
+      return Math.max(1, Math.min(MAX_PAGE_SIZE, Integer.parseInt(limit)));
+    } catch (NumberFormatException e) {
+      return DEFAULT_PAGE_SIZE;
+    }
+  }
+
   /**
    * This function fires when a user submits the form on the chat page. It gets the logged-in
    * username from the session, the conversation title from the URL, and the chat message from the
@@ -16,6 +16,7 @@ package codeu.controller;
 
 import static codeu.model.data.Conversation.ConversationType;
 
+import codeu.helper.CacheHelper;
 import codeu.helper.ConversationHelper;
 import codeu.model.data.Conversation;
 import codeu.model.data.User;
@@ -69,13 +70,20 @@ public class ConversationServlet extends HttpServlet {
 
   /**
    * This function fires when a user navigates to the conversations page. It gets all of the
-   * conversations from the model and forwards to conversations.jsp for rendering the list.
+   * conversations from the model and forwards to conversations.jsp for rendering the list. If the
+   * browser already has the current list, it's answered with 304 Not Modified instead.
    */
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response)
       throws IOException, ServletException {
     String user = (String) request.getSession().getAttribute("user");
 
+    long version = conversationStore.getVersionForUser(user);
+    if (CacheHelper.isNotModified(
+        request, response, user, Long.toHexString(version), version / 1000)) {
+      return;
+    }
+
     List<Conversation> conversations = conversationStore.getConversationsForUser(user);
     request.setAttribute("conversations", conversations);
     request.getRequestDispatcher("/WEB-INF/view/conversations.jsp").forward(request, response);
@@ -118,17 +126,10 @@ public class ConversationServlet extends HttpServlet {
       return;
     }
 
-    if (conversationStore.isTitleTaken(conversationTitle)) {
-      // title is already taken, if user can access then just go into that conversation instead of creating a new one
-      Conversation conversation = conversationStore.getConversationWithTitle(conversationTitle);
-      if (conversation.isUserInConversation(username)) {
-        response.sendRedirect("/chat/" + conversationTitle);
-        return;
-      } else {
-        request.setAttribute("error", "That title is already taken by a group conversation!");
-        request.getRequestDispatcher("/WEB-INF/view/conversations.jsp").forward(request, response);
-        return;
-      }
+    Conversation existingConversation = conversationStore.getConversationWithTitle(conversationTitle);
+    if (existingConversation != null) {
+      respondTitleTaken(request, response, username, existingConversation);
+      return;
     }
 
     Conversation conversation;
@@ -141,7 +142,27 @@ public class ConversationServlet extends HttpServlet {
       conversation = new Conversation(UUID.randomUUID(), user.getId(), conversationTitle, Instant.now());
     }
 
-    conversationStore.addConversation(conversation);
+    if (!conversationStore.addConversationIfTitleAvailable(conversation)) {
+      // another request created a conversation with this title since we checked above
+      respondTitleTaken(request, response, username,
+              conversationStore.getConversationWithTitle(conversationTitle));
+      return;
+    }
     response.sendRedirect("/chat/" + conversationTitle);
   }
+
+  /**
+   * Handles a request to create a conversation whose title is already taken. If the user can access
+   * the existing conversation they're sent into it instead of creating a new one, otherwise they're
+   * shown an error.
+   */
+  private void respondTitleTaken(HttpServletRequest request, HttpServletResponse response,
+      String username, Conversation existingConversation) throws IOException, ServletException {
+    if (existingConversation.isUserInConversation(username)) {
+      response.sendRedirect("/chat/" + existingConversation.getTitle());
+    } else {
+      request.setAttribute("error", "That title is already taken by a group conversation!");
+      request.getRequestDispatcher("/WEB-INF/view/conversations.jsp").forward(request, response);
+    }
+  }
 }
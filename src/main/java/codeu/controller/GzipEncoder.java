@@ -0,0 +1,96 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.controller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes gzip to an OutputStream using a Deflater it's given, unlike GZIPOutputStream, which
+ * always creates its own. That lets GzipFilter reuse Deflaters, which are costly to create, across
+ * responses. The Deflater must be created with nowrap set, since this writes the gzip header and
+ * trailer itself.
+ */
+final class GzipEncoder {
+
+  /** A gzip header: magic number, deflate method, no flags or modification time, unknown OS. */
+  private static final byte[] HEADER = {
+    0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+  };
+
+  private final OutputStream out;
+  private final Deflater deflater;
+  private final CRC32 crc = new CRC32();
+  private final byte[] buffer = new byte[8192];
+
+  GzipEncoder(OutputStream out, Deflater deflater) throws IOException {
+    this.out = out;
+    this.deflater = deflater;
+    out.write(HEADER);
+  }
+
+  /** Returns the bytes compressed as a complete gzip stream. */
+  static byte[] compress(byte[] bytes, Deflater deflater) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 2 + HEADER.length);
+    GzipEncoder encoder = new GzipEncoder(compressed, deflater);
+    encoder.write(bytes, 0, bytes.length);
+    encoder.finish();
+    return compressed.toByteArray();
+  }
+
+  /** Compresses the bytes. They're all consumed before this returns, so the caller can reuse them. */
+  void write(byte[] bytes, int offset, int length) throws IOException {
+    crc.update(bytes, offset, length);
+    deflater.setInput(bytes, offset, length);
+    while (!deflater.needsInput()) {
+      deflate(Deflater.NO_FLUSH);
+    }
+  }
+
+  /** Writes out everything compressed so far, so the client can decompress it right away. */
+  void flush() throws IOException {
+    while (deflate(Deflater.SYNC_FLUSH) == buffer.length) {}
+    out.flush();
+  }
+
+  /** Writes out the rest of the compressed data and the gzip trailer. */
+  void finish() throws IOException {
+    deflater.finish();
+    while (!deflater.finished()) {
+      deflate(Deflater.NO_FLUSH);
+    }
+    writeInt((int) crc.getValue());
+    writeInt((int) deflater.getBytesRead());
+  }
+
+  private int deflate(int flush) throws IOException {
+    int length = deflater.deflate(buffer, 0, buffer.length, flush);
+    if (length > 0) {
+      out.write(buffer, 0, length);
+    }
+    return length;
+  }
+
+  /** Writes an int in little-endian order, as the gzip trailer requires. */
+  private void writeInt(int value) throws IOException {
+    out.write(value);
+    out.write(value >>> 8);
+    out.write(value >>> 16);
+    out.write(value >>> 24);
+  }
+}
@@ -0,0 +1,257 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Filter class that gzips responses for clients that accept it. Pages and JSON are compressed as
+ * they're written, once they reach {@code codeu.gzip.minSize} bytes; smaller bodies aren't worth
+ * the overhead. See GzipResponse for which responses are left alone.
+ *
+ * <p>Static assets such as /css/main.css are compressed once, the first time they're requested,
+ * and the compressed copy is served from memory until the file changes.
+ *
+ * <p>Deflaters allocate native memory that's only freed when they're ended, so they're pooled
+ * rather than created for each response. Compression can be turned off with {@code
+ * codeu.gzip.enabled}.
+ */
+public class GzipFilter implements Filter {
+
+  /** Bodies smaller than this many bytes aren't compressed, unless configured otherwise. */
+  static final int DEFAULT_MIN_SIZE = 1024;
+
+  /** The most idle Deflaters kept for reuse, unless configured otherwise. */
+  static final int DEFAULT_POOL_SIZE = 32;
+
+  /** File extensions of the static assets that are served compressed from memory. */
+  private static final String[] STATIC_EXTENSIONS = {".css", ".js", ".svg"};
+
+  private boolean enabled;
+  private int minSize;
+  private DeflaterPool deflaterPool;
+  private ServletContext servletContext;
+
+  /** Index from path to the compressed copy of that static asset. */
+  private final Map<String, CompressedAsset> staticAssets = new ConcurrentHashMap<>();
+
+  @Override
+  public void init(FilterConfig filterConfig) {
+    enabled = Boolean.parseBoolean(System.getProperty("codeu.gzip.enabled", "true"));
+    minSize = Integer.getInteger("codeu.gzip.minSize", DEFAULT_MIN_SIZE);
+    deflaterPool = new DeflaterPool(Integer.getInteger("codeu.gzip.poolSize", DEFAULT_POOL_SIZE));
+    servletContext = filterConfig.getServletContext();
+  }
+
+  @Override
+  public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse,
+      FilterChain chain) throws IOException, ServletException {
+    HttpServletRequest request = (HttpServletRequest) servletRequest;
+    HttpServletResponse response = (HttpServletResponse) servletResponse;
+    if (!enabled
+        || request.getMethod().equals("HEAD")
+        || !acceptsGzip(request.getHeader("Accept-Encoding"))) {
+      chain.doFilter(request, response);
+      return;
+    }
+    if (request.getMethod().equals("GET") && serveStaticAsset(request, response)) {
+      return;
+    }
+
+    GzipResponse gzipResponse = new GzipResponse(request, response, deflaterPool, minSize);
+    try {
+      chain.doFilter(request, gzipResponse);
+      if (!request.isAsyncStarted()) {
+        gzipResponse.finish();
+      }
+    } finally {
+      gzipResponse.release();
+    }
+  }
+
+  @Override
+  public void destroy() {
+    deflaterPool.close();
+    staticAssets.clear();
+  }
+
+  /**
+   * Serves a static asset from its compressed copy, compressing it first if there's none or the
+   * file changed since.
+   *
+   * @return false if the request isn't for a static asset, so it should go down the filter chain
+   */
+  private boolean serveStaticAsset(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    String path = request.getRequestURI().substring(request.getContextPath().length());
+    if (!isStaticAsset(path)) {
+      return false;
+    }
+    String realPath = servletContext.getRealPath(path);
+    File file = realPath == null ? null : new File(realPath);
+    if (file == null || !file.isFile()) {
+      // not a file we can read, such as one inside a packed war
+      return false;
+    }
+
+    long lastModified = file.lastModified();
+    CompressedAsset asset = staticAssets.get(path);
+    if (asset == null || asset.lastModified != lastModified) {
+      Deflater deflater = deflaterPool.take();
+      try {
+        asset =
+            new CompressedAsset(
+                lastModified, GzipEncoder.compress(Files.readAllBytes(file.toPath()), deflater));
+      } finally {
+        deflaterPool.give(deflater);
+      }
+      staticAssets.put(path, asset);
+    }
+
+    response.setHeader("Vary", "Accept-Encoding");
+    response.setDateHeader("Last-Modified", lastModified);
+    if (request.getHeader("If-Modified-Since") != null) {
+      try {
+        if (lastModified / 1000 <= request.getDateHeader("If-Modified-Since") / 1000) {
+          response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+          return true;
+        }
+      } catch (IllegalArgumentException e) {
+        // an unreadable date; send the asset
+      }
+    }
+    response.setContentType(servletContext.getMimeType(path));
+    response.setHeader("Content-Encoding", "gzip");
+    response.setContentLength(asset.content.length);
+    response.getOutputStream().write(asset.content);
+    return true;
+  }
+
+  private static boolean isStaticAsset(String path) {
+    for (String extension : STATIC_EXTENSIONS) {
+      if (path.endsWith(extension)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether an Accept-Encoding header allows gzip. A quality of zero means the client
+   * refuses it.
+   */
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parameters = coding.split(";");
+      if (!parameters[0].trim().equalsIgnoreCase("gzip")) {
+        continue;
+      }
+      for (int i = 1; i < parameters.length; i++) {
+        String parameter = parameters[i].trim();
+        if (parameter.startsWith("q=")) {
+          try {
+            return Double.parseDouble(parameter.substring(2)) > 0;
+          } catch (NumberFormatException e) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether a content type is text that compresses well. Event streams are text, but are
+   * written a piece at a time and mustn't be held back, so they aren't.
+   */
+  static boolean isCompressible(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    String mimeType = contentType.split(";")[0].trim().toLowerCase(Locale.ROOT);
+    if (mimeType.equals("text/event-stream")) {
+      return false;
+    }
+    return mimeType.startsWith("text/")
+        || mimeType.equals("application/json")
+        || mimeType.equals("application/javascript")
+        || mimeType.equals("application/xml")
+        || mimeType.equals("image/svg+xml");
+  }
+
+  /** A static asset's compressed bytes, and the modification time of the file they came from. */
+  private static final class CompressedAsset {
+    final long lastModified;
+    final byte[] content;
+
+    CompressedAsset(long lastModified, byte[] content) {
+      this.lastModified = lastModified;
+      this.content = content;
+    }
+  }
+
+  /** Idle Deflaters, ready to be reused. */
+  static final class DeflaterPool {
+
+    private final BlockingQueue<Deflater> idle;
+
+    DeflaterPool(int size) {
+      idle = new ArrayBlockingQueue<>(Math.max(1, size));
+    }
+
+    /** Returns an idle Deflater, or a new one if there are none. */
+    Deflater take() {
+      Deflater deflater = idle.poll();
+      return deflater != null ? deflater : new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    }
+
+    /** Puts a Deflater back for reuse, or frees it if the pool is full. */
+    void give(Deflater deflater) {
+      deflater.reset();
+      if (!idle.offer(deflater)) {
+        deflater.end();
+      }
+    }
+
+    /** Frees every idle Deflater. */
+    void close() {
+      Deflater deflater;
+      while ((deflater = idle.poll()) != null) {
+        deflater.end();
+      }
+    }
+  }
+}
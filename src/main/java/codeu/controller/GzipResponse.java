@@ -0,0 +1,393 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.controller;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.zip.Deflater;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A response whose body GzipFilter may compress. The first minSize bytes are held back until it's
+ * clear whether the response is worth compressing: it must be a 200 of a compressible type, at
+ * least minSize bytes long, and not asynchronous. Past that point the body is streamed, compressed
+ * or not, so a large response is never held in memory.
+ *
+ * <p>Asynchronous responses, like the chat page's streams and long polls, are never compressed:
+ * they're written a piece at a time as Messages arrive, after the filter has returned.
+ */
+final class GzipResponse extends HttpServletResponseWrapper {
+
+  private enum State {
+    /** The body is being held back until there's enough of it to decide. */
+    UNDECIDED,
+    COMPRESSED,
+    UNCOMPRESSED
+  }
+
+  private final HttpServletRequest request;
+  private final GzipFilter.DeflaterPool deflaterPool;
+  private final int minSize;
+
+  private State state = State.UNDECIDED;
+
+  /**
+   * The Content-Length and ETag the servlet set. They're held back with the body: a compressed
+   * body has a different length, and its ETag must not match the uncompressed body's.
+   */
+  private long contentLength = -1;
+  private String etag;
+
+  private GzipStream stream;
+  private PrintWriter writer;
+  private boolean usingOutputStream;
+
+  GzipResponse(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      GzipFilter.DeflaterPool deflaterPool,
+      int minSize) {
+    super(response);
+    this.request = request;
+    this.deflaterPool = deflaterPool;
+    this.minSize = minSize;
+  }
+
+  @Override
+  public ServletOutputStream getOutputStream() throws IOException {
+    if (writer != null) {
+      throw new IllegalStateException("getWriter() has already been called");
+    }
+    usingOutputStream = true;
+    return getStream();
+  }
+
+  @Override
+  public PrintWriter getWriter() throws IOException {
+    if (usingOutputStream) {
+      throw new IllegalStateException("getOutputStream() has already been called");
+    }
+    if (writer == null) {
+      writer = new PrintWriter(new OutputStreamWriter(getStream(), getCharacterEncoding()));
+    }
+    return writer;
+  }
+
+  private GzipStream getStream() throws IOException {
+    if (stream == null) {
+      stream = new GzipStream(super.getOutputStream());
+    }
+    return stream;
+  }
+
+  /**
+   * Writes out the rest of the body. Call this once the request is done, unless it went
+   * asynchronous.
+   */
+  void finish() throws IOException {
+    if (stream != null) {
+      // the writer flushes the stream, which mustn't force a decision before the whole body is in
+      stream.finishing = true;
+    }
+    if (writer != null) {
+      writer.flush();
+    }
+    if (stream != null) {
+      stream.finish();
+    } else if (state == State.UNDECIDED) {
+      // nothing was written, so there's nothing to compress
+      start(false);
+    }
+  }
+
+  /** Returns the Deflater to the pool if it's still held, as when the request failed. */
+  void release() {
+    if (stream != null) {
+      stream.release();
+    }
+  }
+
+  @Override
+  public void flushBuffer() throws IOException {
+    if (writer != null) {
+      writer.flush();
+    }
+    if (stream != null) {
+      stream.flush();
+    }
+    super.flushBuffer();
+  }
+
+  @Override
+  public void resetBuffer() {
+    if (stream != null) {
+      stream.discard();
+    }
+    super.resetBuffer();
+  }
+
+  @Override
+  public void reset() {
+    resetBuffer();
+    super.reset();
+    if (state == State.UNDECIDED) {
+      contentLength = -1;
+      etag = null;
+    }
+  }
+
+  @Override
+  public void setContentLength(int length) {
+    setContentLengthLong(length);
+  }
+
+  @Override
+  public void setContentLengthLong(long length) {
+    if (state == State.UNDECIDED) {
+      contentLength = length;
+    } else if (state == State.UNCOMPRESSED) {
+      super.setContentLengthLong(length);
+    }
+  }
+
+  @Override
+  public void setHeader(String name, String value) {
+    if (!holdHeader(name, value)) {
+      super.setHeader(name, value);
+    }
+  }
+
+  @Override
+  public void addHeader(String name, String value) {
+    if (!holdHeader(name, value)) {
+      super.addHeader(name, value);
+    }
+  }
+
+  @Override
+  public void setIntHeader(String name, int value) {
+    if (!holdHeader(name, Integer.toString(value))) {
+      super.setIntHeader(name, value);
+    }
+  }
+
+  @Override
+  public void addIntHeader(String name, int value) {
+    if (!holdHeader(name, Integer.toString(value))) {
+      super.addIntHeader(name, value);
+    }
+  }
+
+  /** Routes the Content-Length and ETag headers to their setters. Returns true if it did. */
+  private boolean holdHeader(String name, String value) {
+    if ("Content-Length".equalsIgnoreCase(name)) {
+      setContentLengthLong(value == null ? -1 : Long.parseLong(value));
+      return true;
+    }
+    if ("ETag".equalsIgnoreCase(name)) {
+      if (state == State.UNDECIDED) {
+        etag = value;
+      } else {
+        super.setHeader(name, state == State.COMPRESSED ? weaken(value) : value);
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Decides whether to compress the body, given the bytes held back so far.
+   *
+   * @param complete whether those bytes are the whole body
+   */
+  private boolean shouldCompress(int heldBytes, boolean complete) {
+    if (request.isAsyncStarted()
+        || getStatus() != HttpServletResponse.SC_OK
+        || getHeader("Content-Encoding") != null
+        || !GzipFilter.isCompressible(getContentType())) {
+      return false;
+    }
+    long length = contentLength >= 0 ? contentLength : complete ? heldBytes : -1;
+    return length < 0 || length >= minSize;
+  }
+
+  /** Sets the headers for a compressed or uncompressed body. */
+  private void start(boolean compress) {
+    state = compress ? State.COMPRESSED : State.UNCOMPRESSED;
+    if (GzipFilter.isCompressible(getContentType())) {
+      super.addHeader("Vary", "Accept-Encoding");
+    }
+    if (compress) {
+      super.setHeader("Content-Encoding", "gzip");
+      if (etag != null) {
+        super.setHeader("ETag", weaken(etag));
+      }
+    } else {
+      if (contentLength >= 0) {
+        super.setContentLengthLong(contentLength);
+      }
+      if (etag != null) {
+        super.setHeader("ETag", etag);
+      }
+    }
+  }
+
+  /**
+   * Returns the weak form of an ETag. A compressed body isn't byte-for-byte the same as the
+   * uncompressed one, so it may only claim to be equivalent.
+   */
+  private static String weaken(String etag) {
+    return etag == null || etag.startsWith("W/") ? etag : "W/" + etag;
+  }
+
+  /** The body, held back and then compressed or passed through. */
+  private final class GzipStream extends ServletOutputStream {
+
+    private final ServletOutputStream out;
+    private final byte[] oneByte = new byte[1];
+
+    /** The bytes held back while UNDECIDED; null after that. */
+    private byte[] held;
+    private int heldBytes;
+
+    private Deflater deflater;
+    private GzipEncoder encoder;
+
+    /** Whether the body is complete, so flushing it can wait for finish(). */
+    private boolean finishing;
+    private boolean finished;
+
+    GzipStream(ServletOutputStream out) {
+      this.out = out;
+      this.held = new byte[minSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      oneByte[0] = (byte) b;
+      write(oneByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      if (finished) {
+        throw new IOException("Response body is already complete");
+      }
+      if (state == State.UNDECIDED) {
+        if (heldBytes + length <= held.length) {
+          System.arraycopy(bytes, offset, held, heldBytes, length);
+          heldBytes += length;
+          return;
+        }
+        decide(false);
+      }
+      if (encoder != null) {
+        encoder.write(bytes, offset, length);
+      } else {
+        out.write(bytes, offset, length);
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (finishing || finished) {
+        return;
+      }
+      if (state == State.UNDECIDED) {
+        decide(false);
+      }
+      if (encoder != null) {
+        encoder.flush();
+      } else {
+        out.flush();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      finish();
+      out.close();
+    }
+
+    void finish() throws IOException {
+      if (finished) {
+        return;
+      }
+      finished = true;
+      try {
+        if (state == State.UNDECIDED) {
+          decide(true);
+        }
+        if (encoder != null) {
+          encoder.finish();
+        }
+      } finally {
+        release();
+      }
+    }
+
+    void release() {
+      if (deflater != null) {
+        deflaterPool.give(deflater);
+        deflater = null;
+        encoder = null;
+      }
+    }
+
+    /** Drops the bytes held back, if the decision hasn't been made yet. */
+    void discard() {
+      if (state == State.UNDECIDED) {
+        heldBytes = 0;
+      }
+    }
+
+    /** Decides whether to compress and writes out the bytes held back. */
+    private void decide(boolean complete) throws IOException {
+      boolean compress = shouldCompress(heldBytes, complete);
+      start(compress);
+      if (compress) {
+        deflater = deflaterPool.take();
+        encoder = new GzipEncoder(out, deflater);
+        encoder.write(held, 0, heldBytes);
+      } else if (heldBytes > 0) {
+        out.write(held, 0, heldBytes);
+      }
+      held = null;
+    }
+
+    @Override
+    public boolean isReady() {
+      return out.isReady();
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+      if (state == State.UNDECIDED) {
+        // non-blocking writes only happen on asynchronous responses, which aren't compressed
+        if (heldBytes > 0) {
+          throw new IllegalStateException("Body written before setWriteListener()");
+        }
+        start(false);
+        held = null;
+      }
+      out.setWriteListener(writeListener);
+    }
+  }
+}
@@ -0,0 +1,140 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.controller;
+
+import codeu.model.data.Message;
+import codeu.model.store.basic.MessageStore;
+import java.io.IOException;
+import java.util.UUID;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * One waiting request on /chat/{title}/poll. It subscribes to its Conversation in MessageStore for
+ * a single Message, and the request is asynchronous, so a waiting client costs this object rather
+ * than a thread. When a Message arrives or TIMEOUT_MILLIS passes, the response is written on a
+ * container thread, so the thread adding the Message isn't held up by the client.
+ */
+final class MessagePoll implements MessageStore.Subscriber, AsyncListener {
+
+  /** How long a request waits for a Message before it's answered with none. */
+  static final long TIMEOUT_MILLIS = 25000;
+
+  /** Writes the response once the wait is over. */
+  interface Responder {
+    void respond(HttpServletResponse response) throws IOException;
+  }
+
+  private final MessageStore messageStore;
+  private final UUID conversationId;
+  private final Responder responder;
+
+  /** The parked request. Guarded by this poll's monitor, like the fields below. */
+  private AsyncContext asyncContext;
+
+  /** Whether a Message has arrived, which may happen before the request is parked. */
+  private boolean woken;
+
+  /** Whether the response has been started or the request has ended. */
+  private boolean done;
+
+  MessagePoll(MessageStore messageStore, UUID conversationId, Responder responder) {
+    this.messageStore = messageStore;
+    this.conversationId = conversationId;
+    this.responder = responder;
+  }
+
+  /**
+   * Starts listening for the Conversation's next Message. Call this before checking whether there
+   * are Messages to answer with right away, so none can arrive unnoticed in between.
+   */
+  void subscribe() {
+    messageStore.subscribe(conversationId, this);
+  }
+
+  /** Stops listening, for when the request is answered without waiting. */
+  void cancel() {
+    messageStore.unsubscribe(conversationId, this);
+  }
+
+  /** Parks the request until a Message arrives or the timeout fires. */
+  synchronized void park(AsyncContext asyncContext) {
+    this.asyncContext = asyncContext;
+    asyncContext.setTimeout(TIMEOUT_MILLIS);
+    asyncContext.addListener(this);
+    if (woken) {
+      wake();
+    }
+  }
+
+  @Override
+  public synchronized void onMessage(Message message) {
+    woken = true;
+    if (asyncContext != null) {
+      wake();
+    }
+  }
+
+  /** Answers the parked request on a container thread. */
+  private void wake() {
+    if (done) {
+      return;
+    }
+    done = true;
+    cancel();
+    AsyncContext parked = asyncContext;
+    parked.start(() -> respond(parked));
+  }
+
+  private void respond(AsyncContext parked) {
+    try {
+      responder.respond((HttpServletResponse) parked.getResponse());
+    } catch (IOException e) {
+      // the client went away; there's no one left to tell
+    } finally {
+      parked.complete();
+    }
+  }
+
+  @Override
+  public void onTimeout(AsyncEvent event) {
+    synchronized (this) {
+      if (done) {
+        return;
+      }
+      done = true;
+    }
+    cancel();
+    respond(event.getAsyncContext());
+  }
+
+  @Override
+  public void onError(AsyncEvent event) {
+    onComplete(event);
+  }
+
+  @Override
+  public void onComplete(AsyncEvent event) {
+    synchronized (this) {
+      done = true;
+    }
+    cancel();
+  }
+
+  @Override
+  public void onStartAsync(AsyncEvent event) {}
+}
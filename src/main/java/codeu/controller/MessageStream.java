@@ -0,0 +1,219 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.controller;
+
+import codeu.model.data.Message;
+import codeu.model.store.basic.MessageStore;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * One open Server-Sent Events response on /chat/{title}/stream. It subscribes to its Conversation
+ * in MessageStore and writes each new Message as an event without holding a thread: the request
+ * is asynchronous, and events are only written when the WriteListener says the connection can
+ * take them.
+ *
+ * <p>Events waiting to be written are buffered, up to MAX_QUEUED_EVENTS. A client that falls
+ * further behind is disconnected rather than holding up the thread adding Messages; its
+ * EventSource reconnects with the ID of the last event it got and catches up from the store.
+ * Streams also end after TIMEOUT_MILLIS so that ones whose client went away quietly are cleaned
+ * up, and the client reconnects the same way.
+ */
+final class MessageStream implements MessageStore.Subscriber, WriteListener, AsyncListener {
+
+  /** The most events a stream buffers. This is more than a full backlog of missed Messages. */
+  static final int MAX_QUEUED_EVENTS = 1000;
+
+  /** How long a stream stays open before the client has to reconnect. */
+  static final long TIMEOUT_MILLIS = 60000;
+
+  /** Tells EventSource to reconnect one second after a stream ends, instead of its default. */
+  private static final byte[] RETRY = "retry: 1000\n\n".getBytes(StandardCharsets.UTF_8);
+
+  private final AsyncContext asyncContext;
+  private final ServletOutputStream out;
+  private final MessageStore messageStore;
+  private final UUID conversationId;
+
+  /** Encodes a Message as a complete event. */
+  private final Function<Message, byte[]> encoder;
+
+  /** Events not yet written. Guarded by this stream's monitor, like the fields below. */
+  private final Queue<byte[]> queue = new ArrayDeque<>();
+
+  /**
+   * Messages that arrived while the backlog was being read. Null once the backlog is queued, after
+   * which new Messages are queued directly.
+   */
+  private List<Message> arrivedDuringBacklog = new ArrayList<>();
+
+  /** Whether the WriteListener is set, before which nothing may be written. */
+  private boolean writable;
+
+  /** Whether events have been written since the last flush. */
+  private boolean unflushed;
+
+  private boolean closed;
+
+  MessageStream(
+      AsyncContext asyncContext,
+      ServletOutputStream out,
+      MessageStore messageStore,
+      UUID conversationId,
+      Function<Message, byte[]> encoder) {
+    this.asyncContext = asyncContext;
+    this.out = out;
+    this.messageStore = messageStore;
+    this.conversationId = conversationId;
+    this.encoder = encoder;
+  }
+
+  /**
+   * Subscribes to the Conversation, queues the Messages the client missed, and starts writing.
+   *
+   * @param backlog the Messages the client missed, read after this stream has subscribed
+   */
+  void open(Supplier<List<Message>> backlog) throws IOException {
+    asyncContext.setTimeout(TIMEOUT_MILLIS);
+    asyncContext.addListener(this);
+    messageStore.subscribe(conversationId, this);
+
+    List<Message> missed;
+    try {
+      missed = backlog.get();
+    } catch (RuntimeException e) {
+      close();
+      throw e;
+    }
+    synchronized (this) {
+      queue.add(RETRY);
+      Set<UUID> queuedIds = new HashSet<>();
+      for (Message message : missed) {
+        queue.add(encoder.apply(message));
+        queuedIds.add(message.getId());
+      }
+      for (Message message : arrivedDuringBacklog) {
+        if (!queuedIds.contains(message.getId())) {
+          queue.add(encoder.apply(message));
+        }
+      }
+      arrivedDuringBacklog = null;
+    }
+    // the container calls onWritePossible() once the listener is set
+    out.setWriteListener(this);
+  }
+
+  @Override
+  public synchronized void onMessage(Message message) {
+    if (closed) {
+      return;
+    }
+    if (arrivedDuringBacklog != null) {
+      arrivedDuringBacklog.add(message);
+      return;
+    }
+    if (queue.size() >= MAX_QUEUED_EVENTS) {
+      close();
+      return;
+    }
+    queue.add(encoder.apply(message));
+    drain();
+  }
+
+  @Override
+  public synchronized void onWritePossible() {
+    writable = true;
+    drain();
+  }
+
+  /**
+   * Writes queued events until the queue is empty or the connection can't take more. In the latter
+   * case the container calls onWritePossible() when it can.
+   */
+  private void drain() {
+    if (!writable || closed) {
+      return;
+    }
+    try {
+      while (out.isReady()) {
+        byte[] event = queue.poll();
+        if (event != null) {
+          out.write(event);
+          unflushed = true;
+        } else if (unflushed) {
+          unflushed = false;
+          out.flush();
+        } else {
+          return;
+        }
+      }
+    } catch (IOException e) {
+      close();
+    }
+  }
+
+  /** Unsubscribes and ends the response. Safe to call more than once. */
+  synchronized void close() {
+    if (closed) {
+      return;
+    }
+    release();
+    asyncContext.complete();
+  }
+
+  /** Marks this stream closed and drops everything it holds. */
+  private synchronized void release() {
+    closed = true;
+    queue.clear();
+    messageStore.unsubscribe(conversationId, this);
+  }
+
+  @Override
+  public void onError(Throwable t) {
+    close();
+  }
+
+  @Override
+  public void onTimeout(AsyncEvent event) {
+    close();
+  }
+
+  @Override
+  public void onError(AsyncEvent event) {
+    close();
+  }
+
+  @Override
+  public void onComplete(AsyncEvent event) {
+    release();
+  }
+
+  @Override
+  public void onStartAsync(AsyncEvent event) {}
+}
@@ -121,11 +121,11 @@ public class ProfilePageServlet extends HttpServlet {
 
 				UUID id = UUID.randomUUID();
 				UUID ownerId = userStore.getUser(user).getId();
-				conversationTitle = id.toString();
 
-				Conversation conversation = new Conversation(id, ownerId, conversationTitle, Instant.now(),
+				Conversation conversation = new Conversation(id, ownerId, id.toString(), Instant.now(),
 						ConversationHelper.getUsernamesFromUsers(users), ConversationType.DIRECT);
-				conversationStore.addConversation(conversation);
+				// another request may have started the same DM since the check above
+				conversationTitle = conversationStore.addDirectMessageIfAbsent(conversation).getTitle();
 			} else {
 				conversationTitle = directMessageConversation.getTitle();
 			}
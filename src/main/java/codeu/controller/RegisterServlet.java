@@ -75,7 +75,12 @@ public class RegisterServlet extends HttpServlet {
     String hashedPassword = BCrypt.hashpw(password, BCrypt.gensalt());
     
     User user = new User(UUID.randomUUID(), username, hashedPassword, Instant.now());
-    userStore.addUser(user);
+    if (!userStore.addUserIfNameAvailable(user)) {
+      // another request registered the name since the check above
+      request.setAttribute("error", "That username is already taken.");
+      request.getRequestDispatcher("/WEB-INF/view/register.jsp").forward(request, response);
+      return;
+    }
     
     Profile profile = new Profile(UUID.randomUUID(), username, "Fill in your About Me section!");
     profileStore.addProfile(profile);
@@ -1,18 +1,29 @@
 package codeu.controller;
 
-import codeu.model.data.Conversation;
-import codeu.model.data.Message;
-import codeu.model.data.Profile;
-import codeu.model.data.User;
 import codeu.model.store.basic.ConversationStore;
 import codeu.model.store.basic.MessageStore;
 import codeu.model.store.basic.ProfileStore;
+import codeu.model.store.basic.StoreSnapshotter;
 import codeu.model.store.basic.UserStore;
 import codeu.model.store.persistence.PersistentDataStoreException;
 import codeu.model.store.persistence.PersistentStorageAgent;
+import com.google.appengine.api.ThreadManager;
+import com.google.apphosting.api.ApiProxy;
 
+import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
@@ -22,30 +33,246 @@ import javax.servlet.ServletContextListener;
  */
 public class ServerStartupListener implements ServletContextListener {
 
-  /** Loads data from Datastore. */
+  /** Writes a snapshot of the stores periodically, or null if snapshots aren't enabled. */
+  private ScheduledExecutorService snapshotScheduler;
+
+  /**
+   * Whether the stores were filled at startup. A snapshot of stores that failed to load would
+   * replace a good one, so none is written until they are.
+   */
+  private volatile boolean loaded;
+
+  /**
+   * Fills the stores, from a local snapshot plus the changes since it was taken if there is one,
+   * otherwise from Datastore.
+   */
   @Override
   public void contextInitialized(ServletContextEvent sce) {
+    PersistentStorageAgent agent = PersistentStorageAgent.getInstance();
+    StoreSnapshotter snapshotter = StoreSnapshotter.getInstance();
+
+    if (snapshotter == null || !restoreSnapshot(snapshotter)) {
+      loadDatastore(agent);
+    }
+    loaded = true;
+
+    if (Boolean.parseBoolean(System.getProperty("codeu.schemaMigration.enabled", "true"))) {
+      startSchemaMigration(agent);
+    }
+    if (snapshotter != null) {
+      startPeriodicSnapshots(snapshotter);
+    }
+  }
+
+  /**
+   * Restores the stores from the snapshot. If it can't be restored, the stores are emptied again so
+   * they can be loaded from Datastore.
+   *
+   * @return true if the stores were restored
+   */
+  private static boolean restoreSnapshot(StoreSnapshotter snapshotter) {
+    long start = System.nanoTime();
     try {
-      List<User> users = PersistentStorageAgent.getInstance().loadUsers();
-      UserStore.getInstance().setUsers(users);
-
-      List<Conversation> conversations = PersistentStorageAgent.getInstance().loadConversations();
-      ConversationStore.getInstance().setConversations(conversations);
-
-      List<Message> messages = PersistentStorageAgent.getInstance().loadMessages();
-      MessageStore.getInstance().setMessages(messages); 
-      
-      HashMap<String, String> profiles = PersistentStorageAgent.getInstance().loadProfiles();
-      ProfileStore.getInstance().setProfiles(profiles);
-
-    } catch (PersistentDataStoreException e) {
-      System.err.println("Server didn't start correctly. An error occurred during Datastore load!");
-      System.err.println("This is usually caused by loading data that's in an invalid format.");
-      System.err.println("Check the stack trace to see exactly what went wrong.");
+      if (!snapshotter.restore()) {
+        return false;
+      }
+      System.out.println("Restored snapshot " + snapshotter.getPath()
+          + " and loaded later changes from Datastore in " + (System.nanoTime() - start) / 1000000
+          + " ms");
+      return true;
+    } catch (IOException | PersistentDataStoreException | RuntimeException e) {
+      System.err.println("Couldn't restore snapshot " + snapshotter.getPath()
+          + ". Loading everything from Datastore instead.");
+      e.printStackTrace();
+      UserStore.getInstance().setUsers(Collections.emptyList());
+      ConversationStore.getInstance().setConversations(Collections.emptyList());
+      MessageStore.getInstance().setMessages(Collections.emptyList());
+      ProfileStore.getInstance().setProfiles(new HashMap<>());
+      return false;
+    }
+  }
+
+  /**
+   * Loads data from Datastore. Each kind is loaded on its own thread, so startup takes as long as
+   * the slowest kind instead of the sum of all of them. Entities are streamed into their store's
+   * indexes as they arrive rather than collected into a List first.
+   */
+  private static void loadDatastore(PersistentStorageAgent agent) {
+    // insertion order is the order kinds are reported in the timing log line
+    Map<String, Callable<Void>> loads = new LinkedHashMap<>();
+    loads.put("users", () -> {
+      agent.loadUsers(UserStore.getInstance()::addLoadedUser);
+      return null;
+    });
+    loads.put("conversations", () -> {
+      agent.loadConversations(ConversationStore.getInstance()::addLoadedConversation);
+      return null;
+    });
+    // in lazy mode, each Conversation's Messages are loaded when it's first read
+    if (!MessageStore.getInstance().isLazy()) {
+      loads.put("messages", () -> {
+        agent.loadMessages(MessageStore.getInstance()::addLoadedMessage);
+        return null;
+      });
+    }
+    loads.put("profiles", () -> {
+      ProfileStore.getInstance().setProfiles(agent.loadProfiles());
+      return null;
+    });
+
+    ExecutorService loaders = Executors.newFixedThreadPool(loads.size(), loaderThreadFactory());
+    try {
+      long start = System.nanoTime();
+      CompletionService<String> completedLoads = new ExecutorCompletionService<>(loaders);
+      Map<String, Long> loadMillis = new LinkedHashMap<>();
+      for (Map.Entry<String, Callable<Void>> load : loads.entrySet()) {
+        loadMillis.put(load.getKey(), null);
+        completedLoads.submit(() -> {
+          long loadStart = System.nanoTime();
+          load.getValue().call();
+          synchronized (loadMillis) {
+            loadMillis.put(load.getKey(), (System.nanoTime() - loadStart) / 1000000);
+          }
+          return load.getKey();
+        });
+      }
+
+      // take() hands back loads as they finish, so the first failure is reported right away
+      for (int i = 0; i < loads.size(); i++) {
+        completedLoads.take().get();
+      }
+
+      StringBuilder timings = new StringBuilder("Loaded Datastore in ")
+          .append((System.nanoTime() - start) / 1000000).append(" ms (");
+      synchronized (loadMillis) {
+        String separator = "";
+        for (Map.Entry<String, Long> kind : loadMillis.entrySet()) {
+          timings.append(separator).append(kind.getKey()).append(' ')
+              .append(kind.getValue()).append(" ms");
+          separator = ", ";
+        }
+      }
+      System.out.println(timings.append(')'));
+
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof PersistentDataStoreException) {
+        System.err.println("Server didn't start correctly. An error occurred during Datastore load!");
+        System.err.println("This is usually caused by loading data that's in an invalid format.");
+        System.err.println("Check the stack trace to see exactly what went wrong.");
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
       throw new RuntimeException(e);
+    } finally {
+      // stops the other loads if one of them failed
+      loaders.shutdownNow();
+    }
+  }
+
+  /**
+   * On App Engine, only threads from the request's thread factory can call Datastore. Anywhere
+   * else, such as a plain servlet container, ordinary threads work.
+   */
+  private static ThreadFactory loaderThreadFactory() {
+    if (ApiProxy.getCurrentEnvironment() != null) {
+      return ThreadManager.currentRequestThreadFactory();
     }
+    return Executors.defaultThreadFactory();
   }
 
+  /**
+   * Starts rewriting entities still stored in the legacy schema on a background thread. Loading
+   * reads both schemas, so this only makes later starts faster. If it's interrupted, the next start
+   * picks up what's left.
+   */
+  private static void startSchemaMigration(PersistentStorageAgent agent) {
+    Runnable migration = () -> {
+      try {
+        long start = System.nanoTime();
+        int migrated = agent.migrateLegacyEntities();
+        if (migrated > 0) {
+          System.out.println("Migrated " + migrated + " entities to the current schema in "
+              + (System.nanoTime() - start) / 1000000 + " ms");
+        }
+      } catch (RuntimeException e) {
+        System.err.println("Schema migration failed. It will resume on the next start.");
+        e.printStackTrace();
+      }
+    };
+
+    try {
+      newBackgroundThread(migration, "schema-migration").start();
+    } catch (RuntimeException e) {
+      // App Engine only allows background threads on manual and basic scaling
+      System.err.println("Couldn't start schema migration in the background: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Creates a thread that outlives the request that started it. On App Engine that has to come from
+   * ThreadManager; anywhere else it's a daemon thread so it doesn't keep the server running.
+   */
+  private static Thread newBackgroundThread(Runnable runnable, String name) {
+    if (ApiProxy.getCurrentEnvironment() != null) {
+      return ThreadManager.createBackgroundThread(runnable);
+    }
+    Thread thread = new Thread(runnable, name);
+    thread.setDaemon(true);
+    return thread;
+  }
+
+  /** Saves a snapshot of the stores every codeu.snapshot.intervalMinutes minutes. */
+  private void startPeriodicSnapshots(StoreSnapshotter snapshotter) {
+    int intervalMinutes = StoreSnapshotter.getIntervalMinutes();
+    if (intervalMinutes <= 0) {
+      return;
+    }
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+        runnable -> newBackgroundThread(runnable, "store-snapshot"));
+    try {
+      scheduler.scheduleWithFixedDelay(
+          () -> saveSnapshot(snapshotter), intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+      snapshotScheduler = scheduler;
+    } catch (RuntimeException e) {
+      scheduler.shutdownNow();
+      System.err.println("Couldn't schedule snapshots in the background: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Saves a snapshot of the stores. Failures are only logged; the previous snapshot is left in
+   * place and the next save tries again.
+   */
+  private static void saveSnapshot(StoreSnapshotter snapshotter) {
+    try {
+      long start = System.nanoTime();
+      snapshotter.save();
+      System.out.println("Saved snapshot " + snapshotter.getPath() + " in "
+          + (System.nanoTime() - start) / 1000000 + " ms");
+    } catch (IOException | RuntimeException e) {
+      System.err.println("Couldn't save snapshot " + snapshotter.getPath() + ": " + e);
+    }
+  }
+
+  /**
+   * Saves a final snapshot and writes anything still queued for Datastore before the server stops.
+   */
   @Override
-  public void contextDestroyed(ServletContextEvent sce) {}
+  public void contextDestroyed(ServletContextEvent sce) {
+    if (snapshotScheduler != null) {
+      snapshotScheduler.shutdownNow();
+    }
+    StoreSnapshotter snapshotter = StoreSnapshotter.getInstance();
+    if (snapshotter != null && loaded) {
+      saveSnapshot(snapshotter);
+    }
+    PersistentStorageAgent.getInstance().close();
+  }
 }
@@ -0,0 +1,73 @@
+package codeu.helper;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Helper class for answering conditional GET requests for pages */
+public class CacheHelper {
+
+    /**
+     * Sets a page's validators on the response and checks them against the request's If-None-Match
+     * and If-Modified-Since headers. If the browser's copy is still current, this answers with 304
+     * Not Modified and the caller must not write anything else.
+     *
+     * Pages show who's logged in, so the ETag includes the user and the page may only be cached by
+     * the browser, which has to check with the server before reusing it. If-Modified-Since is only
+     * used when the request has no If-None-Match, as the HTTP spec requires, and only for users who
+     * aren't logged in, since a date doesn't say whose copy of the page the browser has.
+     * @param user the user currently logged into the site (null if not logged in)
+     * @param version a token that changes whenever the data the page shows changes
+     * @param lastModified when that data last changed, in milliseconds since the epoch
+     * @return true if a 304 was sent
+     */
+    public static boolean isNotModified(HttpServletRequest request, HttpServletResponse response,
+            String user, String version, long lastModified) {
+        String userHash = Integer.toHexString(user == null ? 0 : user.hashCode());
+        String etag = "W/\"" + version + "-" + userHash + "\"";
+        response.setHeader("Cache-Control", "private, no-cache");
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        boolean notModified;
+        if (ifNoneMatch != null) {
+            notModified = matches(ifNoneMatch, etag);
+        } else {
+            notModified = user == null && !isModifiedSince(request, lastModified);
+        }
+        if (notModified) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        }
+        return notModified;
+    }
+
+    /** Checks whether an If-None-Match header lists the ETag, comparing weakly. */
+    private static boolean matches(String ifNoneMatch, String etag) {
+        String opaqueTag = etag.substring(2);
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || tag.equals(etag) || tag.equals(opaqueTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the data changed after the request's If-Modified-Since date. HTTP dates are in
+     * whole seconds, so the comparison is too. A missing or unreadable date counts as modified.
+     */
+    private static boolean isModifiedSince(HttpServletRequest request, long lastModified) {
+        if (request.getHeader("If-Modified-Since") == null) {
+            return true;
+        }
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+        return lastModified / 1000 > ifModifiedSince / 1000;
+    }
+
+}
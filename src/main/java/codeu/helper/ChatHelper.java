@@ -15,21 +15,30 @@ public class ChatHelper {
     public static boolean canAccess(String user, Conversation conversation, HttpServletResponse response)
             throws IOException {
 
-        if (!conversation.isNormalConversation()) {
+        if (!hasAccess(user, conversation)) {
             if (user == null) {
                 // user is not logged in, redirect them to login page
                 response.sendRedirect("/login");
-                return false;
-            }
-
-            if (!conversation.isUserInConversation(user)) {
+            } else {
                 // this user is not allowed to access the conversation, redirect them to their conversations page
                 response.sendRedirect("/conversations");
-                return false;
             }
+            return false;
         }
 
-        return true; // note that all users (even logged out) can access Normal Conversations.
+        return true;
+    }
+
+    /**
+     * Determines whether or not the user can access the given conversation, without redirecting. Use this
+     * for requests that shouldn't be answered with a page, such as JSON endpoints.
+     * @param user the user currently logged into the site (null if not logged in)
+     * @param conversation the Conversation to check
+     * @return boolean
+     */
+    public static boolean hasAccess(String user, Conversation conversation) {
+        // note that all users (even logged out) can access Normal Conversations.
+        return conversation.isNormalConversation() || (user != null && conversation.isUserInConversation(user));
     }
 
 }
@@ -0,0 +1,169 @@
+package codeu.helper;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes JSON straight to a Writer, one token at a time, so a response of any size is written
+ * without building it in memory first. Commas and colons are added as needed; the caller only has
+ * to open and close objects and arrays in the right order. Each method returns this writer so calls
+ * can be chained.
+ */
+public class JsonWriter {
+
+    /** The most objects and arrays that can be open at once. */
+    private static final int MAX_DEPTH = 32;
+
+    private final Writer out;
+
+    /**
+     * For each open object or array, whether it already has a member, so the next one needs a
+     * comma before it.
+     */
+    private final boolean[] hasMember = new boolean[MAX_DEPTH];
+
+    /** How many objects and arrays are open. */
+    private int depth;
+
+    /** Whether the last token written was a name, so the next value needs no comma. */
+    private boolean afterName;
+
+    public JsonWriter(Writer out) {
+        this.out = out;
+    }
+
+    public JsonWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    public JsonWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    public JsonWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    public JsonWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    /** Writes the name of the next member of the current object. */
+    public JsonWriter name(String name) throws IOException {
+        beforeValue();
+        writeString(name);
+        out.write(':');
+        afterName = true;
+        return this;
+    }
+
+    /** Writes a string value, or null if the value is null. */
+    public JsonWriter value(String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        beforeValue();
+        writeString(value);
+        return this;
+    }
+
+    public JsonWriter value(long value) throws IOException {
+        beforeValue();
+        out.write(Long.toString(value));
+        return this;
+    }
+
+    public JsonWriter value(boolean value) throws IOException {
+        beforeValue();
+        out.write(value ? "true" : "false");
+        return this;
+    }
+
+    /** Writes a value's string form, or null if the value is null. */
+    public JsonWriter value(Object value) throws IOException {
+        return value(value == null ? null : value.toString());
+    }
+
+    public JsonWriter nullValue() throws IOException {
+        beforeValue();
+        out.write("null");
+        return this;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    private JsonWriter open(char bracket) throws IOException {
+        if (depth == MAX_DEPTH) {
+            throw new IllegalStateException("JSON nested too deeply");
+        }
+        beforeValue();
+        out.write(bracket);
+        hasMember[depth++] = false;
+        return this;
+    }
+
+    private JsonWriter close(char bracket) throws IOException {
+        if (depth == 0) {
+            throw new IllegalStateException("Nothing to close");
+        }
+        depth--;
+        out.write(bracket);
+        return this;
+    }
+
+    /** Writes the comma that separates this value from the one before it, if it needs one. */
+    private void beforeValue() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth > 0) {
+            if (hasMember[depth - 1]) {
+                out.write(',');
+            }
+            hasMember[depth - 1] = true;
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        out.write('"');
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String escaped;
+            switch (c) {
+                case '"':
+                    escaped = "\\\"";
+                    break;
+                case '\\':
+                    escaped = "\\\\";
+                    break;
+                case '\n':
+                    escaped = "\\n";
+                    break;
+                case '\r':
+                    escaped = "\\r";
+                    break;
+                case '\t':
+                    escaped = "\\t";
+                    break;
+                default:
+                    // escape control characters, the line separators JavaScript rejects in strings,
+                    // and '<' so a response can't close a script tag
+                    if (c < 0x20 || c == '<' || c == '\u2028' || c == '\u2029') {
+                        escaped = String.format("\\u%04x", (int) c);
+                    } else {
+                        continue;
+                    }
+            }
+            // runs of characters that need no escaping are written in one call
+            out.write(value, start, i - start);
+            out.write(escaped);
+            start = i + 1;
+        }
+        out.write(value, start, value.length() - start);
+        out.write('"');
+    }
+}
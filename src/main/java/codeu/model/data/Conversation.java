@@ -19,8 +19,13 @@ import codeu.model.store.basic.ConversationStore;
 import javax.annotation.Nullable;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Class representing a conversation, which can be thought of as a chat room. Conversations are
@@ -51,7 +56,7 @@ public class Conversation {
     this.owner = owner;
     this.creation = creation;
     this.title = title;
-    this.users = new ArrayList<>();
+    this.users = new CopyOnWriteArrayList<>();
     this.conversationType = ConversationType.NORMAL;
   }
 
@@ -72,21 +77,22 @@ public class Conversation {
     this.creation = creation;
     this.title = title;
 
-    // Check if list of Users or Strings was given
+    // Check if list of Users or Strings was given. The list is copied into one that concurrent
+    // requests can read while a user is being added.
     if (users.size() != 0) {
       if (users.get(0) instanceof User) {
-        List<String> usernames = new ArrayList<>();
+        List<String> usernames = new CopyOnWriteArrayList<>();
         for (User user : (List<User>) users) {
           usernames.add(user.getName());
         }
         this.users = usernames;
       } else if (users.get(0) instanceof String) {
-        this.users = (List<String>) users;
+        this.users = new CopyOnWriteArrayList<>((List<String>) users);
       } else {
         throw new IllegalArgumentException("Users list should be of type User or String!");
       }
     } else {
-      this.users = new ArrayList<>();
+      this.users = new CopyOnWriteArrayList<>();
     }
 
 
@@ -131,23 +137,49 @@ public class Conversation {
     if (user == null) {
       return false;
     }
-    users.add(user.getName());
-    ConversationStore.getInstance().updateConversation(this);
-    return true;
+    return addUser(user.getName());
   }
 
   /** Adds a user to the user List by using their username
    * @param username Username of the user to add
-   * @return boolean whether or not the user was found and added into the List */
+   * @return boolean whether or not the user was found and is now in the List */
   public boolean addUser(String username) {
     if (username == null) {
       return false;
     }
-    users.add(username);
-    ConversationStore.getInstance().updateConversation(this);
+    addUsers(Collections.singletonList(username));
     return true;
   }
 
+  /**
+   * Adds several users to the user List at once and saves them in a single write, which is much
+   * cheaper than calling addUser() for each of them.
+   *
+   * @param usernames usernames of the users to add; ones already in the List are skipped
+   * @return the usernames that were added
+   */
+  public List<String> addUsers(Collection<String> usernames) {
+    return ConversationStore.getInstance().addUsers(this, usernames);
+  }
+
+  /**
+   * Adds the usernames that aren't already in the user List, without saving anything. This is
+   * ConversationStore's half of addUsers(); call that instead.
+   *
+   * @return the usernames that were added, in the order given
+   */
+  public synchronized List<String> addMembers(Collection<String> usernames) {
+    Set<String> added = new LinkedHashSet<>();
+    for (String username : usernames) {
+      if (username != null && !users.contains(username)) {
+        added.add(username);
+      }
+    }
+    // one addAll copies the backing array once rather than once per user
+    users.addAll(added);
+    return new ArrayList<>(added);
+  }
+
   /** Returns whether or not this Conversation is a normal conversation */
   public boolean isNormalConversation() {
     return conversationType == ConversationType.NORMAL;
@@ -17,7 +17,12 @@ package codeu.model.store.basic;
 import codeu.model.data.Conversation;
 import codeu.model.store.persistence.PersistentStorageAgent;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Store class that uses in-memory data structures to hold values and automatically loads from and
@@ -27,7 +32,7 @@ import java.util.List;
 public class ConversationStore {
 
   /** Singleton instance of ConversationStore. */
-  private static ConversationStore instance;
+  private static volatile ConversationStore instance;
 
   /**
    * Returns the singleton instance of ConversationStore that should be shared between all servlet
@@ -35,7 +40,11 @@ public class ConversationStore {
    */
   public static ConversationStore getInstance() {
     if (instance == null) {
-      instance = new ConversationStore(PersistentStorageAgent.getInstance());
+      synchronized (ConversationStore.class) {
+        if (instance == null) {
+          instance = new ConversationStore(PersistentStorageAgent.getInstance());
+        }
+      }
     }
     return instance;
   }
@@ -55,60 +64,177 @@ public class ConversationStore {
    */
   private PersistentStorageAgent persistentStorageAgent;
 
-  /** The in-memory list of Conversations. */
-  private List<Conversation> conversations;
+  /**
+   * The in-memory list of Conversations. Like every index below, it's only modified while holding
+   * this ConversationStore's monitor, and can be read without it.
+   */
+  private final List<Conversation> conversations;
+
+  /**
+   * Index from title to Conversation. If two Conversations somehow share a title, the one added
+   * first wins, which matches what a scan of {@link #conversations} would find.
+   */
+  private final Map<String, Conversation> conversationsByTitle;
+
+  /** The NORMAL Conversations, which every user can access, in the order they were added. */
+  private final List<Conversation> normalConversations;
+
+  /**
+   * Index from username to the DIRECT and GROUP Conversations that user is a member of, in the
+   * order they were created. A user added to an older Conversation has it inserted in place.
+   */
+  private final Map<String, List<Conversation>> conversationsByUser;
+
+  /**
+   * Index from a pair of usernames, as built by {@link #directMessageKey}, to the DIRECT
+   * Conversation between them.
+   */
+  private final Map<String, Conversation> directMessagesByUsers;
+
+  /**
+   * Index from username to the version of that user's list of Conversations, which changes
+   * whenever a Conversation is added to it. Users with no DIRECT or GROUP Conversations have no
+   * entry. Versions come from {@link #nextVersion} and are only set while holding this
+   * ConversationStore's monitor.
+   */
+  private final Map<String, Long> versionsByUser;
+
+  /** The version of the list of NORMAL Conversations, which every user's list includes. */
+  private volatile long normalConversationsVersion;
+
+  /** The last version handed out. Guarded by this ConversationStore's monitor. */
+  private long lastVersion;
 
   /** This class is a singleton, so its constructor is private. Call getInstance() instead. */
   private ConversationStore(PersistentStorageAgent persistentStorageAgent) {
     this.persistentStorageAgent = persistentStorageAgent;
-    conversations = new ArrayList<>();
+    conversations = Collections.synchronizedList(new ArrayList<>());
+    conversationsByTitle = new ConcurrentHashMap<>();
+    normalConversations = new CopyOnWriteArrayList<>();
+    conversationsByUser = new ConcurrentHashMap<>();
+    directMessagesByUsers = new ConcurrentHashMap<>();
+    versionsByUser = new ConcurrentHashMap<>();
+    normalConversationsVersion = nextVersion();
   }
 
-  /** Access the current set of conversations known to the application. */
+  /**
+   * Access the current set of conversations known to the application. Hold the returned List's
+   * monitor while iterating over it.
+   */
   public List<Conversation> getAllConversations() {
     return conversations;
   }
 
   /** Add a new conversation to the current set of conversations known to the application. */
   public void addConversation(Conversation conversation) {
-    conversations.add(conversation);
+    synchronized (this) {
+      conversations.add(conversation);
+      conversationsByTitle.putIfAbsent(conversation.getTitle(), conversation);
+      indexMembers(conversation);
+    }
     persistentStorageAgent.writeThrough(conversation);
   }
 
-  /** Check whether a Conversation title is already known to the application. */
-  public boolean isTitleTaken(String title) {
-    // This approach will be pretty slow if we have many Conversations.
-    for (Conversation conversation : conversations) {
-      if (conversation.getTitle().equals(title)) {
-        return true;
+  /**
+   * Add a new conversation only if no other conversation has its title. Claiming the title is a
+   * single atomic step, so when concurrent requests try to create the same title exactly one of
+   * them succeeds.
+   *
+   * @return true if the conversation was added, false if its title was already taken
+   */
+  public boolean addConversationIfTitleAvailable(Conversation conversation) {
+    synchronized (this) {
+      if (conversationsByTitle.putIfAbsent(conversation.getTitle(), conversation) != null) {
+        return false;
       }
+      conversations.add(conversation);
+      indexMembers(conversation);
     }
-    return false;
+    persistentStorageAgent.writeThrough(conversation);
+    return true;
   }
 
-  /** Find and return the Conversation with the given title. */
-  public Conversation getConversationWithTitle(String title) {
-    for (Conversation conversation : conversations) {
-      if (conversation.getTitle().equals(title)) {
-        return conversation;
+  /**
+   * Add a new DIRECT conversation only if its two users don't already have one. The check and the
+   * add are a single atomic step, so when concurrent requests start the same Direct Message
+   * exactly one conversation is created.
+   *
+   * @return the new conversation if it was added, otherwise the one the users already have
+   */
+  public Conversation addDirectMessageIfAbsent(Conversation conversation) {
+    List<String> usernames = conversation.getUsers();
+    synchronized (this) {
+      Conversation existing = getDirectMessageWithUsers(usernames.get(0), usernames.get(1));
+      if (existing != null) {
+        return existing;
       }
+      conversations.add(conversation);
+      conversationsByTitle.putIfAbsent(conversation.getTitle(), conversation);
+      indexMembers(conversation);
     }
-    return null;
+    persistentStorageAgent.writeThrough(conversation);
+    return conversation;
+  }
+
+  /** Check whether a Conversation title is already known to the application. */
+  public boolean isTitleTaken(String title) {
+    return conversationsByTitle.containsKey(title);
   }
 
-  /** Find and return a List of Conversations that the user is able to access and chat in */
+  /** Find and return the Conversation with the given title. */
+  public Conversation getConversationWithTitle(String title) {
+    return conversationsByTitle.get(title);
+  }
+
+  /**
+   * Find and return a List of Conversations that the user is able to access and chat in, in the
+   * order they were created. Only the NORMAL Conversations and the user's own Conversations are
+   * examined.
+   */
   public List<Conversation> getConversationsForUser(String username) {
-    // TODO: decide whether or not this is needed (currently filtering conversations in conversations.jsp)
-    List<Conversation> userConversations = new ArrayList<>();
+    List<Conversation> memberConversations = username == null ? null : conversationsByUser.get(username);
+    if (memberConversations == null) {
+      return new ArrayList<>(normalConversations);
+    }
 
-    for (Conversation conversation : conversations) {
-      if (conversation.isUserInConversation(username)) {
-        userConversations.add(conversation);
+    // Both lists are in creation order, so merge them
+    List<Conversation> userConversations =
+        new ArrayList<>(normalConversations.size() + memberConversations.size());
+    int normalIndex = 0;
+    int memberIndex = 0;
+    while (normalIndex < normalConversations.size() && memberIndex < memberConversations.size()) {
+      Conversation normalConversation = normalConversations.get(normalIndex);
+      Conversation memberConversation = memberConversations.get(memberIndex);
+      if (memberConversation.getCreationTime().isBefore(normalConversation.getCreationTime())) {
+        userConversations.add(memberConversation);
+        memberIndex++;
+      } else {
+        userConversations.add(normalConversation);
+        normalIndex++;
       }
     }
-
+    userConversations.addAll(normalConversations.subList(normalIndex, normalConversations.size()));
+    userConversations.addAll(memberConversations.subList(memberIndex, memberConversations.size()));
     return userConversations;
+  }
+
+  /**
+   * Returns the version of the list {@link #getConversationsForUser} returns for the user, which
+   * changes whenever a Conversation is added to that list. Versions are the time of the change in
+   * microseconds since the epoch, bumped as needed so that each change gets a larger version than
+   * the one before it. That makes them cheap to compare and usable as a last-modified time.
+   */
+  public long getVersionForUser(String username) {
+    Long userVersion = username == null ? null : versionsByUser.get(username);
+    long version = normalConversationsVersion;
+    return userVersion == null ? version : Math.max(version, userVersion);
+  }
 
+  /** Hands out the next version. Call this while holding this ConversationStore's monitor. */
+  private long nextVersion() {
+    long now = System.currentTimeMillis() * 1000;
+    lastVersion = Math.max(lastVersion + 1, now);
+    return lastVersion;
   }
 
   /** Find and return a Direct Message conversation that the two users are a part of
@@ -116,38 +242,129 @@ public class ConversationStore {
    * @param username2 username of the second user
    * @return The Conversation if it exists, null otherwise */
   public Conversation getDirectMessageWithUsers(String username1, String username2) {
+    return directMessagesByUsers.get(directMessageKey(username1, username2));
+  }
+
+  /**
+   * Returns the key of the pair of users in the Direct Message index. The key doesn't depend on
+   * the order the users are given in, and '/' can't appear in a username so keys can't collide.
+   */
+  private static String directMessageKey(String username1, String username2) {
+    if (username1.compareTo(username2) > 0) {
+      return username2 + "/" + username1;
+    }
+    return username1 + "/" + username2;
+  }
+
+  /** Sets the List of Conversations stored by this ConversationStore. */
+  public synchronized void setConversations(List<Conversation> conversations) {
+    clearIndexes();
+    this.conversations.addAll(conversations);
     for (Conversation conversation : conversations) {
-      if (conversation.isDirectConversation()) {
-        List<String> usernames = conversation.getUsers();
-        String user1 = usernames.get(0);
-        String user2 = usernames.get(1);
-        if ((user1.equals(username1) && user2.equals(username2)) ||
-                (user1.equals(username2) && user2.equals(username1))) {
-          return conversation;
-        }
-      }
+      conversationsByTitle.putIfAbsent(conversation.getTitle(), conversation);
+      indexMembers(conversation);
     }
+  }
+
+  /**
+   * Adds a Conversation that was just loaded from Datastore, without writing it back. Startup
+   * streams Conversations in through this, oldest first, as they're loaded.
+   */
+  public synchronized void addLoadedConversation(Conversation conversation) {
+    conversations.add(conversation);
+    conversationsByTitle.putIfAbsent(conversation.getTitle(), conversation);
+    indexMembers(conversation);
+  }
 
-    return null;
+  /**
+   * Adds the Conversation to the membership index of each user who can access it, and to the
+   * Direct Message index if it's a DIRECT Conversation.
+   */
+  private void indexMembers(Conversation conversation) {
+    if (conversation.isNormalConversation()) {
+      normalConversations.add(conversation);
+      normalConversationsVersion = nextVersion();
+      return;
+    }
+    for (String username : conversation.getUsers()) {
+      indexMember(conversation, username);
+    }
+    List<String> usernames = conversation.getUsers();
+    if (conversation.isDirectConversation() && usernames.size() >= 2) {
+      directMessagesByUsers.putIfAbsent(
+          directMessageKey(usernames.get(0), usernames.get(1)), conversation);
+    }
+  }
 
+  /**
+   * Adds the Conversation to the membership index of one user, keeping that user's list in creation
+   * order. Conversations are nearly always newer than everything already in the list, so the
+   * search for the position starts at the end.
+   */
+  private void indexMember(Conversation conversation, String username) {
+    List<Conversation> memberConversations =
+        conversationsByUser.computeIfAbsent(username, name -> new CopyOnWriteArrayList<>());
+    int position = memberConversations.size();
+    while (position > 0
+        && memberConversations
+            .get(position - 1)
+            .getCreationTime()
+            .isAfter(conversation.getCreationTime())) {
+      position--;
+    }
+    memberConversations.add(position, conversation);
+    versionsByUser.put(username, nextVersion());
   }
 
-  /** Sets the List of Conversations stored by this ConversationStore. */
-  public void setConversations(List<Conversation> conversations) {
-    this.conversations = conversations;
+  /** Empties the list of Conversations and every index. */
+  private void clearIndexes() {
+    conversations.clear();
+    conversationsByTitle.clear();
+    normalConversations.clear();
+    conversationsByUser.clear();
+    directMessagesByUsers.clear();
+    // every list may have changed, and the version of a user with no entry is this one
+    versionsByUser.clear();
+    normalConversationsVersion = nextVersion();
   }
 
   public int getNumConversations() {
     return conversations.size();
   }
 
-  public void deleteAllConversations() {
-    persistentStorageAgent.deleteAllConversations(conversations);
-    conversations.clear();
+  /**
+   * Deletes every Conversation from this ConversationStore and from Datastore.
+   *
+   * @return the number of Conversations deleted from Datastore
+   */
+  public synchronized int deleteAllConversations() {
+    int deleted = persistentStorageAgent.deleteAllConversations(conversations);
+    clearIndexes();
+    return deleted;
   }
 
-  public void updateConversation(Conversation conversation) {
-    persistentStorageAgent.updateConversation(conversation);
+  /**
+   * Adds several users to an existing Conversation, adds the Conversation to each new member's
+   * entry in the membership index, and saves the new members in a single write. Only the new
+   * members are written, not the whole user list.
+   *
+   * @param usernames usernames of the users to add; ones already in the Conversation are skipped
+   * @return the usernames that were added
+   */
+  public List<String> addUsers(Conversation conversation, Collection<String> usernames) {
+    List<String> added = conversation.addMembers(usernames);
+    if (added.isEmpty()) {
+      return added;
+    }
+    if (!conversation.isNormalConversation()) {
+      synchronized (this) {
+        for (String username : added) {
+          indexMember(conversation, username);
+        }
+      }
+    }
+    persistentStorageAgent.addConversationMembers(conversation, added);
+    return added;
   }
 
 }
\ No newline at end of file
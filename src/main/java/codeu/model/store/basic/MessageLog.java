@@ -0,0 +1,129 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.model.store.basic;
+
+import codeu.model.data.Message;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only log of the Messages in one Conversation. Messages are stored in fixed-size chunks
+ * that never move once written, and the number of Messages is published through a volatile field
+ * after each append. Readers take a snapshot of that count and see a consistent prefix of the log
+ * without locking or copying, while writers append in O(1).
+ */
+class MessageLog {
+
+  /** Each chunk holds 2^CHUNK_BITS Messages. */
+  private static final int CHUNK_BITS = 8;
+
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  /**
+   * The chunks of Messages. Appends only ever fill empty slots, and a longer array is published
+   * when the log outgrows this one, so a reader's copy of the reference stays valid.
+   */
+  private volatile Message[][] chunks = new Message[4][];
+
+  /**
+   * The number of Messages in the log. It's written after everything an append does, so a reader
+   * that reads it first is guaranteed to see that many Messages in {@link #chunks}.
+   */
+  private volatile int size;
+
+  /** Index from Message ID to that Message's position in the log. */
+  private final Map<UUID, Integer> positions = new ConcurrentHashMap<>();
+
+  /**
+   * Appends a Message to the end of the log. Appends to one log are serialized, but they never
+   * block readers.
+   *
+   * @return the position of the Message in the log
+   */
+  synchronized int append(Message message) {
+    int position = size;
+    int chunkIndex = position >>> CHUNK_BITS;
+    Message[][] currentChunks = chunks;
+    if (chunkIndex == currentChunks.length) {
+      Message[][] grownChunks = new Message[currentChunks.length * 2][];
+      System.arraycopy(currentChunks, 0, grownChunks, 0, currentChunks.length);
+      currentChunks = grownChunks;
+    }
+    if (currentChunks[chunkIndex] == null) {
+      currentChunks[chunkIndex] = new Message[CHUNK_SIZE];
+    }
+    currentChunks[chunkIndex][position & CHUNK_MASK] = message;
+    positions.put(message.getId(), position);
+
+    // publish: the chunks first, then the size that makes the new Message visible
+    chunks = currentChunks;
+    size = position + 1;
+    return position;
+  }
+
+  /** Returns the number of Messages in the log. */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the position of the Message with the given ID, or -1 if it isn't in this log.
+   */
+  int positionOf(UUID messageId) {
+    Integer position = positions.get(messageId);
+    return position == null ? -1 : position;
+  }
+
+  /**
+   * Returns a read-only view of the Messages in the log right now. Messages appended later don't
+   * appear in the view, so it can be iterated, searched and sub-listed without coordination.
+   */
+  List<Message> snapshot() {
+    // read the size before the chunks, see the comment on size
+    int snapshotSize = size;
+    return new Snapshot(chunks, snapshotSize);
+  }
+
+  /** A fixed-length prefix of a MessageLog. */
+  private static class Snapshot extends AbstractList<Message> implements RandomAccess {
+
+    private final Message[][] chunks;
+    private final int size;
+
+    Snapshot(Message[][] chunks, int size) {
+      this.chunks = chunks;
+      this.size = size;
+    }
+
+    @Override
+    public Message get(int index) {
+      if (index < 0 || index >= size) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+      }
+      return chunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+}
@@ -15,20 +15,36 @@
 package codeu.model.store.basic;
 
 import codeu.model.data.Message;
+import codeu.model.store.persistence.PersistentDataStoreException;
 import codeu.model.store.persistence.PersistentStorageAgent;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Store class that uses in-memory data structures to hold values and automatically loads from and
  * saves to PersistentStorageAgent. It's a singleton so all servlet classes can access the same
  * instance.
+ *
+ * <p>If the {@code codeu.messages.lazy} system property is true, Messages aren't loaded at startup.
+ * Instead each Conversation's history is loaded the first time it's read, and at most {@code
+ * codeu.messages.cachedConversations} Conversations are kept in memory, evicting the least recently
+ * used one.
  */
 public class MessageStore {
 
   /** Singleton instance of MessageStore. */
-  private static MessageStore instance;
+  private static volatile MessageStore instance;
 
   /**
    * Returns the singleton instance of MessageStore that should be shared between all servlet
@@ -36,7 +52,16 @@ public class MessageStore {
    */
   public static MessageStore getInstance() {
     if (instance == null) {
-      instance = new MessageStore(PersistentStorageAgent.getInstance());
+      synchronized (MessageStore.class) {
+        if (instance == null) {
+          int cachedConversations =
+              Boolean.getBoolean("codeu.messages.lazy")
+                  ? Integer.getInteger(
+                      "codeu.messages.cachedConversations", DEFAULT_CACHED_CONVERSATIONS)
+                  : 0;
+          instance = new MessageStore(PersistentStorageAgent.getInstance(), cachedConversations);
+        }
+      }
     }
     return instance;
   }
@@ -47,60 +72,400 @@ public class MessageStore {
    * @param persistentStorageAgent a mock used for testing
    */
   public static MessageStore getTestInstance(PersistentStorageAgent persistentStorageAgent) {
-    return new MessageStore(persistentStorageAgent);
+    return new MessageStore(persistentStorageAgent, 0);
   }
 
+  /**
+   * Instance getter function used for testing lazy loading. Supply a mock for
+   * PersistentStorageAgent.
+   *
+   * @param persistentStorageAgent a mock used for testing
+   * @param cachedConversations the most Conversations to hold in memory
+   */
+  public static MessageStore getTestInstance(
+      PersistentStorageAgent persistentStorageAgent, int cachedConversations) {
+    return new MessageStore(persistentStorageAgent, cachedConversations);
+  }
+
+  /** Receives the Messages added to a Conversation it subscribed to. */
+  public interface Subscriber {
+
+    /**
+     * Called on the thread adding the Message, right after it's added to this MessageStore. This
+     * holds up the sender and every other Subscriber, so it must not block.
+     */
+    void onMessage(Message message);
+  }
+
+  /** How many Conversations lazy mode holds in memory unless configured otherwise. */
+  static final int DEFAULT_CACHED_CONVERSATIONS = 1000;
+
   /**
    * The PersistentStorageAgent responsible for loading Messages from and saving Messages to
    * Datastore.
    */
   private PersistentStorageAgent persistentStorageAgent;
 
-  /** The in-memory list of Messages. */
-  private List<Message> messages;
+  /**
+   * Index from Conversation ID to the log of Messages in that Conversation, in the order they were
+   * added. In eager mode, writers to different Conversations never contend; in lazy mode they
+   * share a short critical section with eviction. Readers never lock.
+   */
+  private final Map<UUID, MessageLog> messagesByConversation;
+
+  /** The number of Messages in this MessageStore. */
+  private final AtomicInteger numMessages;
+
+  /**
+   * In lazy mode, the most Conversations whose Messages are held in memory. Zero means every
+   * Message is loaded at startup and kept.
+   */
+  private final int cachedConversations;
+
+  /**
+   * In lazy mode, the IDs of the Conversations in messagesByConversation, least recently used
+   * first. Adding past the cachedConversations limit evicts the eldest Conversations; see
+   * evictExcess(). Its monitor guards eviction, and is held while a Message is appended in lazy mode so the append can't land
+   * in a log that was just evicted.
+   */
+  private final Map<UUID, Boolean> recentConversations;
+
+  /**
+   * In lazy mode, the number of Messages added to each Conversation that haven't finished being
+   * written yet. A Conversation with writes in flight isn't evicted, since reloading it from
+   * Datastore would miss them. Only accessed while holding recentConversations' monitor.
+   */
+  private final Map<UUID, Integer> writesInFlight;
+
+  /**
+   * In lazy mode, the loads of Conversations that are being read from Datastore right now. Callers
+   * that miss on the same Conversation wait for the one load instead of starting their own.
+   */
+  private final Map<UUID, CompletableFuture<MessageLog>> loadsInProgress;
+
+  /**
+   * Index from Conversation ID to the Subscribers waiting for its new Messages. Conversations with
+   * no Subscribers have no entry.
+   */
+  private final Map<UUID, Set<Subscriber>> subscribers;
 
   /** This class is a singleton, so its constructor is private. Call getInstance() instead. */
-  private MessageStore(PersistentStorageAgent persistentStorageAgent) {
+  private MessageStore(PersistentStorageAgent persistentStorageAgent, int cachedConversations) {
     this.persistentStorageAgent = persistentStorageAgent;
-    messages = new ArrayList<>();
+    this.cachedConversations = cachedConversations;
+    messagesByConversation = new ConcurrentHashMap<>();
+    numMessages = new AtomicInteger();
+    loadsInProgress = new ConcurrentHashMap<>();
+    subscribers = new ConcurrentHashMap<>();
+    writesInFlight = new HashMap<>();
+    recentConversations = new LinkedHashMap<>(16, 0.75f, true);
   }
 
-  /** Add a new message to the current set of messages known to the application. */
+  /**
+   * Returns true if Messages are loaded one Conversation at a time when first read, rather than
+   * all at startup.
+   */
+  public boolean isLazy() {
+    return cachedConversations > 0;
+  }
+
+  /**
+   * Add a new message to the current set of messages known to the application, and pass it to the
+   * Conversation's Subscribers. In lazy mode the Conversation's history is loaded first, so the new
+   * Message lands after it.
+   */
   public void addMessage(Message message) {
-    messages.add(message);
-    persistentStorageAgent.writeThrough(message);
+    UUID conversationId = message.getConversationId();
+    if (isLazy()) {
+      appendLazily(message);
+    } else {
+      messagesByConversation.computeIfAbsent(conversationId, id -> new MessageLog()).append(message);
+      numMessages.incrementAndGet();
+    }
+    try {
+      Set<Subscriber> conversationSubscribers = subscribers.get(conversationId);
+      if (conversationSubscribers != null) {
+        for (Subscriber subscriber : conversationSubscribers) {
+          subscriber.onMessage(message);
+        }
+      }
+      persistentStorageAgent.writeThrough(message);
+    } finally {
+      if (isLazy()) {
+        synchronized (recentConversations) {
+          writesInFlight.computeIfPresent(
+              conversationId, (id, writes) -> writes == 1 ? null : writes - 1);
+          // the Conversation may have been kept past the limit while its write was in flight
+          evictExcess(null);
+        }
+      }
+    }
   }
 
-  /** Access the current set of Messages within the given Conversation. */
-  public List<Message> getMessagesInConversation(UUID conversationId) {
+  /**
+   * Appends a Message to its Conversation's log in lazy mode, and marks the Conversation as having
+   * a write in flight. The log can be evicted between being fetched and being appended to, so the
+   * append only happens if it's still in memory, and otherwise the Conversation is fetched again.
+   */
+  private void appendLazily(Message message) {
+    UUID conversationId = message.getConversationId();
+    while (true) {
+      MessageLog log = getLog(conversationId);
+      synchronized (recentConversations) {
+        if (messagesByConversation.get(conversationId) == log) {
+          log.append(message);
+          numMessages.incrementAndGet();
+          writesInFlight.merge(conversationId, 1, Integer::sum);
+          return;
+        }
+      }
+    }
+  }
 
-    List<Message> messagesInConversation = new ArrayList<>();
+  /**
+   * Passes every Message added to the Conversation from now on to the Subscriber, until it
+   * unsubscribes. Messages added before this returns may or may not be passed on, so a Subscriber
+   * that also reads the history should read it after subscribing and skip Messages it sees twice.
+   */
+  public void subscribe(UUID conversationId, Subscriber subscriber) {
+    subscribers.compute(
+        conversationId,
+        (id, conversationSubscribers) -> {
+          if (conversationSubscribers == null) {
+            conversationSubscribers = ConcurrentHashMap.newKeySet();
+          }
+          conversationSubscribers.add(subscriber);
+          return conversationSubscribers;
+        });
+  }
 
-    for (Message message : messages) {
-      if (message.getConversationId().equals(conversationId)) {
-        messagesInConversation.add(message);
+  /** Stops passing the Conversation's new Messages to the Subscriber. */
+  public void unsubscribe(UUID conversationId, Subscriber subscriber) {
+    subscribers.computeIfPresent(
+        conversationId,
+        (id, conversationSubscribers) -> {
+          conversationSubscribers.remove(subscriber);
+          return conversationSubscribers.isEmpty() ? null : conversationSubscribers;
+        });
+  }
+
+  /**
+   * Returns the log of the given Conversation. In lazy mode, a Conversation that isn't in memory is
+   * loaded from Datastore, and an empty log is created for a Conversation with no Messages; in
+   * eager mode, that returns null.
+   */
+  private MessageLog getLog(UUID conversationId) {
+    MessageLog log = messagesByConversation.get(conversationId);
+    if (!isLazy()) {
+      return log;
+    }
+    if (log == null) {
+      log = loadConversation(conversationId);
+    }
+    synchronized (recentConversations) {
+      recentConversations.put(conversationId, Boolean.TRUE);
+      evictExcess(conversationId);
+    }
+    return log;
+  }
+
+  /**
+   * Evicts the least recently used Conversations until no more than cachedConversations are in
+   * memory, skipping any with writes in flight. Call this while holding recentConversations'
+   * monitor.
+   *
+   * @param keep a Conversation that was just used and mustn't be evicted, or null
+   */
+  private void evictExcess(UUID keep) {
+    Iterator<UUID> eldest = recentConversations.keySet().iterator();
+    while (recentConversations.size() > cachedConversations && eldest.hasNext()) {
+      UUID conversationId = eldest.next();
+      if (conversationId.equals(keep) || writesInFlight.containsKey(conversationId)) {
+        continue;
+      }
+      eldest.remove();
+      MessageLog evicted = messagesByConversation.remove(conversationId);
+      if (evicted != null) {
+        numMessages.addAndGet(-evicted.size());
+      }
+    }
+  }
+
+  /**
+   * Loads a Conversation's Messages from Datastore into messagesByConversation. If another thread
+   * is already loading the same Conversation, this waits for that load instead.
+   */
+  private MessageLog loadConversation(UUID conversationId) {
+    CompletableFuture<MessageLog> load = new CompletableFuture<>();
+    CompletableFuture<MessageLog> loadInProgress =
+        loadsInProgress.putIfAbsent(conversationId, load);
+    if (loadInProgress != null) {
+      try {
+        return loadInProgress.join();
+      } catch (CompletionException e) {
+        throw new RuntimeException("Failed to load Conversation " + conversationId, e.getCause());
+      }
+    }
+
+    try {
+      // another load may have finished between our miss and claiming this one
+      MessageLog log = messagesByConversation.get(conversationId);
+      if (log == null) {
+        MessageLog loaded = new MessageLog();
+        for (Message message : persistentStorageAgent.loadMessagesInConversation(conversationId)) {
+          loaded.append(message);
+        }
+        log = messagesByConversation.putIfAbsent(conversationId, loaded);
+        if (log == null) {
+          log = loaded;
+          numMessages.addAndGet(loaded.size());
+        }
+      }
+      load.complete(log);
+      return log;
+    } catch (PersistentDataStoreException | RuntimeException e) {
+      load.completeExceptionally(e);
+      throw new RuntimeException("Failed to load Conversation " + conversationId, e);
+    } finally {
+      loadsInProgress.remove(conversationId);
+    }
+  }
+
+  /**
+   * Access the current set of Messages within the given Conversation. The returned List is a
+   * read-only snapshot and is empty if the Conversation has no Messages.
+   */
+  public List<Message> getMessagesInConversation(UUID conversationId) {
+    MessageLog log = getLog(conversationId);
+    if (log == null) {
+      return Collections.emptyList();
+    }
+    return log.snapshot();
+  }
+
+  /**
+   * Access a window of the Messages within the given Conversation: the newest {@code limit}
+   * Messages that were added before the Message with the given ID, oldest first. Paging by position
+   * rather than by creation time means Messages that share a timestamp are never skipped. If the
+   * ID is null, the newest Messages are returned; if it isn't a Message in this Conversation, none
+   * are. The returned List is a read-only snapshot.
+   *
+   * @param conversationId the ID of the Conversation to read from
+   * @param beforeMessageId only Messages added before this one are returned; null means no bound
+   * @param limit the maximum number of Messages to return
+   */
+  public List<Message> getMessagesBefore(UUID conversationId, UUID beforeMessageId, int limit) {
+    MessageLog log = getLog(conversationId);
+    if (log == null) {
+      return Collections.emptyList();
+    }
+    List<Message> messagesInConversation = log.snapshot();
+    int end = messagesInConversation.size();
+    if (beforeMessageId != null) {
+      int position = log.positionOf(beforeMessageId);
+      if (position < 0 || position >= end) {
+        return Collections.emptyList();
       }
+      end = position;
     }
+    int start = Math.max(0, end - limit);
+    return messagesInConversation.subList(start, end);
+  }
 
-    return messagesInConversation;
+  /**
+   * Access the Messages within the given Conversation that were added after the Message with the
+   * given ID, oldest first. This is a single index lookup, so it's cheap enough to poll. If the ID
+   * is null or isn't a Message in this Conversation, every Message in the Conversation is returned.
+   * The returned List is a read-only snapshot.
+   */
+  public List<Message> getMessagesSince(UUID conversationId, UUID messageId) {
+    MessageLog log = getLog(conversationId);
+    if (log == null) {
+      return Collections.emptyList();
+    }
+    List<Message> messagesInConversation = log.snapshot();
+    int position = messageId == null ? -1 : log.positionOf(messageId);
+    if (position < 0 || position >= messagesInConversation.size()) {
+      return messagesInConversation;
+    }
+    return messagesInConversation.subList(position + 1, messagesInConversation.size());
   }
 
   /** Sets the List of Messages stored by this MessageStore. */
   public void setMessages(List<Message> messages) {
-    this.messages = messages;
+    clearIndexes();
+    for (Message message : messages) {
+      indexMessage(message);
+    }
+  }
+
+  /**
+   * Adds a Message that was just loaded from Datastore, without writing it back. Startup streams
+   * Messages in through this, oldest first, as they're loaded.
+   */
+  public void addLoadedMessage(Message message) {
+    indexMessage(message);
+  }
+
+  /** Appends the Message to the log of the Conversation it belongs to. */
+  private void indexMessage(Message message) {
+    UUID conversationId = message.getConversationId();
+    messagesByConversation.computeIfAbsent(conversationId, id -> new MessageLog()).append(message);
+    numMessages.incrementAndGet();
+    if (isLazy()) {
+      synchronized (recentConversations) {
+        recentConversations.put(conversationId, Boolean.TRUE);
+        evictExcess(conversationId);
+      }
+    }
+  }
+
+  /** Empties every index. Messages being added concurrently may or may not survive. */
+  private void clearIndexes() {
+    synchronized (recentConversations) {
+      recentConversations.clear();
+    }
+    messagesByConversation.clear();
+    numMessages.set(0);
   }
 
+  /**
+   * Returns a snapshot of every Message in this MessageStore, grouped by Conversation. In lazy
+   * mode, that's only the Conversations currently in memory.
+   */
   public List<Message> getMessages() {
+    List<Message> messages = new ArrayList<>(numMessages.get());
+    for (MessageLog log : messagesByConversation.values()) {
+      messages.addAll(log.snapshot());
+    }
     return messages;
   }
 
+  /**
+   * Returns the IDs of the Conversations with Messages in memory. In lazy mode, that's only the
+   * Conversations currently cached.
+   */
+  public List<UUID> getConversationIds() {
+    return new ArrayList<>(messagesByConversation.keySet());
+  }
+
+  /** Returns the number of Messages in memory, which in lazy mode isn't every Message. */
   public int getNumMessages() {
-    return messages.size();
+    return numMessages.get();
   }
 
-  public void deleteAllMessages() {
-    persistentStorageAgent.deleteAllMessages(messages);
-    messages.clear();
+  /**
+   * Deletes every Message from this MessageStore and from Datastore.
+   *
+   * @return the number of Messages deleted from Datastore
+   */
+  public int deleteAllMessages() {
+    int deleted =
+        isLazy()
+            ? persistentStorageAgent.deleteAllStoredMessages()
+            : persistentStorageAgent.deleteAllMessages(getMessages());
+    clearIndexes();
+    return deleted;
   }
 
 }
\ No newline at end of file
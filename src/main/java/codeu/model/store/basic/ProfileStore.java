@@ -1,6 +1,8 @@
 package codeu.model.store.basic;
 
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import codeu.model.data.Profile;
 import codeu.model.store.persistence.PersistentStorageAgent;
@@ -12,15 +14,15 @@ import codeu.model.store.persistence.PersistentStorageAgent;
  */
 public class ProfileStore {
 	/* Singleton instance of ProfileStore */
-	private static ProfileStore instance;
+	private static volatile ProfileStore instance;
 	
 	/* The PersistentStorgeAgent responsible for loading Profiles from and saving Profiles to 
 	 * Datastore. 
 	 */
 	private PersistentStorageAgent persistentStorageAgent;
 	
-	/* In-memory hash table of profiles */
-	private HashMap<String, String> profiles;
+	/* In-memory hash table of profiles, safe for concurrent readers and writers */
+	private volatile Map<String, String> profiles;
 
 	/**
 	 * 
@@ -28,7 +30,11 @@ public class ProfileStore {
 	 */
 	public static ProfileStore getInstance() {
 		if (instance == null) {
-			instance = new ProfileStore(PersistentStorageAgent.getInstance());
+			synchronized (ProfileStore.class) {
+				if (instance == null) {
+					instance = new ProfileStore(PersistentStorageAgent.getInstance());
+				}
+			}
 		}
 		return instance;
 	} 
@@ -49,7 +55,7 @@ public class ProfileStore {
 	 */
 	private ProfileStore(PersistentStorageAgent persistentStorageAgent) {
 		this.persistentStorageAgent = persistentStorageAgent;
-		profiles = new HashMap<>();
+		profiles = new ConcurrentHashMap<>();
 	}
 
 	/**
@@ -57,7 +63,7 @@ public class ProfileStore {
 	 * @param profile the profile to be added
 	 */
 	public void addProfile(Profile profile) {
-		profiles.put(profile.getProfileOwner(), profile.getProfileText());
+		putProfileText(profiles, profile.getProfileOwner(), profile.getProfileText());
 		persistentStorageAgent.writeThrough(profile);
 	}
 	
@@ -76,13 +82,36 @@ public class ProfileStore {
 	 * @param text the new About Me section text
 	 */
 	public void setProfileText(String profileOwner, String text) {
-		profiles.put(profileOwner, text);
+		putProfileText(profiles, profileOwner, text);
+	}
+
+	/**
+	 * @return a copy of the hash table of profiles stored by this ProfileStore
+	 */
+	public HashMap<String, String> getProfiles() {
+		return new HashMap<>(profiles);
 	}
 
 	/**
 	 * Sets the hash table of profiles stored by this ProfileStore 
 	 */
 	public void setProfiles(HashMap<String, String> profiles) {
-		this.profiles = profiles;
+		Map<String, String> concurrentProfiles = new ConcurrentHashMap<>();
+		for (Map.Entry<String, String> profile : profiles.entrySet()) {
+			putProfileText(concurrentProfiles, profile.getKey(), profile.getValue());
+		}
+		this.profiles = concurrentProfiles;
+	}
+
+	/**
+	 * ConcurrentHashMap can't hold null, so a profile with no text is stored as absent, which
+	 * getProfileText reports as null just like before.
+	 */
+	private static void putProfileText(Map<String, String> profiles, String profileOwner, String text) {
+		if (text == null) {
+			profiles.remove(profileOwner);
+		} else {
+			profiles.put(profileOwner, text);
+		}
 	}
 }
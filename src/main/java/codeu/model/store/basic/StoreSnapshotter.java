@@ -0,0 +1,352 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.model.store.basic;
+
+import codeu.model.data.Conversation;
+import codeu.model.data.Message;
+import codeu.model.data.User;
+import codeu.model.store.persistence.PersistentDataStoreException;
+import codeu.model.store.persistence.PersistentStorageAgent;
+import codeu.model.store.persistence.SnapshotFile;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Saves the contents of the stores to a local {@link SnapshotFile} and restores them from it, so a
+ * restarted server only has to query Datastore for what changed since the snapshot was taken
+ * rather than every entity.
+ *
+ * <p>A snapshot is a copy of one server's memory, so it only knows about writes that server made or
+ * loaded. Entities deleted from Datastore after a snapshot was taken come back when it's restored;
+ * the admin page's deletes remove the snapshot for that reason.
+ */
+public class StoreSnapshotter {
+
+  /** Default time between periodic snapshots. */
+  static final int DEFAULT_INTERVAL_MINUTES = 10;
+
+  /** Default allowance for clock skew and writes in flight when the snapshot was taken. */
+  static final int DEFAULT_SAFETY_MARGIN_SECONDS = 300;
+
+  /** Singleton instance of StoreSnapshotter. */
+  private static volatile StoreSnapshotter instance;
+
+  /**
+   * Returns the singleton instance of StoreSnapshotter, or null if the {@code codeu.snapshot.path}
+   * system property doesn't name a snapshot file. Do not call this function from a test; use
+   * getTestInstance() instead.
+   */
+  public static StoreSnapshotter getInstance() {
+    String path = System.getProperty("codeu.snapshot.path", "");
+    if (path.isEmpty()) {
+      return null;
+    }
+    if (instance == null) {
+      synchronized (StoreSnapshotter.class) {
+        if (instance == null) {
+          instance =
+              new StoreSnapshotter(
+                  Paths.get(path),
+                  Duration.ofSeconds(
+                      Integer.getInteger(
+                          "codeu.snapshot.safetyMarginSeconds", DEFAULT_SAFETY_MARGIN_SECONDS)),
+                  PersistentStorageAgent.getInstance(),
+                  UserStore.getInstance(),
+                  ConversationStore.getInstance(),
+                  MessageStore.getInstance(),
+                  ProfileStore.getInstance());
+        }
+      }
+    }
+    return instance;
+  }
+
+  /** Instance getter function used for testing. Supply stores backed by a mock agent. */
+  public static StoreSnapshotter getTestInstance(
+      Path path,
+      Duration safetyMargin,
+      PersistentStorageAgent persistentStorageAgent,
+      UserStore userStore,
+      ConversationStore conversationStore,
+      MessageStore messageStore,
+      ProfileStore profileStore) {
+    return new StoreSnapshotter(
+        path,
+        safetyMargin,
+        persistentStorageAgent,
+        userStore,
+        conversationStore,
+        messageStore,
+        profileStore);
+  }
+
+  /** Returns the configured time between periodic snapshots, in minutes. */
+  public static int getIntervalMinutes() {
+    return Integer.getInteger("codeu.snapshot.intervalMinutes", DEFAULT_INTERVAL_MINUTES);
+  }
+
+  private final Path path;
+
+  /**
+   * How far before the snapshot's watermark the Datastore queries start. Entities in that window
+   * may be in both the snapshot and the query results, so restoring drops duplicates by ID.
+   */
+  private final Duration safetyMargin;
+
+  private final PersistentStorageAgent persistentStorageAgent;
+  private final UserStore userStore;
+  private final ConversationStore conversationStore;
+  private final MessageStore messageStore;
+  private final ProfileStore profileStore;
+
+  /** This class is a singleton, so its constructor is private. Call getInstance() instead. */
+  private StoreSnapshotter(
+      Path path,
+      Duration safetyMargin,
+      PersistentStorageAgent persistentStorageAgent,
+      UserStore userStore,
+      ConversationStore conversationStore,
+      MessageStore messageStore,
+      ProfileStore profileStore) {
+    this.path = path;
+    this.safetyMargin = safetyMargin;
+    this.persistentStorageAgent = persistentStorageAgent;
+    this.userStore = userStore;
+    this.conversationStore = conversationStore;
+    this.messageStore = messageStore;
+    this.profileStore = profileStore;
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  /**
+   * Writes the current contents of the stores to the snapshot file. In lazy mode only some
+   * Conversations' Messages are in memory, so the snapshot leaves Messages out.
+   */
+  public synchronized void save() throws IOException {
+    // taken first, so anything added while the stores are copied is also newer than the watermark
+    Instant watermark = Instant.now();
+    List<User> users = userStore.getAllUsers();
+    List<Conversation> allConversations = conversationStore.getAllConversations();
+    List<Conversation> conversations;
+    synchronized (allConversations) {
+      conversations = new ArrayList<>(allConversations);
+    }
+    List<UUID> messageConversationIds =
+        messageStore.isLazy() ? null : messageStore.getConversationIds();
+    Map<String, String> profiles = profileStore.getProfiles();
+
+    SnapshotFile.write(
+        path,
+        new SnapshotFile.Contents() {
+          @Override
+          public Instant getWatermark() {
+            return watermark;
+          }
+
+          @Override
+          public List<User> getUsers() {
+            return users;
+          }
+
+          @Override
+          public List<Conversation> getConversations() {
+            return conversations;
+          }
+
+          @Override
+          public Iterable<UUID> getMessageConversationIds() {
+            return messageConversationIds;
+          }
+
+          @Override
+          public List<Message> getMessagesInConversation(UUID conversationId) {
+            return messageStore.getMessagesInConversation(conversationId);
+          }
+
+          @Override
+          public Map<String, String> getProfiles() {
+            return profiles;
+          }
+        });
+  }
+
+  /**
+   * Fills the stores from the snapshot file plus everything created or changed in Datastore since
+   * the snapshot was taken. The stores should be empty. If this throws, they may be partly filled
+   * and should be cleared before loading them another way.
+   *
+   * @return false if there is no snapshot file, in which case nothing is loaded
+   * @throws IOException if the snapshot file couldn't be read
+   * @throws PersistentDataStoreException if the changes couldn't be loaded from Datastore
+   */
+  public boolean restore() throws IOException, PersistentDataStoreException {
+    if (!Files.exists(path)) {
+      return false;
+    }
+    try (SnapshotFile.Reader reader = SnapshotFile.Reader.open(path)) {
+      Instant since = reader.getWatermark().minus(safetyMargin);
+
+      List<User> changedUsers = new ArrayList<>();
+      persistentStorageAgent.loadUsersUpdatedSince(since, changedUsers::add);
+      DeltaMerger<User> users =
+          new DeltaMerger<>(
+              changedUsers, User::getId, User::getCreationTime, userStore::addLoadedUser);
+      reader.readUsers(users);
+      users.finish();
+
+      List<Conversation> changedConversations = new ArrayList<>();
+      persistentStorageAgent.loadConversationsUpdatedSince(since, changedConversations::add);
+      DeltaMerger<Conversation> conversations =
+          new DeltaMerger<>(
+              changedConversations,
+              Conversation::getId,
+              Conversation::getCreationTime,
+              conversationStore::addLoadedConversation);
+      reader.readConversations(conversations);
+      conversations.finish();
+
+      restoreMessages(reader, since);
+
+      HashMap<String, String> profiles = new HashMap<>();
+      reader.readProfiles(profiles::put);
+      profiles.putAll(persistentStorageAgent.loadProfilesUpdatedSince(since));
+      profileStore.setProfiles(profiles);
+    }
+    return true;
+  }
+
+  /**
+   * Restores the Messages section. In lazy mode Messages are loaded when first read, so it's
+   * skipped; if the snapshot was written in lazy mode and this server is eager, every Message is
+   * loaded from Datastore instead.
+   */
+  private void restoreMessages(SnapshotFile.Reader reader, Instant since)
+      throws IOException, PersistentDataStoreException {
+    if (messageStore.isLazy()) {
+      reader.readMessages((conversationId, messages) -> {});
+      return;
+    }
+
+    Map<UUID, List<Message>> newMessages = new LinkedHashMap<>();
+    persistentStorageAgent.loadMessagesCreatedSince(
+        since,
+        message ->
+            newMessages
+                .computeIfAbsent(message.getConversationId(), id -> new ArrayList<>())
+                .add(message));
+
+    boolean hadMessages =
+        reader.readMessages(
+            (conversationId, messages) -> {
+              List<Message> newInConversation = newMessages.remove(conversationId);
+              if (newInConversation == null) {
+                messages.forEach(messageStore::addLoadedMessage);
+                return;
+              }
+              DeltaMerger<Message> merger =
+                  new DeltaMerger<>(
+                      newInConversation,
+                      Message::getId,
+                      Message::getCreationTime,
+                      messageStore::addLoadedMessage);
+              messages.forEach(merger);
+              merger.finish();
+            });
+
+    if (!hadMessages) {
+      persistentStorageAgent.loadMessages(messageStore::addLoadedMessage);
+      return;
+    }
+    for (List<Message> messages : newMessages.values()) {
+      messages.forEach(messageStore::addLoadedMessage);
+    }
+  }
+
+  /** Deletes the snapshot file, if there is one. */
+  public synchronized void delete() throws IOException {
+    Files.deleteIfExists(path);
+  }
+
+  /**
+   * Passes values read from a snapshot, which are in ascending order by time, on to a store, with
+   * the values loaded from Datastore merged in by time. A loaded value replaces the snapshot's
+   * value with the same ID.
+   */
+  private static final class DeltaMerger<T> implements Consumer<T> {
+
+    private final Set<UUID> loadedIds = new HashSet<>();
+    private final Iterator<T> loaded;
+    private final Function<T, UUID> id;
+    private final Function<T, Instant> time;
+    private final Consumer<T> store;
+    private T nextLoaded;
+
+    DeltaMerger(
+        List<T> loaded, Function<T, UUID> id, Function<T, Instant> time, Consumer<T> store) {
+      loaded.sort(Comparator.comparing(time));
+      for (T value : loaded) {
+        loadedIds.add(id.apply(value));
+      }
+      this.loaded = loaded.iterator();
+      this.id = id;
+      this.time = time;
+      this.store = store;
+      advance();
+    }
+
+    @Override
+    public void accept(T snapshotValue) {
+      Instant snapshotTime = time.apply(snapshotValue);
+      while (nextLoaded != null && time.apply(nextLoaded).isBefore(snapshotTime)) {
+        store.accept(nextLoaded);
+        advance();
+      }
+      if (!loadedIds.contains(id.apply(snapshotValue))) {
+        store.accept(snapshotValue);
+      }
+    }
+
+    /** Passes on the loaded values newer than every snapshot value. */
+    void finish() {
+      while (nextLoaded != null) {
+        store.accept(nextLoaded);
+        advance();
+      }
+    }
+
+    private void advance() {
+      nextLoaded = loaded.hasNext() ? loaded.next() : null;
+    }
+  }
+}
@@ -17,8 +17,11 @@ package codeu.model.store.basic;
 import codeu.model.data.User;
 import codeu.model.store.persistence.PersistentStorageAgent;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Store class that uses in-memory data structures to hold values and automatically loads from and
@@ -28,7 +31,7 @@ import java.util.UUID;
 public class UserStore {
 
   /** Singleton instance of UserStore. */
-  private static UserStore instance;
+  private static volatile UserStore instance;
 
   /**
    * Returns the singleton instance of UserStore that should be shared between all servlet classes.
@@ -36,7 +39,11 @@ public class UserStore {
    */
   public static UserStore getInstance() {
     if (instance == null) {
-      instance = new UserStore(PersistentStorageAgent.getInstance());
+      synchronized (UserStore.class) {
+        if (instance == null) {
+          instance = new UserStore(PersistentStorageAgent.getInstance());
+        }
+      }
     }
     return instance;
   }
@@ -55,13 +62,24 @@ public class UserStore {
    */
   private PersistentStorageAgent persistentStorageAgent;
 
-  /** The in-memory list of Users. */
-  private List<User> users;
+  /**
+   * The in-memory list of Users. Like the indexes below, it's only modified while holding this
+   * UserStore's monitor, and can be read without it.
+   */
+  private final List<User> users;
+
+  /** Index from username to User. */
+  private final Map<String, User> usersByName;
+
+  /** Index from User ID to User. */
+  private final Map<UUID, User> usersById;
 
   /** This class is a singleton, so its constructor is private. Call getInstance() instead. */
   private UserStore(PersistentStorageAgent persistentStorageAgent) {
     this.persistentStorageAgent = persistentStorageAgent;
-    users = new ArrayList<>();
+    users = Collections.synchronizedList(new ArrayList<>());
+    usersByName = new ConcurrentHashMap<>();
+    usersById = new ConcurrentHashMap<>();
   }
 
   /**
@@ -70,13 +88,10 @@ public class UserStore {
    * @return null if username does not match any existing User.
    */
   public User getUser(String username) {
-    // This approach will be pretty slow if we have many users.
-    for (User user : users) {
-      if (user.getName().equals(username)) {
-        return user;
-      }
+    if (username == null) {
+      return null;
     }
-    return null;
+    return usersByName.get(username);
   }
 
   /**
@@ -85,12 +100,10 @@ public class UserStore {
    * @return null if the UUID does not match any existing User.
    */
   public User getUser(UUID id) {
-    for (User user : users) {
-      if (user.getId().equals(id)) {
-        return user;
-      }
+    if (id == null) {
+      return null;
     }
-    return null;
+    return usersById.get(id);
   }
 
   /**
@@ -98,10 +111,31 @@ public class UserStore {
    * to add a new user, not to update an existing user.
    */
   public void addUser(User user) {
-    users.add(user);
+    synchronized (this) {
+      users.add(user);
+      indexUser(user);
+    }
     persistentStorageAgent.writeThrough(user);
   }
 
+  /**
+   * Add a new user only if no other user has their name. Claiming the name is a single atomic step,
+   * so when concurrent requests register the same name exactly one of them succeeds.
+   *
+   * @return true if the user was added, false if their name was already taken
+   */
+  public boolean addUserIfNameAvailable(User user) {
+    synchronized (this) {
+      if (usersByName.putIfAbsent(user.getName(), user) != null) {
+        return false;
+      }
+      users.add(user);
+      usersById.putIfAbsent(user.getId(), user);
+    }
+    persistentStorageAgent.writeThrough(user);
+    return true;
+  }
+
   /**
    * Update an existing User.
    */
@@ -109,31 +143,68 @@ public class UserStore {
     persistentStorageAgent.writeThrough(user);
   }
 
+  /** Returns a copy of the current set of Users known to the application. */
+  public List<User> getAllUsers() {
+    synchronized (users) {
+      return new ArrayList<>(users);
+    }
+  }
+
   /** Return true if the given username is known to the application. */
   public boolean isUserRegistered(String username) {
-    for (User user : users) {
-      if (user.getName().equals(username)) {
-        return true;
-      }
-    }
-    return false;
+    return getUser(username) != null;
   }
 
   /**
    * Sets the List of Users stored by this UserStore. This should only be called once, when the data
    * is loaded from Datastore.
    */
-  public void setUsers(List<User> users) {
-    this.users = users;
+  public synchronized void setUsers(List<User> users) {
+    clearIndexes();
+    this.users.addAll(users);
+    for (User user : users) {
+      indexUser(user);
+    }
+  }
+
+  /**
+   * Adds a User that was just loaded from Datastore, without writing it back. Startup streams Users
+   * in through this as they're loaded, so the whole kind is never held in a List first.
+   */
+  public synchronized void addLoadedUser(User user) {
+    users.add(user);
+    indexUser(user);
+  }
+
+  /**
+   * Adds the User to the name and ID indexes. If two Users somehow share a name or ID, the one
+   * added first wins, which matches what a scan of {@link #users} would find.
+   */
+  private void indexUser(User user) {
+    usersByName.putIfAbsent(user.getName(), user);
+    usersById.putIfAbsent(user.getId(), user);
   }
 
   public int getNumUsers() {
     return users.size();
   }
 
-  public void deleteAllUsers() {
-    persistentStorageAgent.deleteAllUsers(users);
+  /** Empties the list of Users and both indexes. */
+  private void clearIndexes() {
     users.clear();
+    usersByName.clear();
+    usersById.clear();
+  }
+
+  /**
+   * Deletes every User from this UserStore and from Datastore.
+   *
+   * @return the number of Users deleted from Datastore
+   */
+  public synchronized int deleteAllUsers() {
+    int deleted = persistentStorageAgent.deleteAllUsers(users);
+    clearIndexes();
+    return deleted;
   }
 
 }
@@ -0,0 +1,145 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.model.store.persistence;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.ShortBlob;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes and decodes the properties of the entities PersistentDataStore saves.
+ *
+ * <p>Entities used to store every UUID as a string and every creation time as an ISO-8601 string,
+ * which have to be parsed on every load. The current schema stores UUIDs as 16-byte ShortBlobs and
+ * creation times as a long count of microseconds since the epoch, under new property names so the
+ * two formats can be told apart and queried separately. Readers accept either format; {@link
+ * #toCurrentSchema} rewrites a legacy entity in the current one. Entity keys are unchanged.
+ */
+final class EntitySchema {
+
+  /** Legacy creation time property, an ISO-8601 string. */
+  static final String LEGACY_CREATION_TIME = "creation_time";
+
+  /** Current creation time property, microseconds since the epoch. */
+  static final String CREATION_MICROS = "creation_micros";
+
+  /**
+   * Last update time property, microseconds since the epoch, on kinds whose entities change after
+   * they're created. Entities last written before it was introduced don't have it.
+   */
+  static final String UPDATED_MICROS = "updated_micros";
+
+  /** Pairs of legacy string UUID properties and the ShortBlob properties that replace them. */
+  private static final String[][] UUID_PROPERTIES = {
+    {"uuid", "id"},
+    {"conv_uuid", "conv_id"},
+    {"author_uuid", "author_id"},
+    {"owner_uuid", "owner_id"},
+  };
+
+  private EntitySchema() {}
+
+  /** Returns the 16-byte big-endian encoding of a UUID. */
+  static ShortBlob toBlob(UUID uuid) {
+    return new ShortBlob(
+        ByteBuffer.allocate(16)
+            .putLong(uuid.getMostSignificantBits())
+            .putLong(uuid.getLeastSignificantBits())
+            .array());
+  }
+
+  static UUID fromBlob(ShortBlob blob) {
+    ByteBuffer bytes = ByteBuffer.wrap(blob.getBytes());
+    return new UUID(bytes.getLong(), bytes.getLong());
+  }
+
+  static long toMicros(Instant instant) {
+    return TimeUnit.SECONDS.toMicros(instant.getEpochSecond())
+        + TimeUnit.NANOSECONDS.toMicros(instant.getNano());
+  }
+
+  static Instant fromMicros(long micros) {
+    return Instant.ofEpochSecond(
+        Math.floorDiv(micros, 1000000),
+        TimeUnit.MICROSECONDS.toNanos(Math.floorMod(micros, 1000000)));
+  }
+
+  /**
+   * Reads a UUID property in either format.
+   *
+   * @param blobProperty the current property name
+   * @param legacyProperty the legacy property name
+   */
+  static UUID readUuid(Entity entity, String blobProperty, String legacyProperty) {
+    Object blob = entity.getProperty(blobProperty);
+    if (blob != null) {
+      return fromBlob((ShortBlob) blob);
+    }
+    return UUID.fromString((String) entity.getProperty(legacyProperty));
+  }
+
+  /** Reads the creation time in either format. */
+  static Instant readCreationTime(Entity entity) {
+    Object micros = entity.getProperty(CREATION_MICROS);
+    if (micros != null) {
+      return fromMicros((Long) micros);
+    }
+    return Instant.parse((String) entity.getProperty(LEGACY_CREATION_TIME));
+  }
+
+  /** Sets a UUID property in the current format. */
+  static void setUuid(Entity entity, String blobProperty, UUID uuid) {
+    entity.setProperty(blobProperty, toBlob(uuid));
+  }
+
+  /** Sets the creation time in the current format. */
+  static void setCreationTime(Entity entity, Instant creationTime) {
+    entity.setProperty(CREATION_MICROS, toMicros(creationTime));
+  }
+
+  /** Sets the last update time. */
+  static void setUpdateTime(Entity entity, Instant updateTime) {
+    entity.setProperty(UPDATED_MICROS, toMicros(updateTime));
+  }
+
+  /** Returns true if the entity still has properties in the legacy format. */
+  static boolean isLegacy(Entity entity) {
+    return entity.hasProperty(LEGACY_CREATION_TIME);
+  }
+
+  /**
+   * Returns a copy of a legacy entity with the same key, with every legacy property converted to
+   * the current format and all other properties left as they are.
+   */
+  static Entity toCurrentSchema(Entity legacyEntity) {
+    Entity entity = legacyEntity.clone();
+    for (String[] uuidProperty : UUID_PROPERTIES) {
+      Object legacyValue = entity.getProperty(uuidProperty[0]);
+      if (legacyValue != null) {
+        setUuid(entity, uuidProperty[1], UUID.fromString((String) legacyValue));
+        entity.removeProperty(uuidProperty[0]);
+      }
+    }
+    Object legacyCreationTime = entity.getProperty(LEGACY_CREATION_TIME);
+    if (legacyCreationTime != null) {
+      setCreationTime(entity, Instant.parse((String) legacyCreationTime));
+      entity.removeProperty(LEGACY_CREATION_TIME);
+    }
+    return entity;
+  }
+}
@@ -0,0 +1,976 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.model.store.persistence;
+
+import codeu.model.data.Conversation;
+import codeu.model.data.Conversation.ConversationType;
+import codeu.model.data.Message;
+import codeu.model.data.Profile;
+import codeu.model.data.User;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * StorageBackend that appends every write to log files in a local directory, so the application
+ * can run, and be load tested, without App Engine.
+ *
+ * <p>The log is split into numbered segment files; once a segment reaches the configured size,
+ * writes move on to the next one. Each record is a 4-byte payload length, the CRC32 of the payload,
+ * then the payload: a type byte followed by the written object or the IDs being deleted. Opening
+ * the log replays every segment. A bad record that runs to the end of the last segment was being
+ * written when the process died, so the segment is truncated there; a bad record anywhere else,
+ * including a checksum failure with whole records after it, means the log is corrupt and it won't
+ * open.
+ *
+ * <p>Users, Conversations and profiles are few and are overwritten in place, so the latest version
+ * of each is kept in memory. Messages are only indexed by position and are read back from the
+ * segments when they're loaded.
+ *
+ * <p>Writes block until they're on disk. Concurrent writers share fsyncs: whichever thread syncs
+ * first covers every record appended before it started, and the others find their records already
+ * synced. Nothing is ever compacted, so deleted and overwritten records take up space until the
+ * directory is removed.
+ */
+public class LogStorageBackend implements StorageBackend {
+
+  static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+
+  private static final byte PUT_USER = 1;
+  private static final byte PUT_CONVERSATION = 2;
+  private static final byte PUT_MESSAGE = 3;
+  private static final byte PUT_PROFILE = 4;
+  private static final byte DELETE_USERS = 5;
+  private static final byte DELETE_CONVERSATIONS = 6;
+  private static final byte DELETE_MESSAGES = 7;
+  private static final byte DELETE_ALL_MESSAGES = 8;
+  private static final byte ADD_MEMBERS = 9;
+
+  /** Payload length and CRC32. */
+  private static final int HEADER_BYTES = 8;
+
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  /**
+   * Opens the log configured by these system properties:
+   *
+   * <ul>
+   *   <li>{@code codeu.storage.log.dir}: the directory holding the segment files
+   *   <li>{@code codeu.storage.log.segmentBytes}: the size at which a new segment is started
+   *   <li>{@code codeu.storage.log.fsync}: false to skip fsyncs, for benchmarks that don't need
+   *       writes to survive a crash
+   * </ul>
+   */
+  static LogStorageBackend fromSystemProperties() throws IOException {
+    return open(
+        Paths.get(System.getProperty("codeu.storage.log.dir", "codeu-data")),
+        Long.getLong("codeu.storage.log.segmentBytes", DEFAULT_SEGMENT_BYTES),
+        Boolean.parseBoolean(System.getProperty("codeu.storage.log.fsync", "true")));
+  }
+
+  /**
+   * Opens the log in the given directory, creating it if needed, and replays it.
+   *
+   * @param segmentBytes the size at which a new segment is started
+   * @param fsync whether writes wait for an fsync
+   */
+  public static LogStorageBackend open(Path directory, long segmentBytes, boolean fsync)
+      throws IOException {
+    // record positions keep the offset within a segment in 32 bits
+    if (segmentBytes <= 0 || segmentBytes > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Segment size out of range: " + segmentBytes);
+    }
+    Files.createDirectories(directory);
+    LogStorageBackend backend = new LogStorageBackend(directory, segmentBytes, fsync);
+    backend.replay();
+    return backend;
+  }
+
+  /** A value and the time it was last written, for the updated-since loads. */
+  private static final class Stamped<T> {
+    final T value;
+    final long updatedMicros;
+
+    Stamped(T value, long updatedMicros) {
+      this.value = value;
+      this.updatedMicros = updatedMicros;
+    }
+  }
+
+  /** Receives the records read from a segment. */
+  private interface RecordVisitor {
+    void visit(long position, byte[] payload) throws IOException;
+  }
+
+  private final Path directory;
+  private final long segmentBytes;
+  private final boolean fsync;
+
+  // Everything below, except syncedRecords, is guarded by this LogStorageBackend's monitor.
+
+  private final Map<UUID, Stamped<User>> users = new LinkedHashMap<>();
+  private final Map<UUID, Stamped<Conversation>> conversations = new LinkedHashMap<>();
+  private final Map<String, Stamped<String>> profiles = new HashMap<>();
+
+  /** Index from Conversation ID to the positions of its Messages' records, oldest first. */
+  private final Map<UUID, List<Long>> messagePositions = new HashMap<>();
+
+  /** IDs of the Messages deleted since messagesStart. */
+  private final Set<UUID> deletedMessageIds = new HashSet<>();
+
+  /** Where scans for Messages start; every Message before it has been deleted. */
+  private long messagesStart;
+
+  /** The number of Messages written and not yet deleted. */
+  private int liveMessages;
+
+  private int segment;
+  private FileChannel channel;
+  private long segmentSize;
+  private boolean closed;
+
+  /** The number of records appended since the log was opened. */
+  private long appendedRecords;
+
+  /** Held while syncing; a sync covers every record appended before it started. */
+  private final Object syncLock = new Object();
+
+  /** The number of records known to be on disk. Guarded by syncLock. */
+  private long syncedRecords;
+
+  private LogStorageBackend(Path directory, long segmentBytes, boolean fsync) {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.fsync = fsync;
+  }
+
+  private static long position(int segment, long offset) {
+    return ((long) segment << 32) | offset;
+  }
+
+  private static int segmentOf(long position) {
+    return (int) (position >>> 32);
+  }
+
+  private static long offsetOf(long position) {
+    return position & 0xffffffffL;
+  }
+
+  private Path segmentPath(int segment) {
+    return directory.resolve(String.format("%08d%s", segment, SEGMENT_SUFFIX));
+  }
+
+  private List<Integer> listSegments() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files
+          .map(path -> path.getFileName().toString())
+          .filter(name -> name.endsWith(SEGMENT_SUFFIX))
+          .map(name -> Integer.valueOf(name.substring(0, name.length() - SEGMENT_SUFFIX.length())))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  /** Rebuilds the in-memory state from every segment and opens the last one for appending. */
+  private synchronized void replay() throws IOException {
+    List<Integer> segments = listSegments();
+    for (int i = 0; i < segments.size(); i++) {
+      int number = segments.get(i);
+      long size = Files.size(segmentPath(number));
+      long validBytes = scanSegment(number, 0, size, this::apply);
+      if (validBytes < size) {
+        if (i < segments.size() - 1 || !isTornTail(number, validBytes, size)) {
+          throw new IOException(
+              "Corrupt record at offset " + validBytes + " of " + segmentPath(number));
+        }
+        try (FileChannel truncated =
+            FileChannel.open(segmentPath(number), StandardOpenOption.WRITE)) {
+          truncated.truncate(validBytes);
+        }
+        System.err.println(
+            "Truncated a partly written record at the end of " + segmentPath(number));
+      }
+    }
+    openSegment(segments.isEmpty() ? 1 : segments.get(segments.size() - 1));
+  }
+
+  /**
+   * Checks whether the bad record at {@code offset} runs to the end of the segment, as one that was
+   * being appended when the process died does: its header is cut short, or its length reaches the
+   * end of the file. A bad record with more data after it is corruption, not a torn write.
+   */
+  private boolean isTornTail(int number, long offset, long size) throws IOException {
+    if (offset + HEADER_BYTES > size) {
+      return true;
+    }
+    try (FileChannel reader = FileChannel.open(segmentPath(number), StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      readFully(reader, header, offset);
+      int length = header.getInt(0);
+      return length > 0 && offset + HEADER_BYTES + length >= size;
+    }
+  }
+
+  private void openSegment(int number) throws IOException {
+    segment = number;
+    channel =
+        FileChannel.open(
+            segmentPath(number),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    segmentSize = channel.size();
+  }
+
+  /**
+   * Reads the records of a segment from {@code start} up to {@code limit}, handing each one to the
+   * visitor.
+   *
+   * @return the offset just past the last whole record with a valid checksum
+   */
+  private long scanSegment(int number, long start, long limit, RecordVisitor visitor)
+      throws IOException {
+    try (InputStream file = Files.newInputStream(segmentPath(number))) {
+      long skipped = 0;
+      while (skipped < start) {
+        long n = file.skip(start - skipped);
+        if (n <= 0) {
+          return skipped;
+        }
+        skipped += n;
+      }
+      DataInputStream in = new DataInputStream(new BufferedInputStream(file, 1 << 16));
+      CRC32 crc = new CRC32();
+      long offset = start;
+      while (offset + HEADER_BYTES <= limit) {
+        int length = in.readInt();
+        int checksum = in.readInt();
+        if (length <= 0 || offset + HEADER_BYTES + length > limit) {
+          break;
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        crc.reset();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != checksum) {
+          break;
+        }
+        visitor.visit(position(number, offset), payload);
+        offset += HEADER_BYTES + length;
+      }
+      return offset;
+    }
+  }
+
+  /** Applies a record to the in-memory state, during replay. */
+  private void apply(long position, byte[] payload) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    byte type = in.readByte();
+    switch (type) {
+      case PUT_USER:
+        User user = readUser(in);
+        users.put(user.getId(), new Stamped<>(user, in.readLong()));
+        break;
+      case PUT_CONVERSATION:
+        Conversation conversation = readConversation(in);
+        conversations.put(conversation.getId(), new Stamped<>(conversation, in.readLong()));
+        break;
+      case PUT_MESSAGE:
+        Message message = readMessage(in);
+        indexMessage(message.getConversationId(), position);
+        break;
+      case PUT_PROFILE:
+        String owner = SnapshotFile.readString(in);
+        String text = SnapshotFile.readString(in);
+        profiles.put(owner, new Stamped<>(text, in.readLong()));
+        break;
+      case DELETE_USERS:
+        for (UUID id : readIds(in)) {
+          users.remove(id);
+        }
+        break;
+      case DELETE_CONVERSATIONS:
+        for (UUID id : readIds(in)) {
+          conversations.remove(id);
+        }
+        break;
+      case DELETE_MESSAGES:
+        markMessagesDeleted(readIds(in));
+        break;
+      case DELETE_ALL_MESSAGES:
+        clearMessages(position);
+        break;
+      case ADD_MEMBERS:
+        UUID conversationId = SnapshotFile.readUuid(in);
+        List<String> usernames = readUsernames(in);
+        addMembers(conversationId, usernames, in.readLong());
+        break;
+      default:
+        throw new IOException("Unknown record type " + type + " at " + position);
+    }
+  }
+
+  private void indexMessage(UUID conversationId, long position) {
+    messagePositions.computeIfAbsent(conversationId, id -> new ArrayList<>()).add(position);
+    liveMessages++;
+  }
+
+  /** @return the number of Messages that weren't already deleted */
+  private int markMessagesDeleted(List<UUID> ids) {
+    int deleted = 0;
+    for (UUID id : ids) {
+      if (deletedMessageIds.add(id)) {
+        deleted++;
+      }
+    }
+    liveMessages = Math.max(0, liveMessages - deleted);
+    return deleted;
+  }
+
+  private void clearMessages(long position) {
+    messagePositions.clear();
+    deletedMessageIds.clear();
+    messagesStart = position;
+    liveMessages = 0;
+  }
+
+  @Override
+  public void loadUsers(Consumer<User> consumer) {
+    for (Stamped<User> user : usersUpdatedSince(Long.MIN_VALUE)) {
+      consumer.accept(user.value);
+    }
+  }
+
+  @Override
+  public void loadConversations(Consumer<Conversation> consumer) {
+    for (Stamped<Conversation> conversation : conversationsUpdatedSince(Long.MIN_VALUE)) {
+      consumer.accept(copyOf(conversation.value));
+    }
+  }
+
+  @Override
+  public void loadMessages(Consumer<Message> consumer) throws PersistentDataStoreException {
+    scanMessages(Long.MIN_VALUE, consumer);
+  }
+
+  @Override
+  public List<Message> loadMessagesInConversation(UUID conversationId)
+      throws PersistentDataStoreException {
+    List<Long> positions;
+    Set<UUID> deleted;
+    synchronized (this) {
+      positions = new ArrayList<>(
+          messagePositions.getOrDefault(conversationId, Collections.emptyList()));
+      deleted = new HashSet<>(deletedMessageIds);
+    }
+    List<Message> messages = new ArrayList<>(positions.size());
+    Map<Integer, FileChannel> readers = new HashMap<>();
+    try {
+      for (long position : positions) {
+        FileChannel reader = readers.get(segmentOf(position));
+        if (reader == null) {
+          reader = FileChannel.open(segmentPath(segmentOf(position)), StandardOpenOption.READ);
+          readers.put(segmentOf(position), reader);
+        }
+        DataInputStream in =
+            new DataInputStream(new ByteArrayInputStream(readRecord(reader, position)));
+        in.readByte();
+        Message message = readMessage(in);
+        if (!deleted.contains(message.getId())) {
+          messages.add(message);
+        }
+      }
+    } catch (IOException e) {
+      throw new PersistentDataStoreException(e);
+    } finally {
+      for (FileChannel reader : readers.values()) {
+        try {
+          reader.close();
+        } catch (IOException e) {
+          // nothing was written through it
+        }
+      }
+    }
+    messages.sort(Comparator.comparing(Message::getCreationTime));
+    return messages;
+  }
+
+  /** Reads and checks the payload of the record at the given position. */
+  private static byte[] readRecord(FileChannel reader, long position) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    readFully(reader, header, offsetOf(position));
+    header.flip();
+    int length = header.getInt();
+    int checksum = header.getInt();
+    ByteBuffer payload = ByteBuffer.allocate(length);
+    readFully(reader, payload, offsetOf(position) + HEADER_BYTES);
+    CRC32 crc = new CRC32();
+    crc.update(payload.array(), 0, length);
+    if ((int) crc.getValue() != checksum) {
+      throw new IOException("Corrupt record at " + position);
+    }
+    return payload.array();
+  }
+
+  private static void readFully(FileChannel reader, ByteBuffer buffer, long offset)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = reader.read(buffer, offset + buffer.position());
+      if (read < 0) {
+        throw new IOException("Unexpected end of segment");
+      }
+    }
+  }
+
+  @Override
+  public void loadUsersUpdatedSince(Instant since, Consumer<User> consumer) {
+    for (Stamped<User> user : usersUpdatedSince(EntitySchema.toMicros(since))) {
+      consumer.accept(user.value);
+    }
+  }
+
+  @Override
+  public void loadConversationsUpdatedSince(Instant since, Consumer<Conversation> consumer) {
+    for (Stamped<Conversation> conversation :
+        conversationsUpdatedSince(EntitySchema.toMicros(since))) {
+      consumer.accept(copyOf(conversation.value));
+    }
+  }
+
+  @Override
+  public void loadMessagesCreatedSince(Instant since, Consumer<Message> consumer)
+      throws PersistentDataStoreException {
+    scanMessages(EntitySchema.toMicros(since), consumer);
+  }
+
+  @Override
+  public synchronized HashMap<String, String> loadProfilesUpdatedSince(Instant since) {
+    long sinceMicros = EntitySchema.toMicros(since);
+    HashMap<String, String> result = new HashMap<>();
+    for (Map.Entry<String, Stamped<String>> profile : profiles.entrySet()) {
+      if (profile.getValue().updatedMicros >= sinceMicros) {
+        result.put(profile.getKey(), profile.getValue().value);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public synchronized HashMap<String, String> loadProfiles() {
+    HashMap<String, String> result = new HashMap<>();
+    for (Map.Entry<String, Stamped<String>> profile : profiles.entrySet()) {
+      result.put(profile.getKey(), profile.getValue().value);
+    }
+    return result;
+  }
+
+  private synchronized List<Stamped<User>> usersUpdatedSince(long sinceMicros) {
+    List<Stamped<User>> result = new ArrayList<>();
+    for (Stamped<User> user : users.values()) {
+      if (user.updatedMicros >= sinceMicros) {
+        result.add(user);
+      }
+    }
+    return result;
+  }
+
+  /** Returns the Conversations updated since the given time, in ascending order by creation. */
+  private synchronized List<Stamped<Conversation>> conversationsUpdatedSince(long sinceMicros) {
+    List<Stamped<Conversation>> result = new ArrayList<>();
+    for (Stamped<Conversation> conversation : conversations.values()) {
+      if (conversation.updatedMicros >= sinceMicros) {
+        result.add(conversation);
+      }
+    }
+    result.sort(Comparator.comparing(conversation -> conversation.value.getCreationTime()));
+    return result;
+  }
+
+  /**
+   * Reads every Message record written since the last delete of all Messages, in the order they
+   * were written, and hands the ones that weren't deleted and were created at or after the given
+   * time to the consumer. Records appended after the scan starts are left out.
+   */
+  private void scanMessages(long sinceMicros, Consumer<Message> consumer)
+      throws PersistentDataStoreException {
+    long start;
+    int endSegment;
+    long endOffset;
+    Set<UUID> deleted;
+    synchronized (this) {
+      start = messagesStart;
+      endSegment = segment;
+      endOffset = segmentSize;
+      deleted = new HashSet<>(deletedMessageIds);
+    }
+    RecordVisitor visitor =
+        (position, payload) -> {
+          if (payload[0] != PUT_MESSAGE) {
+            return;
+          }
+          DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+          in.readByte();
+          Message message = readMessage(in);
+          if (!deleted.contains(message.getId())
+              && EntitySchema.toMicros(message.getCreationTime()) >= sinceMicros) {
+            consumer.accept(message);
+          }
+        };
+    try {
+      for (int number : listSegments()) {
+        if (number < segmentOf(start) || number > endSegment) {
+          continue;
+        }
+        long from = number == segmentOf(start) ? offsetOf(start) : 0;
+        long to = number == endSegment ? endOffset : Files.size(segmentPath(number));
+        scanSegment(number, from, to, visitor);
+      }
+    } catch (IOException e) {
+      throw new PersistentDataStoreException(e);
+    }
+  }
+
+  @Override
+  public void writeThrough(User user) {
+    long updatedMicros = EntitySchema.toMicros(Instant.now());
+    byte[] record =
+        encode(
+            PUT_USER,
+            out -> {
+              writeUser(out, user);
+              out.writeLong(updatedMicros);
+            });
+    long sequence;
+    synchronized (this) {
+      append(Collections.singletonList(record));
+      users.put(user.getId(), new Stamped<>(user, updatedMicros));
+      sequence = appendedRecords;
+    }
+    sync(sequence);
+  }
+
+  @Override
+  public void writeThrough(Message message) {
+    writeThrough(Collections.singletonList(message));
+  }
+
+  @Override
+  public void writeThrough(List<Message> messages) {
+    List<byte[]> records = new ArrayList<>(messages.size());
+    for (Message message : messages) {
+      records.add(encode(PUT_MESSAGE, out -> writeMessage(out, message)));
+    }
+    long sequence;
+    synchronized (this) {
+      long[] positions = append(records);
+      for (int i = 0; i < messages.size(); i++) {
+        indexMessage(messages.get(i).getConversationId(), positions[i]);
+      }
+      sequence = appendedRecords;
+    }
+    sync(sequence);
+  }
+
+  @Override
+  public void writeThrough(Conversation conversation) {
+    Conversation copy = copyOf(conversation);
+    long updatedMicros = EntitySchema.toMicros(Instant.now());
+    byte[] record =
+        encode(
+            PUT_CONVERSATION,
+            out -> {
+              writeConversation(out, copy);
+              out.writeLong(updatedMicros);
+            });
+    long sequence;
+    synchronized (this) {
+      append(Collections.singletonList(record));
+      conversations.put(copy.getId(), new Stamped<>(copy, updatedMicros));
+      sequence = appendedRecords;
+    }
+    sync(sequence);
+  }
+
+  /** Appends a record holding only the new members, rather than the whole Conversation. */
+  @Override
+  public void addConversationMembers(Conversation conversation, List<String> usernames) {
+    long updatedMicros = EntitySchema.toMicros(Instant.now());
+    byte[] record =
+        encode(
+            ADD_MEMBERS,
+            out -> {
+              SnapshotFile.writeUuid(out, conversation.getId());
+              writeUsernames(out, usernames);
+              out.writeLong(updatedMicros);
+            });
+    long sequence;
+    synchronized (this) {
+      append(Collections.singletonList(record));
+      addMembers(conversation.getId(), usernames, updatedMicros);
+      sequence = appendedRecords;
+    }
+    sync(sequence);
+  }
+
+  /** Adds members to the log's copy of a Conversation, if it hasn't been deleted. */
+  private void addMembers(UUID conversationId, List<String> usernames, long updatedMicros) {
+    Stamped<Conversation> conversation = conversations.get(conversationId);
+    if (conversation != null) {
+      conversation.value.addMembers(usernames);
+      conversations.put(conversationId, new Stamped<>(conversation.value, updatedMicros));
+    }
+  }
+
+  @Override
+  public void writeThrough(Profile profile) {
+    long updatedMicros = EntitySchema.toMicros(Instant.now());
+    byte[] record =
+        encode(
+            PUT_PROFILE,
+            out -> {
+              SnapshotFile.writeString(out, profile.getProfileOwner());
+              SnapshotFile.writeString(out, profile.getProfileText());
+              out.writeLong(updatedMicros);
+            });
+    long sequence;
+    synchronized (this) {
+      append(Collections.singletonList(record));
+      profiles.put(
+          profile.getProfileOwner(), new Stamped<>(profile.getProfileText(), updatedMicros));
+      sequence = appendedRecords;
+    }
+    sync(sequence);
+  }
+
+  /** The log has only ever had one format. */
+  @Override
+  public int migrateLegacyEntities() {
+    return 0;
+  }
+
+  @Override
+  public int deleteAllUsers(List<User> usersToDelete) {
+    List<UUID> ids = new ArrayList<>(usersToDelete.size());
+    for (User user : usersToDelete) {
+      ids.add(user.getId());
+    }
+    int deleted = 0;
+    long sequence;
+    synchronized (this) {
+      append(Collections.singletonList(encode(DELETE_USERS, out -> writeIds(out, ids))));
+      for (UUID id : ids) {
+        if (users.remove(id) != null) {
+          deleted++;
+        }
+      }
+      sequence = appendedRecords;
+    }
+    sync(sequence);
+    return deleted;
+  }
+
+  @Override
+  public int deleteAllMessages(List<Message> messages) {
+    List<UUID> ids = new ArrayList<>(messages.size());
+    for (Message message : messages) {
+      ids.add(message.getId());
+    }
+    int deleted;
+    long sequence;
+    synchronized (this) {
+      append(Collections.singletonList(encode(DELETE_MESSAGES, out -> writeIds(out, ids))));
+      deleted = markMessagesDeleted(ids);
+      sequence = appendedRecords;
+    }
+    sync(sequence);
+    return deleted;
+  }
+
+  @Override
+  public int deleteAllStoredMessages() {
+    int deleted;
+    long sequence;
+    synchronized (this) {
+      deleted = liveMessages;
+      long[] positions =
+          append(Collections.singletonList(encode(DELETE_ALL_MESSAGES, out -> {})));
+      clearMessages(positions[0]);
+      sequence = appendedRecords;
+    }
+    sync(sequence);
+    return deleted;
+  }
+
+  @Override
+  public int deleteAllConversations(List<Conversation> conversationsToDelete) {
+    List<UUID> ids = new ArrayList<>(conversationsToDelete.size());
+    for (Conversation conversation : conversationsToDelete) {
+      ids.add(conversation.getId());
+    }
+    int deleted = 0;
+    long sequence;
+    synchronized (this) {
+      append(Collections.singletonList(encode(DELETE_CONVERSATIONS, out -> writeIds(out, ids))));
+      for (UUID id : ids) {
+        if (conversations.remove(id) != null) {
+          deleted++;
+        }
+      }
+      sequence = appendedRecords;
+    }
+    sync(sequence);
+    return deleted;
+  }
+
+  /** Syncs the current segment and closes it. Later writes throw IllegalStateException. */
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      if (fsync) {
+        channel.force(false);
+      }
+      channel.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Appends records to the current segment in a single write, starting a new segment first if
+   * the current one is full. Must be called while holding this LogStorageBackend's monitor.
+   *
+   * @return the position of each record
+   */
+  private long[] append(List<byte[]> payloads) {
+    if (closed) {
+      throw new IllegalStateException("The storage log is closed");
+    }
+    try {
+      if (segmentSize >= segmentBytes) {
+        // synced before it's closed, so a sync that finds it closed knows its records are on disk
+        if (fsync) {
+          channel.force(false);
+        }
+        channel.close();
+        openSegment(segment + 1);
+      }
+
+      int totalBytes = 0;
+      for (byte[] payload : payloads) {
+        totalBytes += HEADER_BYTES + payload.length;
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(totalBytes);
+      long[] positions = new long[payloads.size()];
+      CRC32 crc = new CRC32();
+      for (int i = 0; i < payloads.size(); i++) {
+        byte[] payload = payloads.get(i);
+        positions[i] = position(segment, segmentSize + buffer.position());
+        crc.reset();
+        crc.update(payload, 0, payload.length);
+        buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+      }
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer, segmentSize + buffer.position());
+      }
+      segmentSize += totalBytes;
+      appendedRecords += payloads.size();
+      return positions;
+    } catch (IOException e) {
+      throw new UncheckedIOException("Couldn't write to the storage log", e);
+    }
+  }
+
+  /**
+   * Returns once the first {@code sequence} records appended are on disk. If another thread's
+   * sync already covered them, this returns right away.
+   */
+  private void sync(long sequence) {
+    if (!fsync) {
+      return;
+    }
+    synchronized (syncLock) {
+      if (syncedRecords >= sequence) {
+        return;
+      }
+      long target;
+      FileChannel current;
+      synchronized (this) {
+        target = appendedRecords;
+        current = channel;
+      }
+      try {
+        current.force(false);
+      } catch (ClosedChannelException e) {
+        // the segment was synced when it was closed
+      } catch (IOException e) {
+        throw new UncheckedIOException("Couldn't sync the storage log", e);
+      }
+      syncedRecords = target;
+    }
+  }
+
+  /** Writes the body of a record. */
+  private interface RecordWriter {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  private static byte[] encode(byte type, RecordWriter writer) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeByte(type);
+      writer.write(out);
+      out.flush();
+    } catch (IOException e) {
+      // a ByteArrayOutputStream doesn't throw
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void writeUser(DataOutputStream out, User user) throws IOException {
+    SnapshotFile.writeUuid(out, user.getId());
+    SnapshotFile.writeString(out, user.getName());
+    SnapshotFile.writeString(out, user.getPasswordHash());
+    out.writeLong(EntitySchema.toMicros(user.getCreationTime()));
+  }
+
+  private static User readUser(DataInputStream in) throws IOException {
+    UUID id = SnapshotFile.readUuid(in);
+    String name = SnapshotFile.readString(in);
+    String passwordHash = SnapshotFile.readString(in);
+    return new User(id, name, passwordHash, EntitySchema.fromMicros(in.readLong()));
+  }
+
+  private static void writeConversation(DataOutputStream out, Conversation conversation)
+      throws IOException {
+    SnapshotFile.writeUuid(out, conversation.getId());
+    SnapshotFile.writeUuid(out, conversation.getOwnerId());
+    SnapshotFile.writeString(out, conversation.getTitle());
+    out.writeLong(EntitySchema.toMicros(conversation.getCreationTime()));
+    SnapshotFile.writeString(out, conversation.getConversationType().name());
+    writeUsernames(out, conversation.getUsers());
+  }
+
+  private static Conversation readConversation(DataInputStream in) throws IOException {
+    UUID id = SnapshotFile.readUuid(in);
+    UUID ownerId = SnapshotFile.readUuid(in);
+    String title = SnapshotFile.readString(in);
+    Instant creationTime = EntitySchema.fromMicros(in.readLong());
+    ConversationType type;
+    try {
+      type = ConversationType.valueOf(SnapshotFile.readString(in));
+    } catch (IllegalArgumentException | NullPointerException e) {
+      throw new IOException("Corrupt Conversation record", e);
+    }
+    return new Conversation(id, ownerId, title, creationTime, readUsernames(in), type);
+  }
+
+  private static void writeUsernames(DataOutputStream out, List<String> usernames)
+      throws IOException {
+    out.writeInt(usernames.size());
+    for (String username : usernames) {
+      SnapshotFile.writeString(out, username);
+    }
+  }
+
+  private static List<String> readUsernames(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    List<String> usernames = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      usernames.add(SnapshotFile.readString(in));
+    }
+    return usernames;
+  }
+
+  private static void writeMessage(DataOutputStream out, Message message) throws IOException {
+    SnapshotFile.writeUuid(out, message.getId());
+    SnapshotFile.writeUuid(out, message.getConversationId());
+    SnapshotFile.writeUuid(out, message.getAuthorId());
+    SnapshotFile.writeString(out, message.getContent());
+    out.writeLong(EntitySchema.toMicros(message.getCreationTime()));
+  }
+
+  private static Message readMessage(DataInputStream in) throws IOException {
+    UUID id = SnapshotFile.readUuid(in);
+    UUID conversationId = SnapshotFile.readUuid(in);
+    UUID authorId = SnapshotFile.readUuid(in);
+    String content = SnapshotFile.readString(in);
+    Instant creationTime = EntitySchema.fromMicros(in.readLong());
+    return new Message(id, conversationId, authorId, content, creationTime);
+  }
+
+  private static void writeIds(DataOutputStream out, List<UUID> ids) throws IOException {
+    out.writeInt(ids.size());
+    for (UUID id : ids) {
+      SnapshotFile.writeUuid(out, id);
+    }
+  }
+
+  private static List<UUID> readIds(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    List<UUID> ids = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      ids.add(SnapshotFile.readUuid(in));
+    }
+    return ids;
+  }
+
+  /**
+   * Returns a copy of a Conversation. The stores add members to their Conversations in place, so
+   * the log keeps its own copy of what was last written.
+   */
+  private static Conversation copyOf(Conversation conversation) {
+    return new Conversation(
+        conversation.getId(),
+        conversation.getOwnerId(),
+        conversation.getTitle(),
+        conversation.getCreationTime(),
+        new ArrayList<>(conversation.getUsers()),
+        conversation.getConversationType());
+  }
+}
@@ -24,27 +24,71 @@ import codeu.model.store.persistence.PersistentDataStoreException;
 import com.google.appengine.api.datastore.*;
 import com.google.appengine.api.datastore.Query.SortDirection;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * This class handles all interactions with Google App Engine's Datastore service. On startup it
  * sets the state of the applications's data objects from the current contents of its Datastore. It
  * also performs writes of new of modified objects back to the Datastore.
  */
-public class PersistentDataStore {
+public class PersistentDataStore implements StorageBackend {
+
+  /** The most entities Datastore accepts in one batch operation. */
+  static final int MAX_BATCH_SIZE = 500;
+
+  /**
+   * Fetch options for full-kind loads. By default a query fetches 20 entities per round trip,
+   * which makes a large load thousands of round trips; full-size batches cut that to one per
+   * MAX_BATCH_SIZE entities.
+   */
+  private static final FetchOptions LOAD_FETCH_OPTIONS =
+      FetchOptions.Builder.withChunkSize(MAX_BATCH_SIZE).prefetchSize(MAX_BATCH_SIZE);
+
+  /**
+   * Kind of the entities recording users added to a Conversation after it was created. Each is a
+   * child of its Conversation's entity, keyed by username, so adding members never reads or
+   * rewrites the Conversation entity. A Conversation's users are the list saved on its entity
+   * followed by these, in the order they were added.
+   */
+  private static final String MEMBER_KIND = "chat-conversation-members";
+
+  /** The most batch deletes that deleteInBatches() keeps running at once. */
+  private static final int MAX_DELETES_IN_FLIGHT = 16;
+
+  /** The most entity groups one cross-group transaction may touch. */
+  static final int MAX_TRANSACTION_GROUPS = 25;
 
   // Handle to Google AppEngine's Datastore service.
   private DatastoreService datastore;
 
+  // Handle to the async version of the Datastore service, for operations that run in parallel.
+  private AsyncDatastoreService asyncDatastore;
+
   /**
    * Constructs a new PersistentDataStore and sets up its state to begin loading objects from the
    * Datastore service.
    */
   public PersistentDataStore() {
     datastore = DatastoreServiceFactory.getDatastoreService();
+    asyncDatastore = DatastoreServiceFactory.getAsyncDatastoreService();
   }
 
   /**
@@ -53,31 +97,40 @@ public class PersistentDataStore {
    * @throws PersistentDataStoreException if an error was detected during the load from the
    *     Datastore service
    */
+  @Override
   public List<User> loadUsers() throws PersistentDataStoreException {
-
     List<User> users = new ArrayList<>();
+    loadUsers(users::add);
+    return users;
+  }
+
+  /**
+   * Loads all User objects from the Datastore service and hands each one to the consumer as soon
+   * as it arrives, so the caller can index them without holding a second copy of the whole kind.
+   *
+   * @throws PersistentDataStoreException if an error was detected during the load from the
+   *     Datastore service
+   */
+  @Override
+  public void loadUsers(Consumer<User> consumer) throws PersistentDataStoreException {
 
     // Retrieve all users from the datastore.
     Query query = new Query("chat-users");
-    PreparedQuery results = datastore.prepare(query);
-
-    for (Entity entity : results.asIterable()) {
-      try {
-        UUID uuid = UUID.fromString((String) entity.getProperty("uuid"));
-        String userName = (String) entity.getProperty("username");
-        String passwordHash = (String) entity.getProperty("password_hash");
-        Instant creationTime = Instant.parse((String) entity.getProperty("creation_time"));
-        User user = new User(uuid, userName, passwordHash, creationTime);
-        users.add(user);
-      } catch (Exception e) {
-        // In a production environment, errors should be very rare. Errors which may
-        // occur include network errors, Datastore service errors, authorization errors,
-        // database entity definition mismatches, or service mismatches.
-        throw new PersistentDataStoreException(e);
-      }
+    Iterator<Entity> results = datastore.prepare(query).asIterator(LOAD_FETCH_OPTIONS);
+
+    for (User user = next(results, PersistentDataStore::toUser);
+        user != null;
+        user = next(results, PersistentDataStore::toUser)) {
+      consumer.accept(user);
     }
+  }
 
-    return users;
+  private static User toUser(Entity entity) {
+    UUID uuid = EntitySchema.readUuid(entity, "id", "uuid");
+    String userName = (String) entity.getProperty("username");
+    String passwordHash = (String) entity.getProperty("password_hash");
+    Instant creationTime = EntitySchema.readCreationTime(entity);
+    return new User(uuid, userName, passwordHash, creationTime);
   }
 
   /**
@@ -87,39 +140,93 @@ public class PersistentDataStore {
    * @throws PersistentDataStoreException if an error was detected during the load from the
    *     Datastore service
    */
+  @Override
   public List<Conversation> loadConversations() throws PersistentDataStoreException {
-
     List<Conversation> conversations = new ArrayList<>();
+    loadConversations(conversations::add);
+    return conversations;
+  }
 
-    // Retrieve all conversations from the datastore.
-    Query query = new Query("chat-conversations").addSort("creation_time", SortDirection.ASCENDING);
-    PreparedQuery results = datastore.prepare(query);
-
-    for (Entity entity : results.asIterable()) {
-      try {
-        UUID uuid = UUID.fromString((String) entity.getProperty("uuid"));
-        UUID ownerUuid = UUID.fromString((String) entity.getProperty("owner_uuid"));
-        String title = (String) entity.getProperty("title");
-        Instant creationTime = Instant.parse((String) entity.getProperty("creation_time"));
-        ConversationType type = ConversationType.valueOf((String) entity.getProperty("type"));
-
-        Conversation conversation;
-        if (type == ConversationType.NORMAL) {
-            conversation = new Conversation(uuid, ownerUuid, title, creationTime);
-        } else {
-            List<String> users = (List<String>) entity.getProperty("users");
-            conversation = new Conversation(uuid, ownerUuid, title, creationTime, users, type);
-        }
-        conversations.add(conversation);
-      } catch (Exception e) {
-        // In a production environment, errors should be very rare. Errors which may
-        // occur include network errors, Datastore service errors, authorization errors,
-        // database entity definition mismatches, or service mismatches.
-        throw new PersistentDataStoreException(e);
+  /**
+   * Loads all Conversation objects from the Datastore service in ascending order by creation time,
+   * handing each one to the consumer as soon as it arrives.
+   *
+   * @throws PersistentDataStoreException if an error was detected during the load from the
+   *     Datastore service
+   */
+  @Override
+  public void loadConversations(Consumer<Conversation> consumer)
+      throws PersistentDataStoreException {
+    Map<String, List<String>> members = loadAllMembers();
+    loadInCreationOrder(
+        new Query("chat-conversations"),
+        new Query("chat-conversations"),
+        PersistentDataStore::toConversation,
+        Conversation::getCreationTime,
+        conversation -> {
+          List<String> added = members.get(conversation.getId().toString());
+          if (added != null) {
+            conversation.addMembers(added);
+          }
+          consumer.accept(conversation);
+        });
+  }
+
+  /**
+   * Loads every member entity and returns the usernames, in the order they were added, keyed by
+   * their Conversation's key name. One query over the kind is far cheaper than one per
+   * Conversation.
+   */
+  private Map<String, List<String>> loadAllMembers() throws PersistentDataStoreException {
+    Map<String, List<String>> members = new HashMap<>();
+    Query query =
+        new Query(MEMBER_KIND).addSort(EntitySchema.CREATION_MICROS, SortDirection.ASCENDING);
+    try {
+      for (Entity entity : datastore.prepare(query).asIterable(LOAD_FETCH_OPTIONS)) {
+        members
+            .computeIfAbsent(entity.getParent().getName(), id -> new ArrayList<>())
+            .add(entity.getKey().getName());
       }
+    } catch (Exception e) {
+      throw new PersistentDataStoreException(e);
     }
+    return members;
+  }
 
-    return conversations;
+  /**
+   * Loads the usernames added to one Conversation after it was created, in the order they were
+   * added. An ancestor query only needs the built-in indexes, so they're sorted here.
+   */
+  private List<String> loadMembers(Key conversationKey) {
+    Query query = new Query(MEMBER_KIND).setAncestor(conversationKey);
+    List<Entity> entities = datastore.prepare(query).asList(LOAD_FETCH_OPTIONS);
+    entities.sort(
+        Comparator.comparingLong(
+            entity -> (Long) entity.getProperty(EntitySchema.CREATION_MICROS)));
+    List<String> usernames = new ArrayList<>(entities.size());
+    for (Entity entity : entities) {
+      usernames.add(entity.getKey().getName());
+    }
+    return usernames;
+  }
+
+  private static Key conversationKey(UUID conversationId) {
+    return KeyFactory.createKey("chat-conversations", conversationId.toString());
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Conversation toConversation(Entity entity) {
+    UUID uuid = EntitySchema.readUuid(entity, "id", "uuid");
+    UUID ownerUuid = EntitySchema.readUuid(entity, "owner_id", "owner_uuid");
+    String title = (String) entity.getProperty("title");
+    Instant creationTime = EntitySchema.readCreationTime(entity);
+    ConversationType type = ConversationType.valueOf((String) entity.getProperty("type"));
+
+    if (type == ConversationType.NORMAL) {
+      return new Conversation(uuid, ownerUuid, title, creationTime);
+    }
+    List<String> users = (List<String>) entity.getProperty("users");
+    return new Conversation(uuid, ownerUuid, title, creationTime, users, type);
   }
 
   /**
@@ -129,147 +236,634 @@ public class PersistentDataStore {
    * @throws PersistentDataStoreException if an error was detected during the load from the
    *     Datastore service
    */
+  @Override
   public List<Message> loadMessages() throws PersistentDataStoreException {
+    List<Message> messages = new ArrayList<>();
+    loadMessages(messages::add);
+    return messages;
+  }
 
+  /**
+   * Loads all Message objects from the Datastore service in ascending order by creation time,
+   * handing each one to the consumer as soon as it arrives.
+   *
+   * @throws PersistentDataStoreException if an error was detected during the load from the
+   *     Datastore service
+   */
+  @Override
+  public void loadMessages(Consumer<Message> consumer) throws PersistentDataStoreException {
+    loadInCreationOrder(
+        new Query("chat-messages"),
+        new Query("chat-messages"),
+        PersistentDataStore::toMessage,
+        Message::getCreationTime,
+        consumer);
+  }
+
+  /**
+   * Loads the Message objects in one Conversation from the Datastore service and returns them in a
+   * List, sorted in ascending order by creation time. The queries need the composite indexes in
+   * datastore-indexes.xml.
+   *
+   * @throws PersistentDataStoreException if an error was detected during the load from the
+   *     Datastore service
+   */
+  @Override
+  public List<Message> loadMessagesInConversation(UUID conversationId)
+      throws PersistentDataStoreException {
     List<Message> messages = new ArrayList<>();
+    Query legacyQuery =
+        new Query("chat-messages")
+            .setFilter(
+                new Query.FilterPredicate(
+                    "conv_uuid", Query.FilterOperator.EQUAL, conversationId.toString()));
+    Query currentQuery =
+        new Query("chat-messages")
+            .setFilter(
+                new Query.FilterPredicate(
+                    "conv_id", Query.FilterOperator.EQUAL, EntitySchema.toBlob(conversationId)));
+    loadInCreationOrder(
+        legacyQuery,
+        currentQuery,
+        PersistentDataStore::toMessage,
+        Message::getCreationTime,
+        messages::add);
+    return messages;
+  }
+
+  private static Message toMessage(Entity entity) {
+    UUID uuid = EntitySchema.readUuid(entity, "id", "uuid");
+    UUID conversationUuid = EntitySchema.readUuid(entity, "conv_id", "conv_uuid");
+    UUID authorUuid = EntitySchema.readUuid(entity, "author_id", "author_uuid");
+    Instant creationTime = EntitySchema.readCreationTime(entity);
+    String content = (String) entity.getProperty("content");
+    return new Message(uuid, conversationUuid, authorUuid, content, creationTime);
+  }
 
-    // Retrieve all messages from the datastore.
-    Query query = new Query("chat-messages").addSort("creation_time", SortDirection.ASCENDING);
-    PreparedQuery results = datastore.prepare(query);
-
-    for (Entity entity : results.asIterable()) {
-      try {
-        UUID uuid = UUID.fromString((String) entity.getProperty("uuid"));
-        UUID conversationUuid = UUID.fromString((String) entity.getProperty("conv_uuid"));
-        UUID authorUuid = UUID.fromString((String) entity.getProperty("author_uuid"));
-        Instant creationTime = Instant.parse((String) entity.getProperty("creation_time"));
-        String content = (String) entity.getProperty("content");
-        Message message = new Message(uuid, conversationUuid, authorUuid, content, creationTime);
-        messages.add(message);
-      } catch (Exception e) {
-        // In a production environment, errors should be very rare. Errors which may
-        // occur include network errors, Datastore service errors, authorization errors,
-        // database entity definition mismatches, or service mismatches.
-        throw new PersistentDataStoreException(e);
+  /** Converts an entity into a data object. */
+  private interface EntityParser<T> {
+    T parse(Entity entity) throws Exception;
+  }
+
+  /**
+   * Streams every entity matched by the two queries into the consumer, in ascending order by
+   * creation time. Entities in the legacy schema and the current schema sort on different
+   * properties, so each schema gets its own query and the two sorted streams are merged.
+   *
+   * <p>Schema migration can run on any instance while this does, moving entities from the legacy
+   * query's results to the current one's. So the legacy query is read to the end first, and the
+   * current one is only started after it: an entity migrated before the legacy query reached it
+   * is then still found by the current query. An entity both queries return, because it was
+   * migrated after the legacy query passed it, is only handed to the consumer once, in its
+   * current form if that arrives in time. Only legacy entities are held in memory, and there are
+   * fewer of them on every start.
+   *
+   * @param legacyQuery the query for entities in the legacy schema
+   * @param currentQuery the query for entities in the current schema
+   */
+  private <T> void loadInCreationOrder(
+      Query legacyQuery,
+      Query currentQuery,
+      EntityParser<T> parser,
+      Function<T, Instant> creationTime,
+      Consumer<T> consumer)
+      throws PersistentDataStoreException {
+    legacyQuery.addSort(EntitySchema.LEGACY_CREATION_TIME, SortDirection.ASCENDING);
+    currentQuery.addSort(EntitySchema.CREATION_MICROS, SortDirection.ASCENDING);
+
+    // the legacy entities not yet handed on, in creation order, and the keys of all of them
+    LinkedHashMap<Key, T> pendingLegacy = new LinkedHashMap<>();
+    Iterator<Entity> legacy = datastore.prepare(legacyQuery).asIterator(LOAD_FETCH_OPTIONS);
+    for (Entity entity = nextEntity(legacy); entity != null; entity = nextEntity(legacy)) {
+      pendingLegacy.put(entity.getKey(), parse(parser, entity));
+    }
+    Set<Key> legacyKeys = new HashSet<>(pendingLegacy.keySet());
+
+    Iterator<Entity> current = datastore.prepare(currentQuery).asIterator(LOAD_FETCH_OPTIONS);
+    for (Entity entity = nextEntity(current); entity != null; entity = nextEntity(current)) {
+      T value = parse(parser, entity);
+      if (legacyKeys.contains(entity.getKey()) && pendingLegacy.remove(entity.getKey()) == null) {
+        // the legacy form was already handed on
+        continue;
       }
+      Iterator<Map.Entry<Key, T>> oldest = pendingLegacy.entrySet().iterator();
+      while (oldest.hasNext()) {
+        T next = oldest.next().getValue();
+        if (creationTime.apply(value).isBefore(creationTime.apply(next))) {
+          break;
+        }
+        consumer.accept(next);
+        oldest.remove();
+      }
+      consumer.accept(value);
+    }
+    for (T value : pendingLegacy.values()) {
+      consumer.accept(value);
+    }
+  }
+
+  /** Returns the next entity from the iterator, or null if there are no more. */
+  private static Entity nextEntity(Iterator<Entity> entities) throws PersistentDataStoreException {
+    try {
+      return entities.hasNext() ? entities.next() : null;
+    } catch (Exception e) {
+      throw new PersistentDataStoreException(e);
     }
+  }
 
-    return messages;
+  /** Parses an entity into a data object. */
+  private static <T> T parse(EntityParser<T> parser, Entity entity)
+      throws PersistentDataStoreException {
+    try {
+      return parser.parse(entity);
+    } catch (Exception e) {
+      throw new PersistentDataStoreException(e);
+    }
   }
-  
+
+  /** Parses the next entity from the iterator, or returns null if there are no more. */
+  private static <T> T next(Iterator<Entity> entities, EntityParser<T> parser)
+      throws PersistentDataStoreException {
+    try {
+      return entities.hasNext() ? parser.parse(entities.next()) : null;
+    } catch (Exception e) {
+      // In a production environment, errors should be very rare. Errors which may
+      // occur include network errors, Datastore service errors, authorization errors,
+      // database entity definition mismatches, or service mismatches.
+      throw new PersistentDataStoreException(e);
+    }
+  }
+
+  /**
+   * Loads the User objects created or changed at or after the given time, handing each one to the
+   * consumer as soon as it arrives. This is what a snapshot taken at that time is missing.
+   *
+   * @throws PersistentDataStoreException if an error was detected during the load from the
+   *     Datastore service
+   */
+  @Override
+  public void loadUsersUpdatedSince(Instant since, Consumer<User> consumer)
+      throws PersistentDataStoreException {
+    loadSince("chat-users", EntitySchema.UPDATED_MICROS, since, PersistentDataStore::toUser,
+        consumer);
+  }
+
   /**
-	 * Loads all Profile objects from the Datastore service and returns them in a hash table 
+   * Loads the Conversation objects created or changed at or after the given time, including ones
+   * that only gained members. The ones whose entity changed come first, in ascending order by
+   * update time. Each has its full user list.
+   *
+   * @throws PersistentDataStoreException if an error was detected during the load from the
+   *     Datastore service
+   */
+  @Override
+  public void loadConversationsUpdatedSince(Instant since, Consumer<Conversation> consumer)
+      throws PersistentDataStoreException {
+    Map<Key, Conversation> changed = new LinkedHashMap<>();
+    loadSince("chat-conversations", EntitySchema.UPDATED_MICROS, since,
+        PersistentDataStore::toConversation,
+        conversation -> changed.put(conversationKey(conversation.getId()), conversation));
+    Set<Key> withNewMembers = new LinkedHashSet<>();
+    loadSince(MEMBER_KIND, EntitySchema.CREATION_MICROS, since, Entity::getParent,
+        withNewMembers::add);
+    withNewMembers.removeAll(changed.keySet());
+
+    try {
+      List<Key> keys = new ArrayList<>(withNewMembers);
+      for (int start = 0; start < keys.size(); start += MAX_BATCH_SIZE) {
+        Map<Key, Entity> entities =
+            datastore.get(keys.subList(start, Math.min(start + MAX_BATCH_SIZE, keys.size())));
+        for (Entity entity : entities.values()) {
+          changed.put(entity.getKey(), toConversation(entity));
+        }
+      }
+      for (Map.Entry<Key, Conversation> conversation : changed.entrySet()) {
+        conversation.getValue().addMembers(loadMembers(conversation.getKey()));
+        consumer.accept(conversation.getValue());
+      }
+    } catch (Exception e) {
+      throw new PersistentDataStoreException(e);
+    }
+  }
+
+  /**
+   * Loads the Message objects created at or after the given time, in ascending order by creation
+   * time.
+   *
+   * @throws PersistentDataStoreException if an error was detected during the load from the
+   *     Datastore service
+   */
+  @Override
+  public void loadMessagesCreatedSince(Instant since, Consumer<Message> consumer)
+      throws PersistentDataStoreException {
+    loadSince("chat-messages", EntitySchema.CREATION_MICROS, since, PersistentDataStore::toMessage,
+        consumer);
+  }
+
+  /**
+   * Streams the entities of a kind whose timestamp property is at or after the given time into the
+   * consumer, in ascending order by that property. An inequality filter and a sort on the same
+   * property only need Datastore's built-in single-property index.
+   */
+  private <T> void loadSince(
+      String kind, String property, Instant since, EntityParser<T> parser, Consumer<T> consumer)
+      throws PersistentDataStoreException {
+    Query query =
+        new Query(kind)
+            .setFilter(
+                new Query.FilterPredicate(
+                    property,
+                    Query.FilterOperator.GREATER_THAN_OR_EQUAL,
+                    EntitySchema.toMicros(since)))
+            .addSort(property, SortDirection.ASCENDING);
+    Iterator<Entity> results = datastore.prepare(query).asIterator(LOAD_FETCH_OPTIONS);
+    for (T value = next(results, parser); value != null; value = next(results, parser)) {
+      consumer.accept(value);
+    }
+  }
+
+  /**
+	 * Loads the profiles saved at or after the given time and returns them in a hash table.
+	 * Profiles last saved before updates were timestamped are never returned.
+	 * 
+	 * @throws PersistentDataStoreException 
+	 * 				if an error is detected during the load from the Datastore service
+	 */
+	@Override
+	public HashMap<String, String> loadProfilesUpdatedSince(Instant since)
+			throws PersistentDataStoreException {
+		HashMap<String, String> profiles = new HashMap<String, String>();
+		loadSince("user-profiles", EntitySchema.UPDATED_MICROS, since, entity -> entity,
+				entity -> {
+					String profileOwner = (String) entity.getProperty("owner_name");
+					if (profileOwner != null) {
+						profiles.put(profileOwner, (String) entity.getProperty("text"));
+					}
+				});
+		return profiles;
+	}
+
+  /**
+	 * Loads all Profile objects from the Datastore service and returns them in a hash table.
+	 * 
+	 * Profile entities are keyed by their owner's name. Entities saved before that have random
+	 * keys; migrateLegacyEntities() rewrites them, and until it has, they're read as they are. An
+	 * owner-keyed entity is newer than a legacy one for the same owner, so it wins. Entities with
+	 * no owner are skipped. This only reads, so it never races with a profile being saved.
 	 * 
 	 * @throws PersistentDataStoreException 
 	 * 				if an error is detected during the load from the Datastore service
 	 */
+	@Override
 	public HashMap<String, String> loadProfiles() throws PersistentDataStoreException {
 		HashMap<String, String> profiles = new HashMap<String, String>();
+		Map<String, String> legacyProfiles = new HashMap<>();
 		Query query = new Query("user-profiles");
 		PreparedQuery results = datastore.prepare(query);
 		try {
-			for (Entity entity : results.asIterable()) {
+			for (Entity entity : results.asIterable(LOAD_FETCH_OPTIONS)) {
 				String profileOwner = (String) entity.getProperty("owner_name");
 				String text = (String) entity.getProperty("text");
-				profiles.put(profileOwner, text);
+				if (profileOwner == null) {
+					// there's no user to show it for
+					System.err.println("Skipping profile entity with no owner: " + entity.getKey());
+				} else if (profileOwner.equals(entity.getKey().getName())) {
+					profiles.put(profileOwner, text);
+				} else {
+					legacyProfiles.putIfAbsent(profileOwner, text);
+				}
 			}
 		} catch (Exception e) {
 			throw new PersistentDataStoreException(e);
 		}
 
+		for (Map.Entry<String, String> legacyProfile : legacyProfiles.entrySet()) {
+			profiles.putIfAbsent(legacyProfile.getKey(), legacyProfile.getValue());
+		}
 		return profiles;
 	}
 
   /** Write a User object to the Datastore service. */
+  @Override
   public void writeThrough(User user) {
     Entity userEntity = new Entity("chat-users", user.getId().toString());
-    userEntity.setProperty("uuid", user.getId().toString());
+    EntitySchema.setUuid(userEntity, "id", user.getId());
     userEntity.setProperty("username", user.getName());
     userEntity.setProperty("password_hash", user.getPasswordHash());
-    userEntity.setProperty("creation_time", user.getCreationTime().toString());
+    EntitySchema.setCreationTime(userEntity, user.getCreationTime());
+    EntitySchema.setUpdateTime(userEntity, Instant.now());
     datastore.put(userEntity);
   }
 
   /** Write a Message object to the Datastore service. */
+  @Override
   public void writeThrough(Message message) {
+    datastore.put(toEntity(message));
+  }
+
+  /**
+   * Write several Message objects to the Datastore service in a single batch put. The List must
+   * hold at most MAX_BATCH_SIZE Messages.
+   */
+  @Override
+  public void writeThrough(List<Message> messages) {
+    List<Entity> messageEntities = new ArrayList<>(messages.size());
+    for (Message message : messages) {
+      messageEntities.add(toEntity(message));
+    }
+    datastore.put(messageEntities);
+  }
+
+  private Entity toEntity(Message message) {
     Entity messageEntity = new Entity("chat-messages", message.getId().toString());
-    messageEntity.setProperty("uuid", message.getId().toString());
-    messageEntity.setProperty("conv_uuid", message.getConversationId().toString());
-    messageEntity.setProperty("author_uuid", message.getAuthorId().toString());
+    EntitySchema.setUuid(messageEntity, "id", message.getId());
+    EntitySchema.setUuid(messageEntity, "conv_id", message.getConversationId());
+    EntitySchema.setUuid(messageEntity, "author_id", message.getAuthorId());
     messageEntity.setProperty("content", message.getContent());
-    messageEntity.setProperty("creation_time", message.getCreationTime().toString());
-    datastore.put(messageEntity);
+    EntitySchema.setCreationTime(messageEntity, message.getCreationTime());
+    return messageEntity;
   }
 
   /** Write a Conversation object to the Datastore service. */
+  @Override
   public void writeThrough(Conversation conversation) {
     Entity conversationEntity = new Entity("chat-conversations", conversation.getId().toString());
-    conversationEntity.setProperty("uuid", conversation.getId().toString());
-    conversationEntity.setProperty("owner_uuid", conversation.getOwnerId().toString());
+    EntitySchema.setUuid(conversationEntity, "id", conversation.getId());
+    EntitySchema.setUuid(conversationEntity, "owner_id", conversation.getOwnerId());
     conversationEntity.setProperty("title", conversation.getTitle());
-    conversationEntity.setProperty("creation_time", conversation.getCreationTime().toString());
+    EntitySchema.setCreationTime(conversationEntity, conversation.getCreationTime());
     conversationEntity.setProperty("users", conversation.getUsers());
     conversationEntity.setProperty("type", conversation.getConversationType().name());
+    EntitySchema.setUpdateTime(conversationEntity, Instant.now());
     datastore.put(conversationEntity);
   }
 
-  public void updateConversation(Conversation conversation) {
-      Key conversationKey = KeyFactory.createKey("chat-conversations", conversation.getId().toString());
-      Entity conversationEntity;
-
-      try {
-          conversationEntity = datastore.get(conversationKey);
-      } catch (EntityNotFoundException e) {
-          e.printStackTrace();
-          return;
-      }
-
-      // this line prevents ChatAddUserServletTest from NPE during doPostAddUser test
-//      if (conversationEntity == null) return;
-
-      conversationEntity.setProperty("users", conversation.getUsers());
-      datastore.put(conversationEntity);
+  /**
+   * Write users just added to a Conversation to the Datastore service, one member entity each, in
+   * batch puts of at most MAX_BATCH_SIZE. The Conversation's entity isn't read or rewritten.
+   */
+  @Override
+  public void addConversationMembers(Conversation conversation, List<String> usernames) {
+    Key conversationKey = conversationKey(conversation.getId());
+    Instant now = Instant.now();
+    List<Entity> memberEntities = new ArrayList<>(usernames.size());
+    for (int i = 0; i < usernames.size(); i++) {
+      Entity memberEntity = new Entity(MEMBER_KIND, usernames.get(i), conversationKey);
+      // a microsecond apart, so loads can put members added together back in the order given
+      EntitySchema.setCreationTime(memberEntity, now.plus(i, ChronoUnit.MICROS));
+      memberEntities.add(memberEntity);
+    }
+    for (int start = 0; start < memberEntities.size(); start += MAX_BATCH_SIZE) {
+      datastore.put(
+          memberEntities.subList(start, Math.min(start + MAX_BATCH_SIZE, memberEntities.size())));
+    }
   }
 
-  /** Write a Profile object to the Datastore service. */
+  /**
+	 * Write a Profile object to the Datastore service. The entity is keyed by the owner's name, so
+	 * this is a single put that creates the profile or replaces the existing one.
+	 */
+	@Override
 	public void writeThrough(Profile profile) {
-		Query query = new Query("user-profiles");
-		PreparedQuery results = datastore.prepare(query);
-		for (Entity entity : results.asIterable()) {
-			if (profile.getProfileOwner().equals(entity.getProperty("owner_name"))) {
-				entity.removeProperty("text");
-				entity.setProperty("text", profile.getProfileText());
-
-				datastore.put(entity);
-				return;
-				//return new Profile(uuid, profileOwner, text);
-			}
-		}
-		Entity profileEntity = new Entity("user-profiles", profile.getId().toString());
+		Entity profileEntity = new Entity("user-profiles", profile.getProfileOwner());
 		profileEntity.setProperty("uuid", profile.getId().toString());
-		profileEntity.setProperty("owner_name", profile.getProfileOwner().toString());
+		profileEntity.setProperty("owner_name", profile.getProfileOwner());
 		profileEntity.setProperty("text", profile.getProfileText());
+		EntitySchema.setUpdateTime(profileEntity, Instant.now());
 		datastore.put(profileEntity);
 	}
   
-  public void deleteAllUsers(List<User> users) {
+  /**
+   * Rewrites every User, Conversation and Message entity that still uses the legacy schema in the
+   * current one; see EntitySchema. Also moves every randomly keyed profile entity to its owner's
+   * name. This reads every legacy entity, so run it in the background.
+   *
+   * @return the number of entities rewritten
+   */
+  @Override
+  public int migrateLegacyEntities() {
+    return migrateLegacyEntities("chat-users")
+        + migrateLegacyEntities("chat-conversations")
+        + migrateLegacyEntities("chat-messages")
+        + migrateLegacyProfiles();
+  }
+
+  /**
+   * Moves every profile entity that isn't keyed by its owner's name to that key, one transaction
+   * per entity. The owner-keyed entity is only written if there isn't one yet, since one saved
+   * since is newer, and it's stamped with the update time so loadProfilesUpdatedSince() finds it.
+   * The legacy entity is deleted either way. Entities with no owner are left as they are.
+   *
+   * @return the number of profiles moved
+   */
+  private int migrateLegacyProfiles() {
+    Query query = new Query("user-profiles");
+    List<Key> legacyKeys = new ArrayList<>();
+    for (Entity entity : datastore.prepare(query).asIterable(LOAD_FETCH_OPTIONS)) {
+      String profileOwner = (String) entity.getProperty("owner_name");
+      if (profileOwner != null && !profileOwner.equals(entity.getKey().getName())) {
+        legacyKeys.add(entity.getKey());
+      }
+    }
+
+    int migrated = 0;
+    for (Key legacyKey : legacyKeys) {
+      if (migrateProfileInTransaction(legacyKey)) {
+        migrated++;
+      }
+    }
+    return migrated;
+  }
+
+  /**
+   * Moves one legacy profile entity to its owner's key inside a cross-group transaction, so a
+   * profile saved concurrently isn't overwritten and a deleted entity isn't brought back.
+   *
+   * @return true if an owner-keyed entity was written
+   */
+  private boolean migrateProfileInTransaction(Key legacyKey) {
+    Transaction transaction = datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
+    try {
+      Map<Key, Entity> legacyEntities =
+          datastore.get(transaction, Collections.singletonList(legacyKey));
+      Entity legacyEntity = legacyEntities.get(legacyKey);
+      if (legacyEntity == null) {
+        return false;
+      }
+      String profileOwner = (String) legacyEntity.getProperty("owner_name");
+      Key ownerKey = KeyFactory.createKey("user-profiles", profileOwner);
+      boolean written = false;
+      if (datastore.get(transaction, Collections.singletonList(ownerKey)).isEmpty()) {
+        Entity profileEntity = new Entity(ownerKey);
+        profileEntity.setPropertiesFrom(legacyEntity);
+        EntitySchema.setUpdateTime(profileEntity, Instant.now());
+        datastore.put(transaction, profileEntity);
+        written = true;
+      }
+      datastore.delete(transaction, legacyKey);
+      transaction.commit();
+      return written;
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+  }
+
+  /**
+   * Rewrites every entity of the given kind that still uses the legacy schema in the current one,
+   * MAX_TRANSACTION_GROUPS entities at a time.
+   *
+   * @return the number of entities rewritten
+   */
+  private int migrateLegacyEntities(String kind) {
+    Query query =
+        new Query(kind)
+            .addSort(EntitySchema.LEGACY_CREATION_TIME, SortDirection.ASCENDING)
+            .setKeysOnly();
+    int migrated = 0;
+    List<Key> batch = new ArrayList<>(MAX_TRANSACTION_GROUPS);
+    for (Entity legacyEntity : datastore.prepare(query).asIterable(LOAD_FETCH_OPTIONS)) {
+      batch.add(legacyEntity.getKey());
+      if (batch.size() == MAX_TRANSACTION_GROUPS) {
+        migrated += migrateInTransaction(batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      migrated += migrateInTransaction(batch);
+    }
+    return migrated;
+  }
+
+  /**
+   * Rewrites the given entities in the current schema inside one cross-group transaction. Each is
+   * read again inside the transaction and only rewritten if it still exists in the legacy schema,
+   * so a concurrent update isn't lost and a concurrent delete isn't undone.
+   *
+   * @return the number of entities rewritten
+   */
+  private int migrateInTransaction(List<Key> keys) {
+    Transaction transaction = datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
+    try {
+      List<Entity> rewritten = new ArrayList<>(keys.size());
+      for (Entity entity : datastore.get(transaction, keys).values()) {
+        if (EntitySchema.isLegacy(entity)) {
+          rewritten.add(EntitySchema.toCurrentSchema(entity));
+        }
+      }
+      if (!rewritten.isEmpty()) {
+        datastore.put(transaction, rewritten);
+      }
+      transaction.commit();
+      return rewritten.size();
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+  }
+
+  /**
+   * Deletes the given Users from the Datastore service.
+   *
+   * @return the number of entities deleted
+   */
+  @Override
+  public int deleteAllUsers(List<User> users) {
+    List<Key> userKeys = new ArrayList<>(users.size());
     for (User user : users) {
-      Key userKey = KeyFactory.createKey("chat-users", user.getId().toString());
-      datastore.delete(userKey);
+      userKeys.add(KeyFactory.createKey("chat-users", user.getId().toString()));
     }
+    return deleteInBatches(userKeys);
   }
 
-  public void deleteAllMessages(List<Message> messages) {
+  /**
+   * Deletes the given Messages from the Datastore service.
+   *
+   * @return the number of entities deleted
+   */
+  @Override
+  public int deleteAllMessages(List<Message> messages) {
+    List<Key> messageKeys = new ArrayList<>(messages.size());
     for (Message message : messages) {
-      Key messageKey = KeyFactory.createKey("chat-messages", message.getId().toString());
-      datastore.delete(messageKey);
+      messageKeys.add(KeyFactory.createKey("chat-messages", message.getId().toString()));
+    }
+    return deleteInBatches(messageKeys);
+  }
+
+  /**
+   * Deletes every Message entity in the Datastore service, including ones that were never loaded
+   * into memory.
+   *
+   * @return the number of entities deleted
+   */
+  @Override
+  public int deleteAllStoredMessages() {
+    List<Key> messageKeys = new ArrayList<>();
+    Query query = new Query("chat-messages").setKeysOnly();
+    for (Entity entity : datastore.prepare(query).asIterable(LOAD_FETCH_OPTIONS)) {
+      messageKeys.add(entity.getKey());
     }
+    return deleteInBatches(messageKeys);
   }
 
-  public void deleteAllConversations(List<Conversation> conversations) {
+  /**
+   * Deletes the given Conversations and their member entities from the Datastore service.
+   *
+   * @return the number of Conversation entities deleted
+   */
+  @Override
+  public int deleteAllConversations(List<Conversation> conversations) {
+    List<Key> conversationKeys = new ArrayList<>(conversations.size());
     for (Conversation conversation : conversations) {
-      Key conversationKey = KeyFactory.createKey("chat-conversations", conversation.getId().toString());
-      datastore.delete(conversationKey);
+      conversationKeys.add(conversationKey(conversation.getId()));
+    }
+    Set<Key> deletedConversations = new HashSet<>(conversationKeys);
+    List<Key> memberKeys = new ArrayList<>();
+    Query query = new Query(MEMBER_KIND).setKeysOnly();
+    for (Entity entity : datastore.prepare(query).asIterable(LOAD_FETCH_OPTIONS)) {
+      if (deletedConversations.contains(entity.getParent())) {
+        memberKeys.add(entity.getKey());
+      }
+    }
+    deleteInBatches(memberKeys);
+    return deleteInBatches(conversationKeys);
+  }
+
+  /**
+   * Deletes the given keys in batches of the largest size Datastore accepts. Batches are sent
+   * through the async API so that up to MAX_DELETES_IN_FLIGHT of them run at once, and this returns
+   * once every batch has finished.
+   *
+   * @return the number of keys deleted
+   */
+  private int deleteInBatches(List<Key> keys) {
+    Deque<Future<Void>> deletesInFlight = new ArrayDeque<>();
+    for (int start = 0; start < keys.size(); start += MAX_BATCH_SIZE) {
+      if (deletesInFlight.size() == MAX_DELETES_IN_FLIGHT) {
+        awaitDelete(deletesInFlight.removeFirst());
+      }
+      List<Key> batch = keys.subList(start, Math.min(start + MAX_BATCH_SIZE, keys.size()));
+      deletesInFlight.addLast(asyncDatastore.delete(batch));
+    }
+    while (!deletesInFlight.isEmpty()) {
+      awaitDelete(deletesInFlight.removeFirst());
+    }
+    return keys.size();
+  }
+
+  private static void awaitDelete(Future<Void> delete) {
+    try {
+      delete.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DatastoreFailureException("Interrupted while deleting entities", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new DatastoreFailureException("Failed to delete entities", e.getCause());
     }
   }
 
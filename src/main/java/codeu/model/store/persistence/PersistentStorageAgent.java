@@ -18,26 +18,35 @@ import codeu.model.data.Conversation;
 import codeu.model.data.Message;
 import codeu.model.data.Profile;
 import codeu.model.data.User;
-import codeu.model.store.persistence.PersistentDataStore;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
 import java.util.HashMap;
 import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
 
 import com.google.appengine.api.datastore.EntityNotFoundException;
 
 /**
- * This class is the interface between the application and PersistentDataStore, which handles
- * interactions with Google App Engine's Datastore service. Currently this class simply passes
- * function calls through to PersistentDataStore, but this could be modified to make asynchronous
- * calls or to point to a different backend storage system.
+ * This class is the interface between the application and a StorageBackend. By default that's
+ * PersistentDataStore, which handles interactions with Google App Engine's Datastore service;
+ * setting the {@code codeu.storage.backend} system property to {@code log} uses a
+ * LogStorageBackend instead, which keeps everything in local files. Currently this class simply
+ * passes function calls through to the backend, except that Message writes can be batched in the
+ * background by a WriteBehindQueue.
  *
  * <p>This is a singleton; the single instance is accessed through getInstance().
  */
 public class PersistentStorageAgent {
 
-  private static PersistentStorageAgent instance;
+  private static volatile PersistentStorageAgent instance;
 
-  private final PersistentDataStore persistentDataStore;
+  private final StorageBackend storageBackend;
+
+  /** Queue that batches Message writes in the background, or null to write them directly. */
+  private final WriteBehindQueue writeBehindQueue;
 
   /**
    * Access the persistent storage agent, in order to perform object-level loads and/or stores. Do
@@ -45,23 +54,58 @@ public class PersistentStorageAgent {
    */
   public static PersistentStorageAgent getInstance() {
     if (instance == null) {
-      instance = new PersistentStorageAgent(new PersistentDataStore());
+      synchronized (PersistentStorageAgent.class) {
+        if (instance == null) {
+          StorageBackend storageBackend = createStorageBackend();
+          instance =
+              new PersistentStorageAgent(
+                  storageBackend, WriteBehindQueue.fromSystemProperties(storageBackend));
+        }
+      }
     }
     return instance;
   }
 
+  /** Creates the StorageBackend named by the {@code codeu.storage.backend} system property. */
+  private static StorageBackend createStorageBackend() {
+    String backend = System.getProperty("codeu.storage.backend", "datastore");
+    switch (backend) {
+      case "datastore":
+        return new PersistentDataStore();
+      case "log":
+        try {
+          return LogStorageBackend.fromSystemProperties();
+        } catch (IOException e) {
+          throw new UncheckedIOException("Couldn't open the storage log", e);
+        }
+      default:
+        throw new IllegalArgumentException("Unknown codeu.storage.backend: " + backend);
+    }
+  }
+
   /**
-   * Instance getter function used for testing. Supply a mock for PersistentDataStore.
+   * Instance getter function used for testing. Supply a mock for StorageBackend.
    *
-   * @param mockPersistentDataStore a mock used for testing
+   * @param mockStorageBackend a mock used for testing
    */
-  static PersistentStorageAgent getTestInstance(PersistentDataStore mockPersistentDataStore) {
-    return new PersistentStorageAgent(mockPersistentDataStore);
+  static PersistentStorageAgent getTestInstance(StorageBackend mockStorageBackend) {
+    return new PersistentStorageAgent(mockStorageBackend, null);
+  }
+
+  /**
+   * Instance getter function used for testing write-behind. Supply a mock for StorageBackend and a
+   * WriteBehindQueue that writes to it.
+   */
+  static PersistentStorageAgent getTestInstance(
+      StorageBackend mockStorageBackend, WriteBehindQueue writeBehindQueue) {
+    return new PersistentStorageAgent(mockStorageBackend, writeBehindQueue);
   }
 
   // Private constructor, accessible only through singleton interface
-  private PersistentStorageAgent(PersistentDataStore persistentDataStore) {
-    this.persistentDataStore = persistentDataStore;
+  private PersistentStorageAgent(
+      StorageBackend storageBackend, WriteBehindQueue writeBehindQueue) {
+    this.storageBackend = storageBackend;
+    this.writeBehindQueue = writeBehindQueue;
   }
 
   /**
@@ -71,7 +115,7 @@ public class PersistentStorageAgent {
    *     Datastore service
    */
   public List<User> loadUsers() throws PersistentDataStoreException {
-    return persistentDataStore.loadUsers();
+    return storageBackend.loadUsers();
   }
 
   /**
@@ -81,7 +125,7 @@ public class PersistentStorageAgent {
    *     Datastore service
    */
   public List<Conversation> loadConversations() throws PersistentDataStoreException {
-    return persistentDataStore.loadConversations();
+    return storageBackend.loadConversations();
   }
 
   /**
@@ -91,9 +135,100 @@ public class PersistentStorageAgent {
    *     Datastore service
    */
   public List<Message> loadMessages() throws PersistentDataStoreException {
-    return persistentDataStore.loadMessages();
+    return storageBackend.loadMessages();
   }
   
+  /**
+   * Stream every User object from the Datastore service into the consumer as it arrives.
+   *
+   * @throws PersistentDataStoreException if an error was detected during the load from the
+   *     Datastore service
+   */
+  public void loadUsers(Consumer<User> consumer) throws PersistentDataStoreException {
+    storageBackend.loadUsers(consumer);
+  }
+
+  /**
+   * Stream every Conversation object from the Datastore service into the consumer as it arrives,
+   * oldest first.
+   *
+   * @throws PersistentDataStoreException if an error was detected during the load from the
+   *     Datastore service
+   */
+  public void loadConversations(Consumer<Conversation> consumer)
+      throws PersistentDataStoreException {
+    storageBackend.loadConversations(consumer);
+  }
+
+  /**
+   * Stream every Message object from the Datastore service into the consumer as it arrives, oldest
+   * first.
+   *
+   * @throws PersistentDataStoreException if an error was detected during the load from the
+   *     Datastore service
+   */
+  public void loadMessages(Consumer<Message> consumer) throws PersistentDataStoreException {
+    storageBackend.loadMessages(consumer);
+  }
+
+  /**
+   * Retrieve the Message objects in one Conversation from the Datastore service, oldest first. The
+   * returned list may be empty. Queued writes are flushed first so the load sees them.
+   *
+   * @throws PersistentDataStoreException if an error was detected during the load from the
+   *     Datastore service
+   */
+  public List<Message> loadMessagesInConversation(UUID conversationId)
+      throws PersistentDataStoreException {
+    flush();
+    return storageBackend.loadMessagesInConversation(conversationId);
+  }
+
+  /**
+   * Stream the User objects created or changed at or after the given time into the consumer.
+   *
+   * @throws PersistentDataStoreException if an error was detected during the load from the
+   *     Datastore service
+   */
+  public void loadUsersUpdatedSince(Instant since, Consumer<User> consumer)
+      throws PersistentDataStoreException {
+    storageBackend.loadUsersUpdatedSince(since, consumer);
+  }
+
+  /**
+   * Stream the Conversation objects created or changed at or after the given time into the
+   * consumer, oldest change first.
+   *
+   * @throws PersistentDataStoreException if an error was detected during the load from the
+   *     Datastore service
+   */
+  public void loadConversationsUpdatedSince(Instant since, Consumer<Conversation> consumer)
+      throws PersistentDataStoreException {
+    storageBackend.loadConversationsUpdatedSince(since, consumer);
+  }
+
+  /**
+   * Stream the Message objects created at or after the given time into the consumer, oldest first.
+   *
+   * @throws PersistentDataStoreException if an error was detected during the load from the
+   *     Datastore service
+   */
+  public void loadMessagesCreatedSince(Instant since, Consumer<Message> consumer)
+      throws PersistentDataStoreException {
+    storageBackend.loadMessagesCreatedSince(since, consumer);
+  }
+
+  /**
+   * Gets the profiles saved at or after the given time and returns them in a hash table.
+   *
+   * @throws PersistentDataStoreException if an error was detected during the load from the
+   * 	Datastore service
+   */
+  public HashMap<String, String> loadProfilesUpdatedSince(Instant since)
+      throws PersistentDataStoreException {
+	  return storageBackend.loadProfilesUpdatedSince(since);
+  }
+
   /**
    * Gets all of the Profile objects from the Datastore service and returns them in a hash 
    * table. 
@@ -102,44 +237,114 @@ public class PersistentStorageAgent {
    * 	Datastore service
    */
   public HashMap<String, String> loadProfiles() throws PersistentDataStoreException {
-	  return persistentDataStore.loadProfiles();
+	  return storageBackend.loadProfiles();
   }
 
   /** Write a User object to the Datastore service. */
   public void writeThrough(User user) {
-    persistentDataStore.writeThrough(user);
+    storageBackend.writeThrough(user);
   }
 
   /** Write a Message object to the Datastore service. */
   public void writeThrough(Conversation conversation) {
-    persistentDataStore.writeThrough(conversation);
+    storageBackend.writeThrough(conversation);
   }
 
-  /** Update a Conversation object's user list in the Datastore service */
-  public void updateConversation(Conversation conversation) {
-    persistentDataStore.updateConversation(conversation);
+  /** Save users just added to a Conversation, without rewriting its whole user list. */
+  public void addConversationMembers(Conversation conversation, List<String> usernames) {
+    storageBackend.addConversationMembers(conversation, usernames);
   }
 
-  /** Write a Conversation object to the Datastore service. */
+  /**
+   * Write a Message object to the Datastore service. In write-behind mode the Message is queued
+   * and written in a batch, and this may return before it reaches Datastore.
+   */
   public void writeThrough(Message message) {
-    persistentDataStore.writeThrough(message);
+    if (writeBehindQueue != null) {
+      writeBehindQueue.write(message);
+    } else {
+      storageBackend.writeThrough(message);
+    }
   }
   
   /** Write a profile object to the Datastore service  */
   public void writeThrough(Profile profile) {
-	  persistentDataStore.writeThrough(profile);
+	  storageBackend.writeThrough(profile);
   }
 
-  public void deleteAllUsers(List<User> users) {
-    persistentDataStore.deleteAllUsers(users);
+  /**
+   * Delete the given Users from the Datastore service.
+   *
+   * @return the number of entities deleted
+   */
+  public int deleteAllUsers(List<User> users) {
+    return storageBackend.deleteAllUsers(users);
   }
 
-  public void deleteAllMessages(List<Message> messages) {
-    persistentDataStore.deleteAllMessages(messages);
+  /**
+   * Delete the given Messages from the Datastore service.
+   *
+   * @return the number of entities deleted
+   */
+  public int deleteAllMessages(List<Message> messages) {
+    // a queued write landing after the delete would bring its Message back
+    flush();
+    return storageBackend.deleteAllMessages(messages);
   }
 
-  public void deleteAllConversations(List<Conversation> conversations) {
-    persistentDataStore.deleteAllConversations(conversations);
+  /**
+   * Delete every Message from the Datastore service, including ones that were never loaded.
+   *
+   * @return the number of entities deleted
+   */
+  public int deleteAllStoredMessages() {
+    flush();
+    return storageBackend.deleteAllStoredMessages();
+  }
+
+  /**
+   * Delete the given Conversations from the Datastore service.
+   *
+   * @return the number of entities deleted
+   */
+  public int deleteAllConversations(List<Conversation> conversations) {
+    return storageBackend.deleteAllConversations(conversations);
+  }
+
+  /**
+   * Rewrite every entity still stored in the legacy schema in the current one. This can take a
+   * long time, so run it in the background.
+   *
+   * @return the number of entities rewritten
+   */
+  public int migrateLegacyEntities() {
+    return storageBackend.migrateLegacyEntities();
+  }
+
+  /**
+   * Returns the queue used in write-behind mode, which exposes its depth and flush latency, or
+   * null if Messages are written directly.
+   */
+  public WriteBehindQueue getWriteBehindQueue() {
+    return writeBehindQueue;
+  }
+
+  /** Blocks until every Message written so far has reached Datastore. */
+  public void flush() {
+    if (writeBehindQueue != null) {
+      writeBehindQueue.flush();
+    }
+  }
+
+  /**
+   * Writes any queued Messages, stops the write-behind flusher and closes the storage backend. Call
+   * this when the server shuts down.
+   */
+  public void close() {
+    if (writeBehindQueue != null) {
+      writeBehindQueue.close(10000);
+    }
+    storageBackend.close();
   }
 
 }
@@ -0,0 +1,285 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.model.store.persistence;
+
+import codeu.model.data.Conversation;
+import codeu.model.data.Conversation.ConversationType;
+import codeu.model.data.Message;
+import codeu.model.data.User;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Compact binary file holding a copy of every User, Conversation, Message and profile, plus the
+ * time the copy was taken. Reading one back is much faster than querying every kind from Datastore.
+ *
+ * <p>The file is a header followed by one section per kind, in the order users, conversations,
+ * messages, profiles. Each record in a section is preceded by a true flag and the section ends with
+ * a false one. Messages are grouped by Conversation, oldest first within each group, so the
+ * Conversation ID is written once per group.
+ */
+public final class SnapshotFile {
+
+  /** "CODU" in ASCII. */
+  private static final int MAGIC = 0x434f4455;
+
+  private static final int VERSION = 1;
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private SnapshotFile() {}
+
+  /** The state to write into a snapshot. */
+  public interface Contents {
+
+    /** The time the contents were read, which becomes the snapshot's watermark. */
+    Instant getWatermark();
+
+    List<User> getUsers();
+
+    /** Conversations in ascending order by creation time. */
+    List<Conversation> getConversations();
+
+    /**
+     * The IDs of the Conversations whose Messages are in the snapshot, or null to leave Messages
+     * out.
+     */
+    Iterable<UUID> getMessageConversationIds();
+
+    /** The Messages in one Conversation, oldest first. */
+    List<Message> getMessagesInConversation(UUID conversationId);
+
+    Map<String, String> getProfiles();
+  }
+
+  /**
+   * Writes a snapshot. The file is written under a temporary name and then renamed over the old
+   * one, so a crash part way through never leaves a truncated snapshot behind.
+   */
+  public static void write(Path path, Contents contents) throws IOException {
+    Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(
+            new BufferedOutputStream(Files.newOutputStream(temporaryPath), BUFFER_SIZE))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(EntitySchema.toMicros(contents.getWatermark()));
+
+      for (User user : contents.getUsers()) {
+        out.writeBoolean(true);
+        writeUuid(out, user.getId());
+        writeString(out, user.getName());
+        writeString(out, user.getPasswordHash());
+        out.writeLong(EntitySchema.toMicros(user.getCreationTime()));
+      }
+      out.writeBoolean(false);
+
+      for (Conversation conversation : contents.getConversations()) {
+        out.writeBoolean(true);
+        writeUuid(out, conversation.getId());
+        writeUuid(out, conversation.getOwnerId());
+        writeString(out, conversation.getTitle());
+        out.writeLong(EntitySchema.toMicros(conversation.getCreationTime()));
+        writeString(out, conversation.getConversationType().name());
+        for (String username : conversation.getUsers()) {
+          out.writeBoolean(true);
+          writeString(out, username);
+        }
+        out.writeBoolean(false);
+      }
+      out.writeBoolean(false);
+
+      Iterable<UUID> messageConversationIds = contents.getMessageConversationIds();
+      out.writeBoolean(messageConversationIds != null);
+      if (messageConversationIds != null) {
+        for (UUID conversationId : messageConversationIds) {
+          out.writeBoolean(true);
+          writeUuid(out, conversationId);
+          for (Message message : contents.getMessagesInConversation(conversationId)) {
+            out.writeBoolean(true);
+            writeUuid(out, message.getId());
+            writeUuid(out, message.getAuthorId());
+            writeString(out, message.getContent());
+            out.writeLong(EntitySchema.toMicros(message.getCreationTime()));
+          }
+          out.writeBoolean(false);
+        }
+        out.writeBoolean(false);
+      }
+
+      for (Map.Entry<String, String> profile : contents.getProfiles().entrySet()) {
+        out.writeBoolean(true);
+        writeString(out, profile.getKey());
+        writeString(out, profile.getValue());
+      }
+      out.writeBoolean(false);
+    }
+    Files.move(
+        temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Reads a snapshot back. The sections have to be read in the order they were written: users,
+   * conversations, messages, profiles.
+   */
+  public static final class Reader implements Closeable {
+
+    private final DataInputStream in;
+    private final Instant watermark;
+
+    private Reader(DataInputStream in) throws IOException {
+      this.in = in;
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a snapshot file");
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported snapshot version " + version);
+      }
+      watermark = EntitySchema.fromMicros(in.readLong());
+    }
+
+    /** Opens a snapshot file and reads its header. */
+    public static Reader open(Path path) throws IOException {
+      DataInputStream in =
+          new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE));
+      try {
+        return new Reader(in);
+      } catch (IOException e) {
+        in.close();
+        throw e;
+      }
+    }
+
+    /** Returns the time the snapshot's contents were read. */
+    public Instant getWatermark() {
+      return watermark;
+    }
+
+    public void readUsers(Consumer<User> consumer) throws IOException {
+      while (in.readBoolean()) {
+        UUID id = readUuid(in);
+        String name = readString(in);
+        String passwordHash = readString(in);
+        Instant creationTime = EntitySchema.fromMicros(in.readLong());
+        consumer.accept(new User(id, name, passwordHash, creationTime));
+      }
+    }
+
+    public void readConversations(Consumer<Conversation> consumer) throws IOException {
+      while (in.readBoolean()) {
+        UUID id = readUuid(in);
+        UUID ownerId = readUuid(in);
+        String title = readString(in);
+        Instant creationTime = EntitySchema.fromMicros(in.readLong());
+        ConversationType type;
+        try {
+          type = ConversationType.valueOf(readString(in));
+        } catch (IllegalArgumentException | NullPointerException e) {
+          throw new IOException("Corrupt snapshot file", e);
+        }
+        List<String> users = new ArrayList<>();
+        while (in.readBoolean()) {
+          users.add(readString(in));
+        }
+        consumer.accept(new Conversation(id, ownerId, title, creationTime, users, type));
+      }
+    }
+
+    /**
+     * Reads the Messages one Conversation at a time.
+     *
+     * @return false if the snapshot was written without Messages
+     */
+    public boolean readMessages(BiConsumer<UUID, List<Message>> consumer) throws IOException {
+      if (!in.readBoolean()) {
+        return false;
+      }
+      while (in.readBoolean()) {
+        UUID conversationId = readUuid(in);
+        List<Message> messages = new ArrayList<>();
+        while (in.readBoolean()) {
+          UUID id = readUuid(in);
+          UUID authorId = readUuid(in);
+          String content = readString(in);
+          Instant creationTime = EntitySchema.fromMicros(in.readLong());
+          messages.add(new Message(id, conversationId, authorId, content, creationTime));
+        }
+        consumer.accept(conversationId, messages);
+      }
+      return true;
+    }
+
+    public void readProfiles(BiConsumer<String, String> consumer) throws IOException {
+      while (in.readBoolean()) {
+        String owner = readString(in);
+        consumer.accept(owner, readString(in));
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  static void writeUuid(DataOutputStream out, UUID uuid) throws IOException {
+    out.writeLong(uuid.getMostSignificantBits());
+    out.writeLong(uuid.getLeastSignificantBits());
+  }
+
+  static UUID readUuid(DataInputStream in) throws IOException {
+    return new UUID(in.readLong(), in.readLong());
+  }
+
+  /**
+   * Writes a length-prefixed UTF-8 string, or -1 for null. DataOutputStream.writeUTF can't be used
+   * because it's limited to 64KB.
+   */
+  static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,140 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.model.store.persistence;
+
+import codeu.model.data.Conversation;
+import codeu.model.data.Message;
+import codeu.model.data.Profile;
+import codeu.model.data.User;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Where PersistentStorageAgent keeps the application's data. {@link PersistentDataStore} keeps it
+ * in App Engine's Datastore; {@link LogStorageBackend} keeps it in local files, for running
+ * without App Engine.
+ *
+ * <p>Load methods throw PersistentDataStoreException when the stored data can't be read. Write and
+ * delete methods throw RuntimeExceptions.
+ */
+public interface StorageBackend {
+
+  /** Loads every User and returns them in a List. */
+  default List<User> loadUsers() throws PersistentDataStoreException {
+    List<User> users = new ArrayList<>();
+    loadUsers(users::add);
+    return users;
+  }
+
+  /** Loads every User, handing each one to the consumer as soon as it's read. */
+  void loadUsers(Consumer<User> consumer) throws PersistentDataStoreException;
+
+  /** Loads every Conversation and returns them in ascending order by creation time. */
+  default List<Conversation> loadConversations() throws PersistentDataStoreException {
+    List<Conversation> conversations = new ArrayList<>();
+    loadConversations(conversations::add);
+    return conversations;
+  }
+
+  /** Loads every Conversation in ascending order by creation time. */
+  void loadConversations(Consumer<Conversation> consumer) throws PersistentDataStoreException;
+
+  /** Loads every Message and returns them in ascending order by creation time. */
+  default List<Message> loadMessages() throws PersistentDataStoreException {
+    List<Message> messages = new ArrayList<>();
+    loadMessages(messages::add);
+    return messages;
+  }
+
+  /**
+   * Loads every Message. Within each Conversation, Messages arrive in ascending order by creation
+   * time.
+   */
+  void loadMessages(Consumer<Message> consumer) throws PersistentDataStoreException;
+
+  /** Loads the Messages in one Conversation in ascending order by creation time. */
+  List<Message> loadMessagesInConversation(UUID conversationId)
+      throws PersistentDataStoreException;
+
+  /** Loads the Users created or changed at or after the given time. */
+  void loadUsersUpdatedSince(Instant since, Consumer<User> consumer)
+      throws PersistentDataStoreException;
+
+  /** Loads the Conversations created or changed at or after the given time. */
+  void loadConversationsUpdatedSince(Instant since, Consumer<Conversation> consumer)
+      throws PersistentDataStoreException;
+
+  /**
+   * Loads the Messages created at or after the given time. Within each Conversation, Messages
+   * arrive in ascending order by creation time.
+   */
+  void loadMessagesCreatedSince(Instant since, Consumer<Message> consumer)
+      throws PersistentDataStoreException;
+
+  /** Loads the profiles saved at or after the given time, keyed by owner name. */
+  HashMap<String, String> loadProfilesUpdatedSince(Instant since)
+      throws PersistentDataStoreException;
+
+  /** Loads every profile, keyed by owner name. */
+  HashMap<String, String> loadProfiles() throws PersistentDataStoreException;
+
+  void writeThrough(User user);
+
+  void writeThrough(Message message);
+
+  /** Writes several Messages at once. The List holds at most PersistentDataStore.MAX_BATCH_SIZE. */
+  void writeThrough(List<Message> messages);
+
+  void writeThrough(Conversation conversation);
+
+  /**
+   * Saves users just added to a Conversation. Only the new members are written, so the cost
+   * doesn't grow with the size of the Conversation.
+   */
+  void addConversationMembers(Conversation conversation, List<String> usernames);
+
+  /** Creates the profile or replaces the existing one for the same owner. */
+  void writeThrough(Profile profile);
+
+  /**
+   * Rewrites data still stored in an older format in the current one.
+   *
+   * @return the number of entities rewritten
+   */
+  int migrateLegacyEntities();
+
+  /** @return the number of Users deleted */
+  int deleteAllUsers(List<User> users);
+
+  /** @return the number of Messages deleted */
+  int deleteAllMessages(List<Message> messages);
+
+  /**
+   * Deletes every stored Message, including ones that were never loaded.
+   *
+   * @return the number of Messages deleted
+   */
+  int deleteAllStoredMessages();
+
+  /** @return the number of Conversations deleted */
+  int deleteAllConversations(List<Conversation> conversations);
+
+  /** Releases anything the backend holds open. Called once, when the server shuts down. */
+  default void close() {}
+}
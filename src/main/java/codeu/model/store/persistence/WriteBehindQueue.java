@@ -0,0 +1,409 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.model.store.persistence;
+
+import codeu.model.data.Message;
+import com.google.appengine.api.ThreadManager;
+import com.google.apphosting.api.ApiProxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Bounded queue of Messages waiting to be written to a StorageBackend. A background thread
+ * drains the queue and writes the Messages in batches, so senders don't each wait on their own
+ * Datastore put. When the queue is full, senders block until there's room again.
+ *
+ * <p>Write-behind is off unless the {@code codeu.writeBehind.enabled} system property is true. The
+ * other settings are read from these system properties:
+ *
+ * <ul>
+ *   <li>{@code codeu.writeBehind.capacity}: how many Messages the queue holds, at least one
+ *   <li>{@code codeu.writeBehind.flushSize}: the most Messages written in one batch, between one
+ *       and the Datastore batch limit
+ *   <li>{@code codeu.writeBehind.flushIntervalMillis}: how long a batch waits to fill up
+ *   <li>{@code codeu.writeBehind.durability}: one of {@link Durability}, ACK_AFTER_FLUSH unless
+ *       configured otherwise
+ * </ul>
+ *
+ * <p>Closing the queue stops it accepting writes; later writes go straight to the StorageBackend.
+ * Every write queued before then is written, or failed if the flusher doesn't finish in time, so
+ * no caller is left waiting on a stopped queue.
+ *
+ * <p>On App Engine the flusher is a ThreadManager background thread, since only those can call
+ * Datastore outside a request. Background threads are only allowed on manual and basic scaling, so
+ * write-behind can't be enabled on automatic scaling.
+ */
+public class WriteBehindQueue {
+
+  /** When a write returns to its caller. */
+  public enum Durability {
+    /** As soon as the Message is in the queue. A failed flush loses the Message. */
+    ACK_AFTER_ENQUEUE,
+    /** Once the batch holding the Message has been written, or has failed. */
+    ACK_AFTER_FLUSH
+  }
+
+  static final int DEFAULT_CAPACITY = 10000;
+
+  static final int DEFAULT_FLUSH_SIZE = PersistentDataStore.MAX_BATCH_SIZE;
+
+  static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 100;
+
+  /**
+   * How long a sender waits for room in a full queue, or for its write to flush, before checking
+   * whether the queue has stopped.
+   */
+  private static final long WAIT_MILLIS = 100;
+
+  /**
+   * Creates a WriteBehindQueue configured by system properties and starts its flusher, or returns
+   * null if write-behind isn't enabled.
+   */
+  static WriteBehindQueue fromSystemProperties(StorageBackend storageBackend) {
+    if (!Boolean.getBoolean("codeu.writeBehind.enabled")) {
+      return null;
+    }
+    WriteBehindQueue queue =
+        new WriteBehindQueue(
+            storageBackend,
+            Integer.getInteger("codeu.writeBehind.capacity", DEFAULT_CAPACITY),
+            Integer.getInteger("codeu.writeBehind.flushSize", DEFAULT_FLUSH_SIZE),
+            Long.getLong("codeu.writeBehind.flushIntervalMillis", DEFAULT_FLUSH_INTERVAL_MILLIS),
+            Durability.valueOf(
+                System.getProperty(
+                    "codeu.writeBehind.durability", Durability.ACK_AFTER_FLUSH.name())));
+    queue.start();
+    return queue;
+  }
+
+  /** A queued Message, or a marker with no Message that lets a caller wait for the flusher. */
+  private static class PendingWrite {
+
+    private final Message message;
+    private final CountDownLatch flushed;
+    private volatile RuntimeException failure;
+
+    PendingWrite(Message message, boolean awaitable) {
+      this.message = message;
+      this.flushed = awaitable ? new CountDownLatch(1) : null;
+    }
+
+    void complete(RuntimeException failure) {
+      this.failure = failure;
+      if (flushed != null) {
+        flushed.countDown();
+      }
+    }
+  }
+
+  private final StorageBackend storageBackend;
+  private final BlockingQueue<PendingWrite> queue;
+  private final int flushSize;
+  private final long flushIntervalMillis;
+  private final Durability durability;
+  private final Thread flusher;
+  private volatile boolean running;
+
+  /**
+   * Guards running against enqueues. Senders check it and enqueue under the read lock, and close()
+   * clears it under the write lock, so nothing is queued after close() has started draining.
+   */
+  private final ReadWriteLock stateLock = new ReentrantReadWriteLock();
+
+  private final AtomicLong flushCount = new AtomicLong();
+  private final AtomicLong flushedMessages = new AtomicLong();
+  private final AtomicLong failedMessages = new AtomicLong();
+  private final AtomicLong totalFlushNanos = new AtomicLong();
+  private volatile long lastFlushNanos;
+  private volatile long maxFlushNanos;
+
+  WriteBehindQueue(
+      StorageBackend storageBackend,
+      int capacity,
+      int flushSize,
+      long flushIntervalMillis,
+      Durability durability) {
+    this.storageBackend = storageBackend;
+    this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    // a batch larger than Datastore accepts would fail every time
+    this.flushSize = Math.max(1, Math.min(PersistentDataStore.MAX_BATCH_SIZE, flushSize));
+    this.flushIntervalMillis = flushIntervalMillis;
+    this.durability = durability;
+    this.flusher = newFlusherThread(this::runFlusher);
+  }
+
+  /**
+   * Creates the flusher thread. On App Engine it's a background thread from ThreadManager, which
+   * keeps the API environment Datastore calls need; anywhere else it's a daemon thread so it
+   * doesn't keep the server running.
+   */
+  private static Thread newFlusherThread(Runnable runnable) {
+    if (ApiProxy.getCurrentEnvironment() != null) {
+      return ThreadManager.createBackgroundThread(runnable);
+    }
+    Thread thread = new Thread(runnable, "message-write-behind");
+    thread.setDaemon(true);
+    return thread;
+  }
+
+  /** Starts the background flusher. */
+  void start() {
+    running = true;
+    flusher.start();
+  }
+
+  /**
+   * Queues a Message to be written. Depending on the Durability setting, this returns once the
+   * Message is queued or once it has been written. If the queue has been closed, the Message is
+   * written directly.
+   */
+  void write(Message message) {
+    PendingWrite pendingWrite =
+        new PendingWrite(message, durability == Durability.ACK_AFTER_FLUSH);
+    if (!enqueue(pendingWrite)) {
+      storageBackend.writeThrough(message);
+      return;
+    }
+    if (durability == Durability.ACK_AFTER_FLUSH) {
+      await(pendingWrite);
+      if (pendingWrite.failure != null) {
+        throw pendingWrite.failure;
+      }
+    }
+  }
+
+  /** Blocks until every Message queued before this call has been written or has failed. */
+  void flush() {
+    PendingWrite marker = new PendingWrite(null, true);
+    if (enqueue(marker)) {
+      await(marker);
+    }
+  }
+
+  /**
+   * Stops accepting Messages, writes everything still queued and stops the flusher. Waits at most
+   * the given time for the flusher to finish.
+   */
+  void close(long timeoutMillis) {
+    stateLock.writeLock().lock();
+    try {
+      if (!running) {
+        return;
+      }
+      running = false;
+    } finally {
+      stateLock.writeLock().unlock();
+    }
+    try {
+      flusher.join(timeoutMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    List<PendingWrite> remaining = new ArrayList<>();
+    queue.drainTo(remaining);
+    if (remaining.isEmpty()) {
+      return;
+    }
+    if (!flusher.isAlive()) {
+      // the flusher stopped before draining, so write what it left
+      flushBatch(remaining);
+      return;
+    }
+    // the flusher is stuck; fail what it hasn't taken rather than leave senders waiting
+    RuntimeException failure =
+        new IllegalStateException("Write-behind queue closed before the write was flushed");
+    int messages = 0;
+    for (PendingWrite pendingWrite : remaining) {
+      if (pendingWrite.message != null) {
+        messages++;
+      }
+      pendingWrite.complete(pendingWrite.message == null ? null : failure);
+    }
+    failedMessages.addAndGet(messages);
+    System.err.println(
+        "Write-behind queue closed with " + messages + " Messages still pending. They were lost.");
+  }
+
+  /**
+   * Queues a write, waiting for room if the queue is full.
+   *
+   * @return false if the queue is closed, so the write wasn't queued
+   */
+  private boolean enqueue(PendingWrite pendingWrite) {
+    try {
+      while (true) {
+        stateLock.readLock().lock();
+        try {
+          if (!running) {
+            return false;
+          }
+          if (queue.offer(pendingWrite, WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+            return true;
+          }
+        } finally {
+          // let close() in between attempts
+          stateLock.readLock().unlock();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for room in the write queue", e);
+    }
+  }
+
+  /**
+   * Waits for a queued write to be written or failed. close() completes every write it doesn't
+   * flush, so this only gives up if the flusher died while the queue was still open.
+   */
+  private void await(PendingWrite pendingWrite) {
+    try {
+      while (!pendingWrite.flushed.await(WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+        if (running && !flusher.isAlive()) {
+          throw new IllegalStateException("Write-behind flusher stopped unexpectedly");
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for a write to flush", e);
+    }
+  }
+
+  private void runFlusher() {
+    List<PendingWrite> batch = new ArrayList<>(flushSize);
+    while (running || !queue.isEmpty()) {
+      try {
+        collectBatch(batch);
+      } catch (InterruptedException e) {
+        // keep draining until close() says to stop
+      }
+      if (!batch.isEmpty()) {
+        flushBatch(batch);
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Waits for the first queued write, then keeps taking writes until the batch is full or the
+   * flush interval has passed since the first one arrived.
+   */
+  private void collectBatch(List<PendingWrite> batch) throws InterruptedException {
+    PendingWrite first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+    if (first == null) {
+      return;
+    }
+    batch.add(first);
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+    while (batch.size() < flushSize) {
+      queue.drainTo(batch, flushSize - batch.size());
+      long remainingNanos = deadline - System.nanoTime();
+      if (batch.size() >= flushSize || remainingNanos <= 0 || !running) {
+        return;
+      }
+      PendingWrite next = queue.poll(remainingNanos, TimeUnit.NANOSECONDS);
+      if (next == null) {
+        return;
+      }
+      batch.add(next);
+    }
+  }
+
+  private void flushBatch(List<PendingWrite> batch) {
+    List<Message> messages = new ArrayList<>(batch.size());
+    for (PendingWrite pendingWrite : batch) {
+      if (pendingWrite.message != null) {
+        messages.add(pendingWrite.message);
+      }
+    }
+
+    RuntimeException failure = null;
+    if (!messages.isEmpty()) {
+      long start = System.nanoTime();
+      try {
+        storageBackend.writeThrough(messages);
+        flushedMessages.addAndGet(messages.size());
+      } catch (RuntimeException e) {
+        failure = e;
+        failedMessages.addAndGet(messages.size());
+        System.err.println("Write-behind flush of " + messages.size() + " Messages failed.");
+        e.printStackTrace();
+      }
+      long elapsed = System.nanoTime() - start;
+      flushCount.incrementAndGet();
+      totalFlushNanos.addAndGet(elapsed);
+      lastFlushNanos = elapsed;
+      if (elapsed > maxFlushNanos) {
+        maxFlushNanos = elapsed;
+      }
+    }
+
+    for (PendingWrite pendingWrite : batch) {
+      pendingWrite.complete(pendingWrite.message == null ? null : failure);
+    }
+  }
+
+  public Durability getDurability() {
+    return durability;
+  }
+
+  /** Returns the most writes the queue holds. */
+  public int getCapacity() {
+    return queue.size() + queue.remainingCapacity();
+  }
+
+  /** Returns the most Messages written in one batch. */
+  public int getFlushSize() {
+    return flushSize;
+  }
+
+  /** Returns the number of writes waiting in the queue. */
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  public long getFlushCount() {
+    return flushCount.get();
+  }
+
+  public long getFlushedMessages() {
+    return flushedMessages.get();
+  }
+
+  /** Returns the number of Messages lost or rejected because their batch failed to write. */
+  public long getFailedMessages() {
+    return failedMessages.get();
+  }
+
+  public double getLastFlushMillis() {
+    return lastFlushNanos / 1e6;
+  }
+
+  public double getMaxFlushMillis() {
+    return maxFlushNanos / 1e6;
+  }
+
+  public double getAverageFlushMillis() {
+    long flushes = flushCount.get();
+    return flushes == 0 ? 0 : totalFlushNanos.get() / 1e6 / flushes;
+  }
+}
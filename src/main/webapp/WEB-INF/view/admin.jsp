@@ -18,13 +18,17 @@
 <%@ page import="codeu.model.store.basic.UserStore"%>
 <%@ page import="codeu.model.store.basic.MessageStore"%>
 <%@ page import="codeu.model.store.basic.ConversationStore"%>
+<%@ page import="codeu.model.store.persistence.PersistentStorageAgent"%>
+<%@ page import="codeu.model.store.persistence.WriteBehindQueue"%>
 
 <%
 String user = (String) request.getSession().getAttribute("user");
 String message = (String) request.getSession().getAttribute("adminMessage");
+String deletionMessage = (String) request.getAttribute("deletionMessage");
 int numUsers = UserStore.getInstance().getNumUsers();
 int numMessages = MessageStore.getInstance().getNumMessages();
 int numConversations = ConversationStore.getInstance().getNumConversations();
+WriteBehindQueue writeBehindQueue = PersistentStorageAgent.getInstance().getWriteBehindQueue();
 %>
 <!DOCTYPE html>
 <html>
@@ -74,8 +78,26 @@ int numConversations = ConversationStore.getInstance().getNumConversations();
             <li><b>Messages: </b><%= numMessages%></li>
             <li><b>Conversations: </b><%= numConversations%></li>
           </ul>
+
+          <% if (writeBehindQueue != null) { %>
+            <h2>Message Write Queue</h2>
+            <ul>
+              <li><b>Durability: </b><%= writeBehindQueue.getDurability() %></li>
+              <li><b>Queue depth: </b><%= writeBehindQueue.getQueueDepth() %></li>
+              <li><b>Flushes: </b><%= writeBehindQueue.getFlushCount() %></li>
+              <li><b>Messages written: </b><%= writeBehindQueue.getFlushedMessages() %></li>
+              <li><b>Messages failed: </b><%= writeBehindQueue.getFailedMessages() %></li>
+              <li><b>Flush latency (last / avg / max ms): </b>
+                <%= String.format("%.1f / %.1f / %.1f", writeBehindQueue.getLastFlushMillis(),
+                    writeBehindQueue.getAverageFlushMillis(), writeBehindQueue.getMaxFlushMillis()) %></li>
+            </ul>
+          <% } %>
           <p>
 
+          <% if (deletionMessage != null) { %>
+            <p><%= deletionMessage %></p>
+          <% } %>
+
 		  <form method="post" action="${pageContext.request.contextPath}/admin">
 			  <input type="submit" name="deleteUsersButton" value="Delete All Users" />
 			  <input type="submit" name="deleteMessagesButton" value="Delete All Messages" />
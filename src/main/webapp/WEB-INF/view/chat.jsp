@@ -14,15 +14,20 @@
   limitations under the License.
 --%>
 <%@ page import="java.util.List" %>
+<%@ page import="java.util.Map" %>
+<%@ page import="java.util.UUID" %>
 <%@ page import="codeu.model.data.Conversation" %>
 <%@ page import="codeu.model.data.Message" %>
-<%@ page import="codeu.model.store.basic.UserStore" %>
 <%@ page import="codeu.helper.AdminHelper"%>
 
 <%
 String user = (String) request.getSession().getAttribute("user");
 Conversation conversation = (Conversation) request.getAttribute("conversation");
 List<Message> messages = (List<Message>) request.getAttribute("messages");
+Map<UUID, String> authorNames = (Map<UUID, String>) request.getAttribute("authorNames");
+String ownerName = (String) request.getAttribute("ownerName");
+String olderMessagesCursor = (String) request.getAttribute("olderMessagesCursor");
+Integer limit = (Integer) request.getAttribute("limit");
 %>
 
 <!DOCTYPE html>
@@ -45,9 +50,88 @@ List<Message> messages = (List<Message>) request.getAttribute("messages");
       var chatDiv = document.getElementById('chat');
       chatDiv.scrollTop = chatDiv.scrollHeight;
     };
+
+    // append a message received from the server to the chat list
+    function appendMessage(message) {
+      var authorLink = document.createElement('a');
+      authorLink.href = '/profile/' + encodeURIComponent(message.author);
+      authorLink.textContent = message.author;
+      var strong = document.createElement('strong');
+      strong.appendChild(authorLink);
+      strong.appendChild(document.createTextNode(':'));
+      var item = document.createElement('li');
+      item.appendChild(strong);
+      // message content was already cleaned to basic HTML when it was sent
+      item.insertAdjacentHTML('beforeend', ' ' + message.content);
+      document.getElementById('messages').appendChild(item);
+    };
+
+    // ask the server for messages newer than the last one shown; the server holds the request
+    // until there are some, so the next poll starts as soon as this one returns
+    function pollMessages() {
+      var list = document.getElementById('messages');
+      var request = new XMLHttpRequest();
+      request.open('GET', list.getAttribute('data-poll-url') + '?since='
+          + encodeURIComponent(list.getAttribute('data-last-message-id')));
+      request.onload = function() {
+        if (request.status === 200) {
+          var messages = JSON.parse(request.responseText).messages;
+          for (var i = 0; i < messages.length; i++) {
+            appendMessage(messages[i]);
+            list.setAttribute('data-last-message-id', messages[i].id);
+          }
+          if (messages.length > 0) {
+            scrollChat();
+          }
+          pollMessages();
+        } else {
+          setTimeout(pollMessages, 2000);
+        }
+      };
+      request.onerror = function() {
+        setTimeout(pollMessages, 2000);
+      };
+      request.send();
+    };
+
+    // show each message as the server pushes it, falling back to polling if streams don't work
+    function streamMessages() {
+      var list = document.getElementById('messages');
+      var source = new EventSource(list.getAttribute('data-stream-url') + '?since='
+          + encodeURIComponent(list.getAttribute('data-last-message-id')));
+      var opened = false;
+      source.onopen = function() {
+        opened = true;
+      };
+      source.onmessage = function(event) {
+        var message = JSON.parse(event.data);
+        appendMessage(message);
+        list.setAttribute('data-last-message-id', message.id);
+        scrollChat();
+      };
+      source.onerror = function() {
+        // once a stream has opened, EventSource reconnects by itself and resumes from the last
+        // message it got
+        if (!opened) {
+          source.close();
+          pollMessages();
+        }
+      };
+    };
+
+    function onChatLoad() {
+      scrollChat();
+      if (document.getElementById('messages').hasAttribute('data-messages-url')) {
+        if (window.EventSource) {
+          streamMessages();
+        } else {
+          pollMessages();
+        }
+      }
+    };
   </script>
 </head>
-<body onload="scrollChat()">
+<body onload="onChatLoad()">
 
   <nav>
     <a id="navTitle" href="/">Git Rekt's Chat App</a>
@@ -84,11 +168,25 @@ List<Message> messages = (List<Message>) request.getAttribute("messages");
     <hr/>
 
     <div id="chat">
-      <ul>
+    <% if (olderMessagesCursor != null) { %>
+      <a href="/chat/<%= conversation.getTitle() %>?before=<%= olderMessagesCursor %>&limit=<%= limit %>">
+        Load older messages</a>
+    <% } %>
+    <% if (request.getParameter("before") != null) { %>
+      <a href="/chat/<%= conversation.getTitle() %>" style="float: right">Jump to latest</a>
+    <% } %>
+    <% if (request.getParameter("before") == null) { %>
+      <%-- only the newest page keeps itself up to date --%>
+      <ul id="messages" data-messages-url="/chat/<%= conversation.getTitle() %>/messages"
+          data-stream-url="/chat/<%= conversation.getTitle() %>/stream"
+          data-poll-url="/chat/<%= conversation.getTitle() %>/poll"
+          data-last-message-id="<%= messages.isEmpty() ? "" : messages.get(messages.size() - 1).getId() %>">
+    <% } else { %>
+      <ul id="messages">
+    <% } %>
     <%
       for (Message message : messages) {
-        String author = UserStore.getInstance()
-          .getUser(message.getAuthorId()).getName();
+        String author = authorNames.get(message.getAuthorId());
     %>
       <li><strong><a href="/profile/<%= author %>">
       	<%= author %></a>:</strong> <%= message.getContent() %></li>
@@ -108,9 +206,7 @@ List<Message> messages = (List<Message>) request.getAttribute("messages");
 
       <% if (conversation.isGroupConversation()) {
 		// check if group convo owner is current user
-	  	String name = UserStore.getInstance().getUser(conversation.getOwnerId())
-		 	.getName();
-			if (user.equals(name)) {
+			if (user.equals(ownerName)) {
 		%>
 	    <form action="/chat/add-user/<%= conversation.getTitle() %>" method="POST">
 	        <input type="text" name="newUser">
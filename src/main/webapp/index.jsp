@@ -18,6 +18,8 @@
 
 <%
 String user = (String) request.getSession().getAttribute("user");
+String deletionMessage = (String) request.getSession().getAttribute("deletionMessage");
+request.getSession().removeAttribute("deletionMessage");
 %>
 
 <!DOCTYPE html>
@@ -56,6 +58,10 @@ String user = (String) request.getSession().getAttribute("user");
       <h1>Git Rekt's Chat App</h1>
       <h2>Welcome!</h2>
 
+      <% if (deletionMessage != null) { %>
+        <p><%= deletionMessage %></p>
+      <% } %>
+
       <ul>
         <li><a href="/login">Login</a> to get started.</li>
         <li>Go to the <a href="/conversations">conversations</a> page to
@@ -129,9 +129,14 @@ public class AdminServletTest {
         Assert.assertEquals(12345, fakeUserStore.getNumUsers());
         Mockito.when(mockRequest.getParameter("deleteUsersButton")).thenReturn("notNull");
 
+        Mockito.when(mockPersistentStorageAgent.deleteAllUsers(Mockito.anyList())).thenReturn(12345);
+        Mockito.when(mockPersistentStorageAgent.deleteAllMessages(Mockito.anyList())).thenReturn(1234);
+
         adminServlet.doPost(mockRequest, mockResponse);
 
         Mockito.verify(mockResponse).sendRedirect("/logout");
+        Mockito.verify(mockSession).setAttribute("deletionMessage",
+                "Deleted 12345 users and 1234 messages.");
 
         Assert.assertEquals(0, fakeUserStore.getNumUsers());
     }
@@ -143,9 +148,12 @@ public class AdminServletTest {
         Assert.assertEquals(1234, fakeMessageStore.getNumMessages());
         Mockito.when(mockRequest.getParameter("deleteMessagesButton")).thenReturn("notNull");
 
+        Mockito.when(mockPersistentStorageAgent.deleteAllMessages(Mockito.anyList())).thenReturn(1234);
+
         adminServlet.doPost(mockRequest, mockResponse);
 
         Assert.assertEquals(0, fakeMessageStore.getNumMessages());
+        Mockito.verify(mockRequest).setAttribute("deletionMessage", "Deleted 1234 messages.");
 
         Mockito.verify(mockRequestDispatcher).forward(mockRequest, mockResponse);
     }
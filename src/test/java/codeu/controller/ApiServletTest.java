@@ -0,0 +1,178 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.controller;
+
+import static codeu.model.data.Conversation.ConversationType;
+
+import codeu.model.data.Conversation;
+import codeu.model.data.Message;
+import codeu.model.data.User;
+import codeu.model.store.basic.ConversationStore;
+import codeu.model.store.basic.MessageStore;
+import codeu.model.store.basic.UserStore;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class ApiServletTest {
+
+  private ApiServlet apiServlet;
+  private HttpServletRequest mockRequest;
+  private HttpSession mockSession;
+  private HttpServletResponse mockResponse;
+  private StringWriter responseBody;
+  private ConversationStore mockConversationStore;
+  private MessageStore mockMessageStore;
+  private UserStore mockUserStore;
+
+  private final User USER =
+      new User(UUID.randomUUID(), "test_username", "testHash", Instant.ofEpochMilli(1000));
+
+  @Before
+  public void setup() throws IOException {
+    apiServlet = new ApiServlet();
+
+    mockRequest = Mockito.mock(HttpServletRequest.class);
+    mockSession = Mockito.mock(HttpSession.class);
+    Mockito.when(mockRequest.getSession()).thenReturn(mockSession);
+
+    mockResponse = Mockito.mock(HttpServletResponse.class);
+    responseBody = new StringWriter();
+    Mockito.when(mockResponse.getWriter()).thenReturn(new PrintWriter(responseBody));
+
+    mockConversationStore = Mockito.mock(ConversationStore.class);
+    apiServlet.setConversationStore(mockConversationStore);
+
+    mockMessageStore = Mockito.mock(MessageStore.class);
+    apiServlet.setMessageStore(mockMessageStore);
+
+    mockUserStore = Mockito.mock(UserStore.class);
+    apiServlet.setUserStore(mockUserStore);
+    Mockito.when(mockUserStore.getUser(USER.getId())).thenReturn(USER);
+    Mockito.when(mockUserStore.getUser(USER.getName())).thenReturn(USER);
+  }
+
+  @Test
+  public void testDoGet_Conversations() throws IOException {
+    Mockito.when(mockRequest.getRequestURI()).thenReturn("/api/conversations");
+    Mockito.when(mockSession.getAttribute("user")).thenReturn("test_username");
+    Conversation group =
+        new Conversation(
+            UUID.randomUUID(),
+            USER.getId(),
+            "group",
+            Instant.ofEpochMilli(2000),
+            Arrays.asList("test_username", "other"),
+            ConversationType.GROUP);
+    Mockito.when(mockConversationStore.getConversationsForUser("test_username"))
+        .thenReturn(Collections.singletonList(group));
+
+    apiServlet.doGet(mockRequest, mockResponse);
+
+    Mockito.verify(mockResponse).setContentType("application/json");
+    Assert.assertEquals(
+        "{\"conversations\":[{\"id\":\"" + group.getId() + "\",\"title\":\"group\","
+            + "\"owner\":\"" + USER.getId() + "\",\"type\":\"GROUP\","
+            + "\"creation\":\"1970-01-01T00:00:02Z\",\"users\":[\"test_username\",\"other\"]}]}",
+        responseBody.toString());
+  }
+
+  @Test
+  public void testDoGet_Messages() throws IOException {
+    Mockito.when(mockRequest.getRequestURI()).thenReturn("/api/conversations/test/messages");
+    Mockito.when(mockRequest.getParameter("limit")).thenReturn("1");
+    Conversation conversation =
+        new Conversation(UUID.randomUUID(), USER.getId(), "test", Instant.ofEpochMilli(2000));
+    Mockito.when(mockConversationStore.getConversationWithTitle("test")).thenReturn(conversation);
+
+    Message message =
+        new Message(
+            UUID.randomUUID(),
+            conversation.getId(),
+            USER.getId(),
+            "line one\n<b>\"two\"</b>",
+            Instant.ofEpochMilli(4000));
+    List<Message> page = new ArrayList<>();
+    page.add(message);
+    Mockito.when(mockMessageStore.getMessagesBefore(conversation.getId(), null, 1))
+        .thenReturn(page);
+    Mockito.when(mockMessageStore.getMessagesBefore(conversation.getId(), message.getId(), 1))
+        .thenReturn(Collections.singletonList(message));
+
+    apiServlet.doGet(mockRequest, mockResponse);
+
+    Assert.assertEquals(
+        "{\"messages\":[{\"id\":\"" + message.getId() + "\",\"author\":\"test_username\","
+            + "\"content\":\"line one\\n\\u003cb>\\\"two\\\"\\u003c/b>\","
+            + "\"creation\":\"1970-01-01T00:00:04Z\"}],\"next\":\"" + message.getId() + "\"}",
+        responseBody.toString());
+  }
+
+  @Test
+  public void testDoGet_MessagesPrivateConversation() throws IOException {
+    Mockito.when(mockRequest.getRequestURI()).thenReturn("/api/conversations/private/messages");
+    Mockito.when(mockSession.getAttribute("user")).thenReturn("outsider");
+    Conversation conversation =
+        new Conversation(
+            UUID.randomUUID(),
+            USER.getId(),
+            "private",
+            Instant.now(),
+            Arrays.asList("test_username", "other"),
+            ConversationType.DIRECT);
+    Mockito.when(mockConversationStore.getConversationWithTitle("private"))
+        .thenReturn(conversation);
+
+    apiServlet.doGet(mockRequest, mockResponse);
+
+    Mockito.verify(mockResponse).sendError(HttpServletResponse.SC_FORBIDDEN);
+    Mockito.verify(mockMessageStore, Mockito.never())
+        .getMessagesBefore(Mockito.any(), Mockito.any(), Mockito.anyInt());
+  }
+
+  @Test
+  public void testDoGet_User() throws IOException {
+    Mockito.when(mockRequest.getRequestURI()).thenReturn("/api/users/test_username");
+
+    apiServlet.doGet(mockRequest, mockResponse);
+
+    Assert.assertEquals(
+        "{\"id\":\"" + USER.getId() + "\",\"name\":\"test_username\","
+            + "\"creation\":\"1970-01-01T00:00:01Z\"}",
+        responseBody.toString());
+  }
+
+  @Test
+  public void testDoGet_UnknownPath() throws IOException {
+    Mockito.when(mockRequest.getRequestURI()).thenReturn("/api/unknown");
+
+    apiServlet.doGet(mockRequest, mockResponse);
+
+    Mockito.verify(mockResponse).sendError(HttpServletResponse.SC_NOT_FOUND);
+  }
+}
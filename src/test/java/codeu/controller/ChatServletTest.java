@@ -23,13 +23,23 @@ import codeu.model.data.User;
 import codeu.model.store.basic.ConversationStore;
 import codeu.model.store.basic.MessageStore;
 import codeu.model.store.basic.UserStore;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import javax.servlet.AsyncContext;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
@@ -93,16 +103,326 @@ public class ChatServletTest {
             UUID.randomUUID(),
             "test message",
             Instant.now()));
-    Mockito.when(mockMessageStore.getMessagesInConversation(fakeConversationId))
+    Mockito.when(mockMessageStore.getMessagesBefore(
+        fakeConversationId, null, ChatServlet.DEFAULT_PAGE_SIZE))
         .thenReturn(fakeMessageList);
 
     chatServlet.doGet(mockRequest, mockResponse);
 
     Mockito.verify(mockRequest).setAttribute("conversation", fakeConversation);
     Mockito.verify(mockRequest).setAttribute("messages", fakeMessageList);
+    Mockito.verify(mockRequest).setAttribute(Mockito.eq("authorNames"), Mockito.any(Map.class));
+    Mockito.verify(mockRequestDispatcher).forward(mockRequest, mockResponse);
+  }
+
+  @Test
+  public void testDoGet_NotModified() throws IOException, ServletException {
+    Mockito.when(mockRequest.getRequestURI()).thenReturn("/chat/test_conversation");
+
+    UUID fakeConversationId = UUID.randomUUID();
+    Conversation fakeConversation =
+        new Conversation(fakeConversationId, UUID.randomUUID(), "test_conversation", Instant.now());
+    Mockito.when(mockConversationStore.getConversationWithTitle("test_conversation"))
+        .thenReturn(fakeConversation);
+
+    List<Message> fakeMessageList = new ArrayList<>();
+    fakeMessageList.add(
+        new Message(
+            UUID.randomUUID(),
+            fakeConversationId,
+            UUID.randomUUID(),
+            "test message",
+            Instant.ofEpochMilli(5000)));
+    Mockito.when(mockMessageStore.getMessagesInConversation(fakeConversationId))
+        .thenReturn(fakeMessageList);
+    Mockito.when(mockRequest.getHeader("If-None-Match")).thenReturn("W/\"stale\"");
+
+    chatServlet.doGet(mockRequest, mockResponse);
+
+    ArgumentCaptor<String> etagArgumentCaptor = ArgumentCaptor.forClass(String.class);
+    Mockito.verify(mockResponse).setHeader(Mockito.eq("ETag"), etagArgumentCaptor.capture());
+    Mockito.verify(mockResponse).setDateHeader("Last-Modified", 5000);
+    Mockito.verify(mockRequestDispatcher).forward(mockRequest, mockResponse);
+
+    // nothing has changed since the browser got the page
+    Mockito.when(mockRequest.getHeader("If-None-Match")).thenReturn(etagArgumentCaptor.getValue());
+    chatServlet.doGet(mockRequest, mockResponse);
+
+    Mockito.verify(mockResponse).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    Mockito.verify(mockRequestDispatcher).forward(mockRequest, mockResponse);
+
+    // a new message changes the page
+    fakeMessageList.add(
+        new Message(
+            UUID.randomUUID(),
+            fakeConversationId,
+            UUID.randomUUID(),
+            "newer message",
+            Instant.ofEpochMilli(6000)));
+    chatServlet.doGet(mockRequest, mockResponse);
+
+    Mockito.verify(mockRequestDispatcher, Mockito.times(2)).forward(mockRequest, mockResponse);
+  }
+
+  @Test
+  public void testDoGet_OlderPage() throws IOException, ServletException {
+    Mockito.when(mockRequest.getRequestURI()).thenReturn("/chat/test_conversation");
+    UUID before = UUID.randomUUID();
+    Mockito.when(mockRequest.getParameter("before")).thenReturn(before.toString());
+    Mockito.when(mockRequest.getParameter("limit")).thenReturn("10");
+
+    UUID fakeConversationId = UUID.randomUUID();
+    Conversation fakeConversation =
+        new Conversation(fakeConversationId, UUID.randomUUID(), "test_conversation", Instant.now());
+    Mockito.when(mockConversationStore.getConversationWithTitle("test_conversation"))
+        .thenReturn(fakeConversation);
+
+    UUID oldestShown = UUID.randomUUID();
+    List<Message> fakeMessageList = new ArrayList<>();
+    fakeMessageList.add(
+        new Message(
+            oldestShown, fakeConversationId, UUID.randomUUID(), "test message", Instant.now()));
+    Mockito.when(mockMessageStore.getMessagesBefore(fakeConversationId, before, 10))
+        .thenReturn(fakeMessageList);
+    Mockito.when(mockMessageStore.getMessagesBefore(fakeConversationId, oldestShown, 1))
+        .thenReturn(fakeMessageList);
+
+    chatServlet.doGet(mockRequest, mockResponse);
+
+    Mockito.verify(mockRequest).setAttribute("messages", fakeMessageList);
+    Mockito.verify(mockRequest).setAttribute("olderMessagesCursor", oldestShown.toString());
     Mockito.verify(mockRequestDispatcher).forward(mockRequest, mockResponse);
   }
 
+  @Test
+  public void testDoGet_ResolvesEachAuthorOnce() throws IOException, ServletException {
+    Mockito.when(mockRequest.getRequestURI()).thenReturn("/chat/test_conversation");
+
+    User fakeOwner = new User(UUID.randomUUID(), "owner", "testHash", Instant.now());
+    User fakeAuthor = new User(UUID.randomUUID(), "author", "testHash", Instant.now());
+    Mockito.when(mockUserStore.getUser(fakeOwner.getId())).thenReturn(fakeOwner);
+    Mockito.when(mockUserStore.getUser(fakeAuthor.getId())).thenReturn(fakeAuthor);
+
+    UUID fakeConversationId = UUID.randomUUID();
+    Conversation fakeConversation =
+        new Conversation(fakeConversationId, fakeOwner.getId(), "test_conversation", Instant.now());
+    Mockito.when(mockConversationStore.getConversationWithTitle("test_conversation"))
+        .thenReturn(fakeConversation);
+
+    List<Message> fakeMessageList = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      fakeMessageList.add(
+          new Message(
+              UUID.randomUUID(), fakeConversationId, fakeAuthor.getId(), "message " + i, Instant.now()));
+    }
+    Mockito.when(mockMessageStore.getMessagesBefore(
+        fakeConversationId, null, ChatServlet.DEFAULT_PAGE_SIZE))
+        .thenReturn(fakeMessageList);
+
+    chatServlet.doGet(mockRequest, mockResponse);
+
+    Map<UUID, String> expectedAuthorNames = new HashMap<>();
+    expectedAuthorNames.put(fakeAuthor.getId(), "author");
+    Mockito.verify(mockRequest).setAttribute("authorNames", expectedAuthorNames);
+    Mockito.verify(mockRequest).setAttribute("ownerName", "owner");
+    Mockito.verify(mockUserStore, Mockito.times(1)).getUser(fakeAuthor.getId());
+  }
+
+  @Test
+  public void testDoGet_NewMessagesJson() throws IOException, ServletException {
+    Mockito.when(mockRequest.getRequestURI()).thenReturn("/chat/test_conversation/messages");
+
+    UUID fakeConversationId = UUID.randomUUID();
+    Conversation fakeConversation =
+        new Conversation(fakeConversationId, UUID.randomUUID(), "test_conversation", Instant.now());
+    Mockito.when(mockConversationStore.getConversationWithTitle("test_conversation"))
+        .thenReturn(fakeConversation);
+
+    UUID lastSeenId = UUID.randomUUID();
+    Mockito.when(mockRequest.getParameter("since")).thenReturn(lastSeenId.toString());
+
+    User fakeUser = new User(UUID.randomUUID(), "test_username", "testHash", Instant.now());
+    Mockito.when(mockUserStore.getUser(fakeUser.getId())).thenReturn(fakeUser);
+
+    UUID newMessageId = UUID.randomUUID();
+    List<Message> fakeMessageList = new ArrayList<>();
+    fakeMessageList.add(
+        new Message(
+            newMessageId,
+            fakeConversationId,
+            fakeUser.getId(),
+            "say \"hi\"",
+            Instant.ofEpochMilli(1000)));
+    Mockito.when(mockMessageStore.getMessagesSince(fakeConversationId, lastSeenId))
+        .thenReturn(fakeMessageList);
+
+    StringWriter responseBody = new StringWriter();
+    Mockito.when(mockResponse.getWriter()).thenReturn(new PrintWriter(responseBody));
+
+    chatServlet.doGet(mockRequest, mockResponse);
+
+    Mockito.verify(mockResponse).setContentType("application/json");
+    Assert.assertEquals(
+        "{\"messages\":[{\"id\":\"" + newMessageId + "\",\"author\":\"test_username\","
+            + "\"content\":\"say \\\"hi\\\"\",\"creation\":\"1970-01-01T00:00:01Z\"}]}",
+        responseBody.toString());
+    Mockito.verify(mockRequestDispatcher, never()).forward(mockRequest, mockResponse);
+  }
+
+  @Test
+  public void testDoGet_Stream() throws IOException, ServletException {
+    Mockito.when(mockRequest.getRequestURI()).thenReturn("/chat/test_conversation/stream");
+
+    UUID fakeConversationId = UUID.randomUUID();
+    Conversation fakeConversation =
+        new Conversation(fakeConversationId, UUID.randomUUID(), "test_conversation", Instant.now());
+    Mockito.when(mockConversationStore.getConversationWithTitle("test_conversation"))
+        .thenReturn(fakeConversation);
+
+    // a reconnecting EventSource's Last-Event-ID wins over the page's since parameter
+    UUID lastSeenId = UUID.randomUUID();
+    Mockito.when(mockRequest.getHeader("Last-Event-ID")).thenReturn(lastSeenId.toString());
+    Mockito.when(mockRequest.getParameter("since")).thenReturn(UUID.randomUUID().toString());
+
+    User fakeUser = new User(UUID.randomUUID(), "test_username", "testHash", Instant.now());
+    Mockito.when(mockUserStore.getUser(fakeUser.getId())).thenReturn(fakeUser);
+    Message missedMessage =
+        new Message(
+            UUID.randomUUID(), fakeConversationId, fakeUser.getId(), "missed", Instant.ofEpochMilli(1000));
+    Message newMessage =
+        new Message(
+            UUID.randomUUID(), fakeConversationId, fakeUser.getId(), "new", Instant.ofEpochMilli(2000));
+    List<Message> fakeMessageList = new ArrayList<>();
+    fakeMessageList.add(missedMessage);
+    Mockito.when(mockMessageStore.getMessagesSince(fakeConversationId, lastSeenId))
+        .thenReturn(fakeMessageList);
+
+    AsyncContext mockAsyncContext = Mockito.mock(AsyncContext.class);
+    Mockito.when(mockRequest.startAsync()).thenReturn(mockAsyncContext);
+    FakeOutputStream responseBody = new FakeOutputStream();
+    Mockito.when(mockResponse.getOutputStream()).thenReturn(responseBody);
+
+    chatServlet.doGet(mockRequest, mockResponse);
+
+    Mockito.verify(mockResponse).setContentType("text/event-stream");
+    ArgumentCaptor<MessageStore.Subscriber> subscriberCaptor =
+        ArgumentCaptor.forClass(MessageStore.Subscriber.class);
+    Mockito.verify(mockMessageStore)
+        .subscribe(Mockito.eq(fakeConversationId), subscriberCaptor.capture());
+    MessageStore.Subscriber subscriber = subscriberCaptor.getValue();
+    subscriber.onMessage(newMessage);
+
+    Assert.assertEquals(
+        "retry: 1000\n\n"
+            + "id: " + missedMessage.getId() + "\ndata: {\"id\":\"" + missedMessage.getId()
+            + "\",\"author\":\"test_username\",\"content\":\"missed\","
+            + "\"creation\":\"1970-01-01T00:00:01Z\"}\n\n"
+            + "id: " + newMessage.getId() + "\ndata: {\"id\":\"" + newMessage.getId()
+            + "\",\"author\":\"test_username\",\"content\":\"new\","
+            + "\"creation\":\"1970-01-01T00:00:02Z\"}\n\n",
+        responseBody.toString());
+
+    ((MessageStream) subscriber).onTimeout(null);
+
+    Mockito.verify(mockAsyncContext).complete();
+    Mockito.verify(mockMessageStore).unsubscribe(fakeConversationId, subscriber);
+    Mockito.verify(mockRequestDispatcher, never()).forward(mockRequest, mockResponse);
+  }
+
+  @Test
+  public void testDoGet_PollWaitsForMessage() throws IOException, ServletException {
+    Mockito.when(mockRequest.getRequestURI()).thenReturn("/chat/test_conversation/poll");
+
+    UUID fakeConversationId = UUID.randomUUID();
+    Conversation fakeConversation =
+        new Conversation(fakeConversationId, UUID.randomUUID(), "test_conversation", Instant.now());
+    Mockito.when(mockConversationStore.getConversationWithTitle("test_conversation"))
+        .thenReturn(fakeConversation);
+    UUID lastSeenId = UUID.randomUUID();
+    Mockito.when(mockRequest.getParameter("since")).thenReturn(lastSeenId.toString());
+    Mockito.when(mockMessageStore.getMessagesSince(fakeConversationId, lastSeenId))
+        .thenReturn(new ArrayList<>());
+
+    AsyncContext mockAsyncContext = Mockito.mock(AsyncContext.class);
+    Mockito.when(mockRequest.startAsync()).thenReturn(mockAsyncContext);
+    Mockito.when(mockAsyncContext.getResponse()).thenReturn(mockResponse);
+    StringWriter responseBody = new StringWriter();
+    Mockito.when(mockResponse.getWriter()).thenReturn(new PrintWriter(responseBody));
+
+    chatServlet.doGet(mockRequest, mockResponse);
+
+    // nothing new yet, so the request is parked without a response
+    Mockito.verify(mockAsyncContext).setTimeout(MessagePoll.TIMEOUT_MILLIS);
+    Assert.assertEquals("", responseBody.toString());
+
+    Message newMessage =
+        new Message(
+            UUID.randomUUID(), fakeConversationId, UUID.randomUUID(), "new", Instant.ofEpochMilli(1000));
+    List<Message> fakeMessageList = new ArrayList<>();
+    fakeMessageList.add(newMessage);
+    Mockito.when(mockMessageStore.getMessagesSince(fakeConversationId, lastSeenId))
+        .thenReturn(fakeMessageList);
+    ArgumentCaptor<MessageStore.Subscriber> subscriberCaptor =
+        ArgumentCaptor.forClass(MessageStore.Subscriber.class);
+    Mockito.verify(mockMessageStore)
+        .subscribe(Mockito.eq(fakeConversationId), subscriberCaptor.capture());
+    subscriberCaptor.getValue().onMessage(newMessage);
+
+    ArgumentCaptor<Runnable> responderCaptor = ArgumentCaptor.forClass(Runnable.class);
+    Mockito.verify(mockAsyncContext).start(responderCaptor.capture());
+    Mockito.verify(mockMessageStore).unsubscribe(fakeConversationId, subscriberCaptor.getValue());
+    responderCaptor.getValue().run();
+
+    Assert.assertTrue(responseBody.toString().contains("\"id\":\"" + newMessage.getId() + "\""));
+    Mockito.verify(mockAsyncContext).complete();
+  }
+
+  @Test
+  public void testDoGet_PollReturnsAtOnce() throws IOException, ServletException {
+    Mockito.when(mockRequest.getRequestURI()).thenReturn("/chat/test_conversation/poll");
+
+    UUID fakeConversationId = UUID.randomUUID();
+    Conversation fakeConversation =
+        new Conversation(fakeConversationId, UUID.randomUUID(), "test_conversation", Instant.now());
+    Mockito.when(mockConversationStore.getConversationWithTitle("test_conversation"))
+        .thenReturn(fakeConversation);
+    Message newMessage =
+        new Message(
+            UUID.randomUUID(), fakeConversationId, UUID.randomUUID(), "new", Instant.ofEpochMilli(1000));
+    List<Message> fakeMessageList = new ArrayList<>();
+    fakeMessageList.add(newMessage);
+    Mockito.when(mockMessageStore.getMessagesSince(fakeConversationId, null))
+        .thenReturn(fakeMessageList);
+    StringWriter responseBody = new StringWriter();
+    Mockito.when(mockResponse.getWriter()).thenReturn(new PrintWriter(responseBody));
+
+    chatServlet.doGet(mockRequest, mockResponse);
+
+    Assert.assertTrue(responseBody.toString().contains("\"id\":\"" + newMessage.getId() + "\""));
+    Mockito.verify(mockRequest, never()).startAsync();
+    Mockito.verify(mockMessageStore)
+        .unsubscribe(Mockito.eq(fakeConversationId), Mockito.any(MessageStore.Subscriber.class));
+  }
+
+  @Test
+  public void testDoGet_NewMessagesJsonPrivateConversation() throws IOException, ServletException {
+    Mockito.when(mockRequest.getRequestURI()).thenReturn("/chat/private_conversation/messages");
+    Mockito.when(mockSession.getAttribute("user")).thenReturn(null);
+
+    List<String> users = new ArrayList<>();
+    users.add("UserOne");
+    users.add("UserTwo");
+    Conversation conversation = new Conversation(UUID.randomUUID(), UUID.randomUUID(), "private_conversation",
+            Instant.now(), users, ConversationType.DIRECT);
+    Mockito.when(mockConversationStore.getConversationWithTitle("private_conversation"))
+            .thenReturn(conversation);
+
+    chatServlet.doGet(mockRequest, mockResponse);
+
+    Mockito.verify(mockResponse).sendError(HttpServletResponse.SC_FORBIDDEN);
+    Mockito.verify(mockMessageStore, never()).getMessagesSince(Mockito.any(), Mockito.any());
+  }
+
   @Test
   public void testDoGet_badConversation() throws IOException, ServletException {
     Mockito.when(mockRequest.getRequestURI()).thenReturn("/chat/bad_conversation");
@@ -260,4 +580,34 @@ public class ChatServletTest {
 
     Mockito.verify(mockResponse).sendRedirect("/chat/test_conversation");
   }
+
+  /** A response body that's always ready to write and collects what's written. */
+  private static class FakeOutputStream extends ServletOutputStream {
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+      try {
+        writeListener.onWritePossible();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override
+    public void write(int b) {
+      bytes.write(b);
+    }
+
+    @Override
+    public String toString() {
+      return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
 }
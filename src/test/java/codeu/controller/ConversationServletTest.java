@@ -81,6 +81,34 @@ public class ConversationServletTest {
     Mockito.verify(mockRequestDispatcher).forward(mockRequest, mockResponse);
   }
 
+  @Test
+  public void testDoGet_NotModified() throws IOException, ServletException {
+    Mockito.when(mockSession.getAttribute("user")).thenReturn("test_username");
+    Mockito.when(mockConversationStore.getVersionForUser("test_username")).thenReturn(1000L);
+
+    conversationServlet.doGet(mockRequest, mockResponse);
+
+    ArgumentCaptor<String> etagArgumentCaptor = ArgumentCaptor.forClass(String.class);
+    Mockito.verify(mockResponse).setHeader(Mockito.eq("ETag"), etagArgumentCaptor.capture());
+    Mockito.verify(mockRequestDispatcher).forward(mockRequest, mockResponse);
+
+    // the browser asks again with the ETag it got, and nothing has changed
+    Mockito.when(mockRequest.getHeader("If-None-Match")).thenReturn(etagArgumentCaptor.getValue());
+    conversationServlet.doGet(mockRequest, mockResponse);
+
+    Mockito.verify(mockResponse).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    Mockito.verify(mockConversationStore).getConversationsForUser("test_username");
+    Mockito.verify(mockRequestDispatcher).forward(mockRequest, mockResponse);
+
+    // another user's copy of the page doesn't match
+    Mockito.when(mockSession.getAttribute("user")).thenReturn("other_username");
+    Mockito.when(mockConversationStore.getVersionForUser("other_username")).thenReturn(1000L);
+    conversationServlet.doGet(mockRequest, mockResponse);
+
+    Mockito.verify(mockConversationStore).getConversationsForUser("other_username");
+    Mockito.verify(mockRequestDispatcher, Mockito.times(2)).forward(mockRequest, mockResponse);
+  }
+
   @Test
   public void testDoPost_UserNotLoggedIn() throws IOException, ServletException {
     Mockito.when(mockSession.getAttribute("user")).thenReturn(null);
@@ -138,7 +166,6 @@ public class ConversationServletTest {
             Instant.now());
     Mockito.when(mockUserStore.getUser("test_username")).thenReturn(fakeUser);
 
-    Mockito.when(mockConversationStore.isTitleTaken("test_conversation")).thenReturn(true);
     Conversation conversation = new Conversation(UUID.randomUUID(), UUID.randomUUID(), "test_conversation",
             Instant.now());
     Mockito.when(mockConversationStore.getConversationWithTitle("test_conversation")).thenReturn(conversation);
@@ -146,7 +173,7 @@ public class ConversationServletTest {
     conversationServlet.doPost(mockRequest, mockResponse);
 
     Mockito.verify(mockConversationStore, Mockito.never())
-        .addConversation(Mockito.any(Conversation.class));
+        .addConversationIfTitleAvailable(Mockito.any(Conversation.class));
     Mockito.verify(mockResponse).sendRedirect("/chat/test_conversation");
   }
 
@@ -166,12 +193,10 @@ public class ConversationServletTest {
             Instant.now(), new ArrayList<>(), ConversationType.GROUP);
     Mockito.when(mockConversationStore.getConversationWithTitle("test_conversation")).thenReturn(conversation);
 
-    Mockito.when(mockConversationStore.isTitleTaken("test_conversation")).thenReturn(true);
-
     conversationServlet.doPost(mockRequest, mockResponse);
 
     Mockito.verify(mockConversationStore, Mockito.never())
-            .addConversation(Mockito.any(Conversation.class));
+            .addConversationIfTitleAvailable(Mockito.any(Conversation.class));
     Mockito.verify(mockRequestDispatcher).forward(mockRequest, mockResponse);
   }
 
@@ -189,13 +214,15 @@ public class ConversationServletTest {
             Instant.now());
     Mockito.when(mockUserStore.getUser("test_username")).thenReturn(fakeUser);
 
-    Mockito.when(mockConversationStore.isTitleTaken("test_conversation")).thenReturn(false);
+    Mockito.when(mockConversationStore.addConversationIfTitleAvailable(Mockito.any(Conversation.class)))
+        .thenReturn(true);
 
     conversationServlet.doPost(mockRequest, mockResponse);
 
     ArgumentCaptor<Conversation> conversationArgumentCaptor =
         ArgumentCaptor.forClass(Conversation.class);
-    Mockito.verify(mockConversationStore).addConversation(conversationArgumentCaptor.capture());
+    Mockito.verify(mockConversationStore)
+        .addConversationIfTitleAvailable(conversationArgumentCaptor.capture());
     Assert.assertEquals(conversationArgumentCaptor.getValue().getTitle(), "test_conversation");
     Assert.assertEquals(conversationArgumentCaptor.getValue().getConversationType(), ConversationType.NORMAL);
 
@@ -216,16 +243,44 @@ public class ConversationServletTest {
                     Instant.now());
     Mockito.when(mockUserStore.getUser("test_username")).thenReturn(fakeUser);
 
-    Mockito.when(mockConversationStore.isTitleTaken("test_conversation")).thenReturn(false);
+    Mockito.when(mockConversationStore.addConversationIfTitleAvailable(Mockito.any(Conversation.class)))
+        .thenReturn(true);
 
     conversationServlet.doPost(mockRequest, mockResponse);
 
     ArgumentCaptor<Conversation> conversationArgumentCaptor =
             ArgumentCaptor.forClass(Conversation.class);
-    Mockito.verify(mockConversationStore).addConversation(conversationArgumentCaptor.capture());
+    Mockito.verify(mockConversationStore)
+        .addConversationIfTitleAvailable(conversationArgumentCaptor.capture());
     Assert.assertEquals(conversationArgumentCaptor.getValue().getTitle(), "test_conversation");
     Assert.assertEquals(conversationArgumentCaptor.getValue().getConversationType(), ConversationType.GROUP);
 
     Mockito.verify(mockResponse).sendRedirect("/chat/test_conversation");
   }
+
+  @Test
+  public void testDoPost_ConversationNameTakenConcurrently() throws IOException, ServletException {
+    Mockito.when(mockRequest.getParameter("conversationTitle")).thenReturn("test_conversation");
+    Mockito.when(mockSession.getAttribute("user")).thenReturn("test_username");
+
+    User fakeUser =
+        new User(
+            UUID.randomUUID(),
+            "test_username",
+            "$2a$10$eDhncK/4cNH2KE.Y51AWpeL8/5znNBQLuAFlyJpSYNODR/SJQ/Fg6",
+            Instant.now());
+    Mockito.when(mockUserStore.getUser("test_username")).thenReturn(fakeUser);
+
+    // the title is free when first checked, but another request claims it before this one can
+    Conversation conversation = new Conversation(UUID.randomUUID(), UUID.randomUUID(), "test_conversation",
+            Instant.now());
+    Mockito.when(mockConversationStore.getConversationWithTitle("test_conversation"))
+        .thenReturn(null, conversation);
+    Mockito.when(mockConversationStore.addConversationIfTitleAvailable(Mockito.any(Conversation.class)))
+        .thenReturn(false);
+
+    conversationServlet.doPost(mockRequest, mockResponse);
+
+    Mockito.verify(mockResponse).sendRedirect("/chat/test_conversation");
+  }
 }
@@ -0,0 +1,215 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.controller;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+public class GzipFilterTest {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private GzipFilter gzipFilter;
+  private HttpServletRequest mockRequest;
+  private HttpServletResponse mockResponse;
+  private ServletContext mockServletContext;
+  private ByteArrayOutputStream responseBody;
+
+  @Before
+  public void setup() throws IOException {
+    mockServletContext = Mockito.mock(ServletContext.class);
+    FilterConfig mockFilterConfig = Mockito.mock(FilterConfig.class);
+    Mockito.when(mockFilterConfig.getServletContext()).thenReturn(mockServletContext);
+    gzipFilter = new GzipFilter();
+    gzipFilter.init(mockFilterConfig);
+
+    mockRequest = Mockito.mock(HttpServletRequest.class);
+    Mockito.when(mockRequest.getMethod()).thenReturn("GET");
+    Mockito.when(mockRequest.getRequestURI()).thenReturn("/chat/test_conversation");
+    Mockito.when(mockRequest.getContextPath()).thenReturn("");
+    Mockito.when(mockRequest.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
+
+    mockResponse = Mockito.mock(HttpServletResponse.class);
+    Mockito.when(mockResponse.getStatus()).thenReturn(HttpServletResponse.SC_OK);
+    Mockito.when(mockResponse.getContentType()).thenReturn("text/html;charset=UTF-8");
+    Mockito.when(mockResponse.getCharacterEncoding()).thenReturn("UTF-8");
+    responseBody = new ByteArrayOutputStream();
+    Mockito.when(mockResponse.getOutputStream()).thenReturn(new FakeOutputStream(responseBody));
+  }
+
+  @Test
+  public void testDoFilter_CompressesLargePage() throws IOException, ServletException {
+    String page = repeat("<li><strong>test_username:</strong> hello</li>\n", 500);
+
+    gzipFilter.doFilter(mockRequest, mockResponse, writing(page));
+
+    Mockito.verify(mockResponse).setHeader("Content-Encoding", "gzip");
+    Mockito.verify(mockResponse).addHeader("Vary", "Accept-Encoding");
+    Assert.assertTrue(responseBody.size() < page.length() / 10);
+    Assert.assertEquals(page, gunzip(responseBody.toByteArray()));
+  }
+
+  @Test
+  public void testDoFilter_SmallPageUncompressed() throws IOException, ServletException {
+    String page = "<p>short</p>";
+
+    gzipFilter.doFilter(mockRequest, mockResponse, writing(page));
+
+    Mockito.verify(mockResponse, Mockito.never()).setHeader("Content-Encoding", "gzip");
+    Assert.assertEquals(page, responseBody.toString("UTF-8"));
+  }
+
+  @Test
+  public void testDoFilter_ClientRefusesGzip() throws IOException, ServletException {
+    Mockito.when(mockRequest.getHeader("Accept-Encoding")).thenReturn("deflate, gzip;q=0");
+    FilterChain mockChain = Mockito.mock(FilterChain.class);
+
+    gzipFilter.doFilter(mockRequest, mockResponse, mockChain);
+
+    // the response isn't wrapped at all
+    Mockito.verify(mockChain).doFilter(mockRequest, mockResponse);
+  }
+
+  @Test
+  public void testDoFilter_EventStreamUncompressed() throws IOException, ServletException {
+    Mockito.when(mockResponse.getContentType()).thenReturn("text/event-stream;charset=UTF-8");
+    String events = repeat("data: {\"content\":\"hello\"}\n\n", 500);
+
+    gzipFilter.doFilter(mockRequest, mockResponse, writing(events));
+
+    Mockito.verify(mockResponse, Mockito.never()).setHeader("Content-Encoding", "gzip");
+    Assert.assertEquals(events, responseBody.toString("UTF-8"));
+  }
+
+  @Test
+  public void testDoFilter_NotModifiedKeepsHeaders() throws IOException, ServletException {
+    Mockito.when(mockResponse.getStatus()).thenReturn(HttpServletResponse.SC_NOT_MODIFIED);
+
+    gzipFilter.doFilter(
+        mockRequest,
+        mockResponse,
+        (request, response) -> ((HttpServletResponse) response).setHeader("ETag", "W/\"1\""));
+
+    Mockito.verify(mockResponse).setHeader("ETag", "W/\"1\"");
+    Mockito.verify(mockResponse, Mockito.never()).setHeader("Content-Encoding", "gzip");
+    Assert.assertEquals(0, responseBody.size());
+  }
+
+  @Test
+  public void testDoFilter_StaticAsset() throws IOException, ServletException {
+    String css = repeat("body { font-family: Arial, sans-serif; }\n", 100);
+    File cssFile = temporaryFolder.newFile("main.css");
+    Files.write(cssFile.toPath(), css.getBytes(StandardCharsets.UTF_8));
+    Mockito.when(mockRequest.getRequestURI()).thenReturn("/css/main.css");
+    Mockito.when(mockServletContext.getRealPath("/css/main.css"))
+        .thenReturn(cssFile.getAbsolutePath());
+    Mockito.when(mockServletContext.getMimeType("/css/main.css")).thenReturn("text/css");
+    FilterChain mockChain = Mockito.mock(FilterChain.class);
+
+    gzipFilter.doFilter(mockRequest, mockResponse, mockChain);
+
+    Mockito.verify(mockChain, Mockito.never()).doFilter(Mockito.any(), Mockito.any());
+    Mockito.verify(mockResponse).setContentType("text/css");
+    Mockito.verify(mockResponse).setHeader("Content-Encoding", "gzip");
+    Mockito.verify(mockResponse).setContentLength(responseBody.size());
+    Assert.assertEquals(css, gunzip(responseBody.toByteArray()));
+
+    // the browser's copy is current
+    Mockito.when(mockRequest.getHeader("If-Modified-Since")).thenReturn("set");
+    Mockito.when(mockRequest.getDateHeader("If-Modified-Since"))
+        .thenReturn(cssFile.lastModified());
+    gzipFilter.doFilter(mockRequest, mockResponse, mockChain);
+
+    Mockito.verify(mockResponse).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    Mockito.verify(mockResponse).setContentType("text/css");
+  }
+
+  @Test
+  public void testAcceptsGzip() {
+    Assert.assertTrue(GzipFilter.acceptsGzip("gzip"));
+    Assert.assertTrue(GzipFilter.acceptsGzip("deflate, GZIP;q=0.5"));
+    Assert.assertFalse(GzipFilter.acceptsGzip(null));
+    Assert.assertFalse(GzipFilter.acceptsGzip("deflate, br"));
+    Assert.assertFalse(GzipFilter.acceptsGzip("gzip;q=0"));
+  }
+
+  /** Returns a FilterChain that writes the body through the response's writer. */
+  private static FilterChain writing(String body) {
+    return (request, response) -> response.getWriter().write(body);
+  }
+
+  private static String repeat(String text, int times) {
+    StringBuilder repeated = new StringBuilder();
+    for (int i = 0; i < times; i++) {
+      repeated.append(text);
+    }
+    return repeated.toString();
+  }
+
+  private static String gunzip(byte[] compressed) throws IOException {
+    ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      byte[] buffer = new byte[4096];
+      int length;
+      while ((length = in.read(buffer)) > 0) {
+        decompressed.write(buffer, 0, length);
+      }
+    }
+    return decompressed.toString("UTF-8");
+  }
+
+  /** A ServletOutputStream that collects what's written to it. */
+  private static class FakeOutputStream extends ServletOutputStream {
+
+    private final ByteArrayOutputStream out;
+
+    FakeOutputStream(ByteArrayOutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) {
+      out.write(b);
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {}
+  }
+}
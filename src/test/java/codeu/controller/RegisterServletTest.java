@@ -60,6 +60,7 @@ public class RegisterServletTest {
 
     UserStore mockUserStore = Mockito.mock(UserStore.class);
     Mockito.when(mockUserStore.isUserRegistered("test username")).thenReturn(false);
+    Mockito.when(mockUserStore.addUserIfNameAvailable(Mockito.any(User.class))).thenReturn(true);
     registerServlet.setUserStore(mockUserStore);
     
     ProfileStore mockProfileStore = Mockito.mock(ProfileStore.class);
@@ -69,7 +70,7 @@ public class RegisterServletTest {
 
     ArgumentCaptor<User> userArgumentCaptor = ArgumentCaptor.forClass(User.class);
 
-    Mockito.verify(mockUserStore).addUser(userArgumentCaptor.capture());
+    Mockito.verify(mockUserStore).addUserIfNameAvailable(userArgumentCaptor.capture());
     Assert.assertEquals("test username", userArgumentCaptor.getValue().getName());
     Assert.assertThat(
         userArgumentCaptor.getValue().getPasswordHash(), CoreMatchers.containsString("$2a$10$"));
@@ -88,7 +89,27 @@ public class RegisterServletTest {
 
     registerServlet.doPost(mockRequest, mockResponse);
 
-    Mockito.verify(mockUserStore, Mockito.never()).addUser(Mockito.any(User.class));
+    Mockito.verify(mockUserStore, Mockito.never()).addUserIfNameAvailable(Mockito.any(User.class));
+    Mockito.verify(mockRequest).setAttribute("error", "That username is already taken.");
+    Mockito.verify(mockRequestDispatcher).forward(mockRequest, mockResponse);
+  }
+
+  @Test
+  public void testDoPost_NameTakenConcurrently() throws IOException, ServletException {
+    Mockito.when(mockRequest.getParameter("username")).thenReturn("test username");
+    Mockito.when(mockRequest.getParameter("password")).thenReturn("test password");
+
+    UserStore mockUserStore = Mockito.mock(UserStore.class);
+    Mockito.when(mockUserStore.isUserRegistered("test username")).thenReturn(false);
+    Mockito.when(mockUserStore.addUserIfNameAvailable(Mockito.any(User.class))).thenReturn(false);
+    registerServlet.setUserStore(mockUserStore);
+
+    ProfileStore mockProfileStore = Mockito.mock(ProfileStore.class);
+    registerServlet.setProfileStore(mockProfileStore);
+
+    registerServlet.doPost(mockRequest, mockResponse);
+
+    Mockito.verify(mockProfileStore, Mockito.never()).addProfile(Mockito.any());
     Mockito.verify(mockRequest).setAttribute("error", "That username is already taken.");
     Mockito.verify(mockRequestDispatcher).forward(mockRequest, mockResponse);
   }
@@ -75,6 +75,50 @@ public class ConversationStoreTest {
     Mockito.verify(mockPersistentStorageAgent).writeThrough(inputConversation);
   }
 
+  @Test
+  public void testAddConversationIfTitleAvailable() {
+    Conversation inputConversation =
+        new Conversation(UUID.randomUUID(), UUID.randomUUID(), "test_conversation", Instant.now());
+    Conversation sameTitleConversation =
+        new Conversation(UUID.randomUUID(), UUID.randomUUID(), "test_conversation", Instant.now());
+
+    Assert.assertTrue(conversationStore.addConversationIfTitleAvailable(inputConversation));
+    Assert.assertFalse(conversationStore.addConversationIfTitleAvailable(sameTitleConversation));
+
+    assertEquals(inputConversation, conversationStore.getConversationWithTitle("test_conversation"));
+    Assert.assertEquals(2, conversationStore.getNumConversations());
+    Mockito.verify(mockPersistentStorageAgent).writeThrough(inputConversation);
+    Mockito.verify(mockPersistentStorageAgent, Mockito.never()).writeThrough(sameTitleConversation);
+  }
+
+  @Test
+  public void testAddDirectMessageIfAbsent() {
+    Conversation directMessage =
+        new Conversation(
+            UUID.randomUUID(),
+            UUID.randomUUID(),
+            "direct_message",
+            Instant.now(),
+            Arrays.asList("alice", "bob"),
+            ConversationType.DIRECT);
+    Conversation sameUsers =
+        new Conversation(
+            UUID.randomUUID(),
+            UUID.randomUUID(),
+            "direct_message_two",
+            Instant.now(),
+            Arrays.asList("bob", "alice"),
+            ConversationType.DIRECT);
+
+    Assert.assertSame(directMessage, conversationStore.addDirectMessageIfAbsent(directMessage));
+    Assert.assertSame(directMessage, conversationStore.addDirectMessageIfAbsent(sameUsers));
+
+    Assert.assertSame(directMessage, conversationStore.getDirectMessageWithUsers("bob", "alice"));
+    Assert.assertNull(conversationStore.getConversationWithTitle("direct_message_two"));
+    Mockito.verify(mockPersistentStorageAgent).writeThrough(directMessage);
+    Mockito.verify(mockPersistentStorageAgent, Mockito.never()).writeThrough(sameUsers);
+  }
+
   @Test
   public void testGetNumConversations() {
     // Note that there is already a conversation added in setup as well
@@ -104,6 +148,7 @@ public class ConversationStoreTest {
 
     Mockito.verify(mockPersistentStorageAgent).deleteAllConversations(conversations);
     Assert.assertEquals(conversationStore.getNumConversations(), 0);
+    Assert.assertFalse(conversationStore.isTitleTaken("test_conversation"));
   }
 
   @Test
@@ -125,6 +170,7 @@ public class ConversationStoreTest {
     conversationStore.addConversation(conversationTwo);
 
     Assert.assertEquals(conversationStore.getDirectMessageWithUsers("Justin", "Cynthia"), conversation);
+    Assert.assertEquals(conversationStore.getDirectMessageWithUsers("Cynthia", "Justin"), conversation);
     Assert.assertNull(conversationStore.getDirectMessageWithUsers("Cynthia", "Vasu"));
   }
 
@@ -157,6 +203,92 @@ public class ConversationStoreTest {
     Assert.assertEquals(2, actualConversations.size());
   }
 
+  @Test
+  public void testGetConversationsForUser_afterUserAdded() {
+    List<String> users = new ArrayList<>();
+    users.add("Cynthia");
+    Conversation groupConversation = new Conversation(UUID.randomUUID(), UUID.randomUUID(), "testGroup",
+            Instant.ofEpochMilli(500), users, ConversationType.GROUP);
+    conversationStore.addConversation(groupConversation);
+
+    Assert.assertEquals(1, conversationStore.getConversationsForUser("Vasu").size());
+
+    Assert.assertEquals(
+        Arrays.asList("Vasu"),
+        conversationStore.addUsers(groupConversation, Arrays.asList("Vasu", "Cynthia", "Vasu")));
+
+    List<Conversation> vasuConversations = conversationStore.getConversationsForUser("Vasu");
+    // the group conversation was created before CONVERSATION_ONE, so it comes first
+    Assert.assertEquals(2, vasuConversations.size());
+    Assert.assertSame(groupConversation, vasuConversations.get(0));
+    Assert.assertSame(CONVERSATION_ONE, vasuConversations.get(1));
+    Assert.assertEquals(Arrays.asList("Cynthia", "Vasu"), groupConversation.getUsers());
+    Mockito.verify(mockPersistentStorageAgent)
+        .addConversationMembers(groupConversation, Arrays.asList("Vasu"));
+
+    List<Conversation> loggedOutConversations = conversationStore.getConversationsForUser(null);
+    Assert.assertEquals(1, loggedOutConversations.size());
+    Assert.assertSame(CONVERSATION_ONE, loggedOutConversations.get(0));
+  }
+
+  @Test
+  public void testGetConversationsForUser_addedToOlderConversation() {
+    Conversation oldGroup =
+        new Conversation(UUID.randomUUID(), UUID.randomUUID(), "old_group",
+            Instant.ofEpochMilli(500), new ArrayList<>(Arrays.asList("Cynthia")),
+            ConversationType.GROUP);
+    Conversation newGroup =
+        new Conversation(UUID.randomUUID(), UUID.randomUUID(), "new_group",
+            Instant.ofEpochMilli(2000), new ArrayList<>(Arrays.asList("Vasu")),
+            ConversationType.GROUP);
+    Conversation newerDirect =
+        new Conversation(UUID.randomUUID(), UUID.randomUUID(), "newer_direct",
+            Instant.ofEpochMilli(3000), Arrays.asList("Vasu", "Justin"),
+            ConversationType.DIRECT);
+    conversationStore.addConversation(oldGroup);
+    conversationStore.addConversation(newGroup);
+    conversationStore.addConversation(newerDirect);
+
+    conversationStore.addUsers(oldGroup, Arrays.asList("Vasu"));
+
+    List<Conversation> vasuConversations = conversationStore.getConversationsForUser("Vasu");
+    Assert.assertEquals(4, vasuConversations.size());
+    Assert.assertSame(oldGroup, vasuConversations.get(0));
+    Assert.assertSame(CONVERSATION_ONE, vasuConversations.get(1));
+    Assert.assertSame(newGroup, vasuConversations.get(2));
+    Assert.assertSame(newerDirect, vasuConversations.get(3));
+  }
+
+  @Test
+  public void testGetVersionForUser() {
+    long cynthiaVersion = conversationStore.getVersionForUser("Cynthia");
+    long vasuVersion = conversationStore.getVersionForUser("Vasu");
+
+    List<String> users = new ArrayList<>();
+    users.add("Cynthia");
+    Conversation groupConversation = new Conversation(UUID.randomUUID(), UUID.randomUUID(), "testGroup",
+            Instant.now(), users, ConversationType.GROUP);
+    conversationStore.addConversation(groupConversation);
+
+    // only the member's list changed
+    Assert.assertTrue(conversationStore.getVersionForUser("Cynthia") > cynthiaVersion);
+    Assert.assertEquals(vasuVersion, conversationStore.getVersionForUser("Vasu"));
+
+    cynthiaVersion = conversationStore.getVersionForUser("Cynthia");
+    conversationStore.addUsers(groupConversation, Arrays.asList("Vasu"));
+    Assert.assertEquals(cynthiaVersion, conversationStore.getVersionForUser("Cynthia"));
+    Assert.assertTrue(conversationStore.getVersionForUser("Vasu") > vasuVersion);
+
+    // a NORMAL conversation is in everyone's list
+    long loggedOutVersion = conversationStore.getVersionForUser(null);
+    vasuVersion = conversationStore.getVersionForUser("Vasu");
+    conversationStore.addConversation(
+        new Conversation(UUID.randomUUID(), UUID.randomUUID(), "test_normal", Instant.now()));
+    Assert.assertTrue(conversationStore.getVersionForUser(null) > loggedOutVersion);
+    Assert.assertTrue(conversationStore.getVersionForUser("Cynthia") > cynthiaVersion);
+    Assert.assertTrue(conversationStore.getVersionForUser("Vasu") > vasuVersion);
+  }
+
   private void assertEquals(Conversation expectedConversation, Conversation actualConversation) {
     Assert.assertEquals(expectedConversation.getId(), actualConversation.getId());
     Assert.assertEquals(expectedConversation.getOwnerId(), actualConversation.getOwnerId());
@@ -0,0 +1,103 @@
+package codeu.model.store.basic;
+
+import codeu.model.data.Message;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MessageLogTest {
+
+  private final UUID CONVERSATION_ID = UUID.randomUUID();
+
+  private MessageLog messageLog;
+
+  @Before
+  public void setup() {
+    messageLog = new MessageLog();
+  }
+
+  @Test
+  public void testAppend_acrossChunks() {
+    Message[] messages = new Message[5000];
+    for (int i = 0; i < messages.length; i++) {
+      messages[i] = newMessage(i);
+      Assert.assertEquals(i, messageLog.append(messages[i]));
+    }
+
+    List<Message> snapshot = messageLog.snapshot();
+    Assert.assertEquals(messages.length, snapshot.size());
+    Assert.assertEquals(messages.length, messageLog.size());
+    for (int i = 0; i < messages.length; i++) {
+      Assert.assertSame(messages[i], snapshot.get(i));
+      Assert.assertEquals(i, messageLog.positionOf(messages[i].getId()));
+    }
+  }
+
+  @Test
+  public void testSnapshot_ignoresLaterAppends() {
+    Message first = newMessage(0);
+    messageLog.append(first);
+
+    List<Message> snapshot = messageLog.snapshot();
+    messageLog.append(newMessage(1));
+
+    Assert.assertEquals(1, snapshot.size());
+    Assert.assertSame(first, snapshot.get(0));
+    Assert.assertEquals(2, messageLog.snapshot().size());
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testSnapshot_outOfBounds() {
+    messageLog.append(newMessage(0));
+    List<Message> snapshot = messageLog.snapshot();
+    messageLog.append(newMessage(1));
+
+    snapshot.get(1);
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testSnapshot_readOnly() {
+    messageLog.snapshot().add(newMessage(0));
+  }
+
+  @Test
+  public void testPositionOf_unknownMessage() {
+    messageLog.append(newMessage(0));
+
+    Assert.assertEquals(-1, messageLog.positionOf(UUID.randomUUID()));
+  }
+
+  @Test
+  public void testSnapshot_concurrentReaders() throws InterruptedException {
+    Thread writer =
+        new Thread(
+            () -> {
+              for (int i = 0; i < 10000; i++) {
+                messageLog.append(newMessage(i));
+              }
+            });
+    writer.start();
+
+    while (writer.isAlive()) {
+      List<Message> snapshot = messageLog.snapshot();
+      for (int i = 0; i < snapshot.size(); i++) {
+        Assert.assertEquals(i, snapshot.get(i).getCreationTime().toEpochMilli());
+      }
+    }
+    writer.join();
+
+    Assert.assertEquals(10000, messageLog.snapshot().size());
+  }
+
+  private Message newMessage(int index) {
+    return new Message(
+        UUID.randomUUID(),
+        CONVERSATION_ID,
+        UUID.randomUUID(),
+        "message " + index,
+        Instant.ofEpochMilli(index));
+  }
+}
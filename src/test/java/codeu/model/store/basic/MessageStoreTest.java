@@ -4,8 +4,11 @@ import codeu.model.data.Message;
 import codeu.model.store.persistence.PersistentStorageAgent;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -61,6 +64,85 @@ public class MessageStoreTest {
     assertEquals(MESSAGE_TWO, resultMessages.get(1));
   }
 
+  @Test
+  public void testGetMessagesBefore() {
+    List<Message> newestPage = messageStore.getMessagesBefore(CONVERSATION_ID_ONE, null, 1);
+    Assert.assertEquals(1, newestPage.size());
+    assertEquals(MESSAGE_TWO, newestPage.get(0));
+
+    List<Message> olderPage =
+        messageStore.getMessagesBefore(CONVERSATION_ID_ONE, MESSAGE_TWO.getId(), 5);
+    Assert.assertEquals(1, olderPage.size());
+    assertEquals(MESSAGE_ONE, olderPage.get(0));
+
+    Assert.assertTrue(
+        messageStore.getMessagesBefore(CONVERSATION_ID_ONE, MESSAGE_ONE.getId(), 5).isEmpty());
+    Assert.assertTrue(
+        messageStore.getMessagesBefore(CONVERSATION_ID_ONE, MESSAGE_THREE.getId(), 5).isEmpty());
+  }
+
+  @Test
+  public void testGetMessagesBefore_SameTimestampAcrossPages() {
+    Instant sameTime = Instant.ofEpochMilli(5000);
+    Message first =
+        new Message(
+            UUID.randomUUID(), CONVERSATION_ID_ONE, UUID.randomUUID(), "first", sameTime);
+    Message second =
+        new Message(
+            UUID.randomUUID(), CONVERSATION_ID_ONE, UUID.randomUUID(), "second", sameTime);
+    messageStore.setMessages(Arrays.asList(MESSAGE_ONE, first, second));
+
+    List<Message> newestPage = messageStore.getMessagesBefore(CONVERSATION_ID_ONE, null, 1);
+    Assert.assertEquals(1, newestPage.size());
+    assertEquals(second, newestPage.get(0));
+
+    // the page boundary falls between two Messages created at the same instant
+    List<Message> olderPage =
+        messageStore.getMessagesBefore(CONVERSATION_ID_ONE, newestPage.get(0).getId(), 1);
+    Assert.assertEquals(1, olderPage.size());
+    assertEquals(first, olderPage.get(0));
+
+    List<Message> oldestPage =
+        messageStore.getMessagesBefore(CONVERSATION_ID_ONE, olderPage.get(0).getId(), 1);
+    Assert.assertEquals(1, oldestPage.size());
+    assertEquals(MESSAGE_ONE, oldestPage.get(0));
+  }
+
+  @Test
+  public void testGetMessagesSince() {
+    List<Message> newMessages =
+        messageStore.getMessagesSince(CONVERSATION_ID_ONE, MESSAGE_ONE.getId());
+    Assert.assertEquals(1, newMessages.size());
+    assertEquals(MESSAGE_TWO, newMessages.get(0));
+
+    Assert.assertTrue(
+        messageStore.getMessagesSince(CONVERSATION_ID_ONE, MESSAGE_TWO.getId()).isEmpty());
+  }
+
+  @Test
+  public void testGetMessagesSince_unknownMessage() {
+    // a Message from another Conversation doesn't count as seen
+    List<Message> newMessages =
+        messageStore.getMessagesSince(CONVERSATION_ID_ONE, MESSAGE_THREE.getId());
+
+    Assert.assertEquals(2, newMessages.size());
+  }
+
+  @Test
+  public void testGetMessagesInConversation_noMessages() {
+    List<Message> resultMessages = messageStore.getMessagesInConversation(UUID.randomUUID());
+
+    Assert.assertTrue(resultMessages.isEmpty());
+  }
+
+  @Test
+  public void testDeleteAllMessages() {
+    messageStore.deleteAllMessages();
+
+    Assert.assertEquals(0, messageStore.getNumMessages());
+    Assert.assertTrue(messageStore.getMessagesInConversation(CONVERSATION_ID_ONE).isEmpty());
+  }
+
   @Test
   public void testAddMessage() {
     UUID inputConversationId = UUID.randomUUID();
@@ -79,6 +161,200 @@ public class MessageStoreTest {
     Mockito.verify(mockPersistentStorageAgent).writeThrough(inputMessage);
   }
 
+  @Test
+  public void testSubscribe() {
+    List<Message> received = new ArrayList<>();
+    MessageStore.Subscriber subscriber = received::add;
+    messageStore.subscribe(CONVERSATION_ID_ONE, subscriber);
+
+    Message newMessage =
+        new Message(
+            UUID.randomUUID(), CONVERSATION_ID_ONE, UUID.randomUUID(), "new", Instant.now());
+    messageStore.addMessage(newMessage);
+    messageStore.addMessage(
+        new Message(
+            UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), "elsewhere", Instant.now()));
+    messageStore.unsubscribe(CONVERSATION_ID_ONE, subscriber);
+    messageStore.addMessage(
+        new Message(
+            UUID.randomUUID(), CONVERSATION_ID_ONE, UUID.randomUUID(), "later", Instant.now()));
+
+    Assert.assertEquals(1, received.size());
+    Assert.assertSame(newMessage, received.get(0));
+  }
+
+  @Test
+  public void testAddMessage_concurrentWriters() throws InterruptedException {
+    UUID inputConversationId = UUID.randomUUID();
+    List<Thread> writers = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      writers.add(new Thread(() -> {
+        for (int j = 0; j < 1000; j++) {
+          messageStore.addMessage(
+              new Message(
+                  UUID.randomUUID(), inputConversationId, UUID.randomUUID(), "test", Instant.now()));
+        }
+      }));
+    }
+    for (Thread writer : writers) {
+      writer.start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+
+    Assert.assertEquals(4000, messageStore.getMessagesInConversation(inputConversationId).size());
+    Assert.assertEquals(4003, messageStore.getNumMessages());
+  }
+
+  @Test
+  public void testLazy_loadsConversationOnFirstRead() throws Exception {
+    MessageStore lazyStore = MessageStore.getTestInstance(mockPersistentStorageAgent, 10);
+    Mockito.when(mockPersistentStorageAgent.loadMessagesInConversation(CONVERSATION_ID_ONE))
+        .thenReturn(Arrays.asList(MESSAGE_ONE, MESSAGE_TWO));
+
+    List<Message> resultMessages = lazyStore.getMessagesInConversation(CONVERSATION_ID_ONE);
+    lazyStore.getMessagesBefore(CONVERSATION_ID_ONE, null, 1);
+
+    Assert.assertEquals(2, resultMessages.size());
+    assertEquals(MESSAGE_ONE, resultMessages.get(0));
+    assertEquals(MESSAGE_TWO, resultMessages.get(1));
+    Mockito.verify(mockPersistentStorageAgent, Mockito.times(1))
+        .loadMessagesInConversation(CONVERSATION_ID_ONE);
+  }
+
+  @Test
+  public void testLazy_addMessageAppendsAfterHistory() throws Exception {
+    MessageStore lazyStore = MessageStore.getTestInstance(mockPersistentStorageAgent, 10);
+    Mockito.when(mockPersistentStorageAgent.loadMessagesInConversation(CONVERSATION_ID_ONE))
+        .thenReturn(Arrays.asList(MESSAGE_ONE));
+
+    lazyStore.addMessage(MESSAGE_TWO);
+
+    List<Message> resultMessages = lazyStore.getMessagesInConversation(CONVERSATION_ID_ONE);
+    Assert.assertEquals(2, resultMessages.size());
+    assertEquals(MESSAGE_ONE, resultMessages.get(0));
+    assertEquals(MESSAGE_TWO, resultMessages.get(1));
+    Mockito.verify(mockPersistentStorageAgent).writeThrough(MESSAGE_TWO);
+  }
+
+  @Test
+  public void testLazy_evictsLeastRecentlyUsedConversation() throws Exception {
+    MessageStore lazyStore = MessageStore.getTestInstance(mockPersistentStorageAgent, 2);
+    UUID conversationTwo = MESSAGE_THREE.getConversationId();
+    UUID conversationThree = UUID.randomUUID();
+    Mockito.when(mockPersistentStorageAgent.loadMessagesInConversation(CONVERSATION_ID_ONE))
+        .thenReturn(Arrays.asList(MESSAGE_ONE, MESSAGE_TWO));
+    Mockito.when(mockPersistentStorageAgent.loadMessagesInConversation(conversationTwo))
+        .thenReturn(Arrays.asList(MESSAGE_THREE));
+    Mockito.when(mockPersistentStorageAgent.loadMessagesInConversation(conversationThree))
+        .thenReturn(new ArrayList<>());
+
+    lazyStore.getMessagesInConversation(CONVERSATION_ID_ONE);
+    lazyStore.getMessagesInConversation(conversationTwo);
+    lazyStore.getMessagesInConversation(CONVERSATION_ID_ONE);
+    Assert.assertEquals(3, lazyStore.getNumMessages());
+
+    // conversation two is now the least recently used, so it's the one evicted
+    lazyStore.getMessagesInConversation(conversationThree);
+    Assert.assertEquals(2, lazyStore.getNumMessages());
+    lazyStore.getMessagesInConversation(CONVERSATION_ID_ONE);
+    lazyStore.getMessagesInConversation(conversationTwo);
+
+    Mockito.verify(mockPersistentStorageAgent, Mockito.times(1))
+        .loadMessagesInConversation(CONVERSATION_ID_ONE);
+    Mockito.verify(mockPersistentStorageAgent, Mockito.times(2))
+        .loadMessagesInConversation(conversationTwo);
+  }
+
+  @Test
+  public void testLazy_keepsConversationWithWriteInFlight() throws Exception {
+    MessageStore lazyStore = MessageStore.getTestInstance(mockPersistentStorageAgent, 1);
+    UUID conversationTwo = MESSAGE_THREE.getConversationId();
+    Mockito.when(mockPersistentStorageAgent.loadMessagesInConversation(CONVERSATION_ID_ONE))
+        .thenReturn(Arrays.asList(MESSAGE_ONE));
+    Mockito.when(mockPersistentStorageAgent.loadMessagesInConversation(conversationTwo))
+        .thenReturn(Arrays.asList(MESSAGE_THREE));
+    CountDownLatch writeStarted = new CountDownLatch(1);
+    CountDownLatch finishWrite = new CountDownLatch(1);
+    Mockito.doAnswer(
+            invocation -> {
+              writeStarted.countDown();
+              finishWrite.await();
+              return null;
+            })
+        .when(mockPersistentStorageAgent)
+        .writeThrough(MESSAGE_TWO);
+
+    Thread sender = new Thread(() -> lazyStore.addMessage(MESSAGE_TWO));
+    sender.start();
+    writeStarted.await();
+
+    // conversation one is the eldest, but reloading it now would miss MESSAGE_TWO
+    lazyStore.getMessagesInConversation(conversationTwo);
+    Assert.assertEquals(3, lazyStore.getNumMessages());
+    List<Message> resultMessages = lazyStore.getMessagesInConversation(CONVERSATION_ID_ONE);
+    Assert.assertEquals(2, resultMessages.size());
+    assertEquals(MESSAGE_TWO, resultMessages.get(1));
+
+    finishWrite.countDown();
+    sender.join();
+
+    // once the write is done, conversation one can be evicted again
+    lazyStore.getMessagesInConversation(conversationTwo);
+    Assert.assertEquals(1, lazyStore.getNumMessages());
+    Mockito.verify(mockPersistentStorageAgent, Mockito.times(1))
+        .loadMessagesInConversation(CONVERSATION_ID_ONE);
+    Mockito.verify(mockPersistentStorageAgent, Mockito.times(2))
+        .loadMessagesInConversation(conversationTwo);
+  }
+
+  @Test
+  public void testLazy_coalescesConcurrentLoads() throws Exception {
+    MessageStore lazyStore = MessageStore.getTestInstance(mockPersistentStorageAgent, 10);
+    CountDownLatch loadStarted = new CountDownLatch(1);
+    CountDownLatch finishLoad = new CountDownLatch(1);
+    Mockito.when(mockPersistentStorageAgent.loadMessagesInConversation(CONVERSATION_ID_ONE))
+        .thenAnswer(
+            invocation -> {
+              loadStarted.countDown();
+              finishLoad.await();
+              return Arrays.asList(MESSAGE_ONE, MESSAGE_TWO);
+            });
+
+    List<Thread> readers = new ArrayList<>();
+    List<Integer> resultSizes = Collections.synchronizedList(new ArrayList<>());
+    for (int i = 0; i < 4; i++) {
+      readers.add(
+          new Thread(
+              () ->
+                  resultSizes.add(
+                      lazyStore.getMessagesInConversation(CONVERSATION_ID_ONE).size())));
+    }
+    for (Thread reader : readers) {
+      reader.start();
+    }
+    loadStarted.await();
+    Thread.sleep(50);
+    finishLoad.countDown();
+    for (Thread reader : readers) {
+      reader.join();
+    }
+
+    Assert.assertEquals(Arrays.asList(2, 2, 2, 2), resultSizes);
+    Mockito.verify(mockPersistentStorageAgent, Mockito.times(1))
+        .loadMessagesInConversation(CONVERSATION_ID_ONE);
+  }
+
+  @Test
+  public void testLazy_deleteAllDeletesStoredMessages() {
+    MessageStore lazyStore = MessageStore.getTestInstance(mockPersistentStorageAgent, 10);
+
+    lazyStore.deleteAllMessages();
+
+    Mockito.verify(mockPersistentStorageAgent).deleteAllStoredMessages();
+  }
+
   private void assertEquals(Message expectedMessage, Message actualMessage) {
     Assert.assertEquals(expectedMessage.getId(), actualMessage.getId());
     Assert.assertEquals(expectedMessage.getConversationId(), actualMessage.getConversationId());
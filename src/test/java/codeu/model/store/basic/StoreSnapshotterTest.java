@@ -0,0 +1,230 @@
+package codeu.model.store.basic;
+
+import codeu.model.data.Conversation;
+import codeu.model.data.Conversation.ConversationType;
+import codeu.model.data.Message;
+import codeu.model.data.Profile;
+import codeu.model.data.User;
+import codeu.model.store.persistence.PersistentDataStoreException;
+import codeu.model.store.persistence.PersistentStorageAgent;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+import org.mockito.stubbing.Stubber;
+
+public class StoreSnapshotterTest {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Path snapshotPath;
+  private PersistentStorageAgent mockPersistentStorageAgent;
+  private UserStore restoredUserStore;
+  private ConversationStore restoredConversationStore;
+  private ProfileStore restoredProfileStore;
+
+  private final UUID CONVERSATION_ID = UUID.randomUUID();
+  private final User USER_ONE =
+      new User(UUID.randomUUID(), "user_one", "hash one", Instant.ofEpochMilli(1000));
+  private final Conversation CONVERSATION =
+      new Conversation(
+          CONVERSATION_ID,
+          USER_ONE.getId(),
+          "group",
+          Instant.ofEpochMilli(2000),
+          Arrays.asList("user_one"),
+          ConversationType.GROUP);
+  private final Message MESSAGE_ONE =
+      new Message(
+          UUID.randomUUID(), CONVERSATION_ID, USER_ONE.getId(), "one", Instant.ofEpochMilli(3000));
+  private final Message MESSAGE_TWO =
+      new Message(
+          UUID.randomUUID(), CONVERSATION_ID, USER_ONE.getId(), "two", Instant.ofEpochMilli(5000));
+
+  @Before
+  public void setup() throws PersistentDataStoreException {
+    snapshotPath = temporaryFolder.getRoot().toPath().resolve("snapshot.bin");
+    mockPersistentStorageAgent = Mockito.mock(PersistentStorageAgent.class);
+    Mockito.when(mockPersistentStorageAgent.loadProfilesUpdatedSince(Mockito.any()))
+        .thenReturn(new HashMap<>());
+  }
+
+  @Test
+  public void testSaveAndRestore() throws Exception {
+    newSnapshotter(MessageStore.getTestInstance(mockPersistentStorageAgent)).save();
+
+    MessageStore restoredMessageStore = MessageStore.getTestInstance(mockPersistentStorageAgent);
+    Assert.assertTrue(newEmptySnapshotter(restoredMessageStore).restore());
+
+    Assert.assertEquals("hash one", restoredUserStore.getUser("user_one").getPasswordHash());
+    Conversation resultConversation = restoredConversationStore.getConversationWithTitle("group");
+    Assert.assertEquals(CONVERSATION_ID, resultConversation.getId());
+    Assert.assertEquals(ConversationType.GROUP, resultConversation.getConversationType());
+    Assert.assertEquals(Arrays.asList("user_one"), resultConversation.getUsers());
+    assertMessages(
+        restoredMessageStore.getMessagesInConversation(CONVERSATION_ID), MESSAGE_ONE, MESSAGE_TWO);
+    Assert.assertEquals("about me", restoredProfileStore.getProfileText("user_one"));
+  }
+
+  @Test
+  public void testRestore_mergesChangesSinceSnapshot() throws Exception {
+    newSnapshotter(MessageStore.getTestInstance(mockPersistentStorageAgent)).save();
+
+    Message laterMessage =
+        new Message(
+            UUID.randomUUID(),
+            CONVERSATION_ID,
+            USER_ONE.getId(),
+            "later",
+            Instant.ofEpochMilli(4000));
+    Conversation changedConversation =
+        new Conversation(
+            CONVERSATION_ID,
+            USER_ONE.getId(),
+            "group",
+            CONVERSATION.getCreationTime(),
+            Arrays.asList("user_one", "user_two"),
+            ConversationType.GROUP);
+    // MESSAGE_TWO was written just before the snapshot, so it's in both
+    answerWith(laterMessage, MESSAGE_TWO)
+        .when(mockPersistentStorageAgent)
+        .loadMessagesCreatedSince(Mockito.any(), Mockito.any());
+    answerWith(changedConversation)
+        .when(mockPersistentStorageAgent)
+        .loadConversationsUpdatedSince(Mockito.any(), Mockito.any());
+
+    MessageStore restoredMessageStore = MessageStore.getTestInstance(mockPersistentStorageAgent);
+    Assert.assertTrue(newEmptySnapshotter(restoredMessageStore).restore());
+
+    assertMessages(
+        restoredMessageStore.getMessagesInConversation(CONVERSATION_ID),
+        MESSAGE_ONE,
+        laterMessage,
+        MESSAGE_TWO);
+    Assert.assertEquals(1, restoredConversationStore.getNumConversations());
+    Assert.assertEquals(
+        Arrays.asList("user_one", "user_two"),
+        restoredConversationStore.getConversationWithTitle("group").getUsers());
+    Assert.assertEquals(1, restoredConversationStore.getConversationsForUser("user_two").size());
+  }
+
+  @Test
+  public void testRestore_noSnapshot() throws Exception {
+    StoreSnapshotter snapshotter =
+        newEmptySnapshotter(MessageStore.getTestInstance(mockPersistentStorageAgent));
+
+    Assert.assertFalse(snapshotter.restore());
+    Mockito.verifyNoMoreInteractions(mockPersistentStorageAgent);
+  }
+
+  @Test
+  public void testRestore_lazySnapshotLoadsMessages() throws Exception {
+    newSnapshotter(MessageStore.getTestInstance(mockPersistentStorageAgent, 10)).save();
+    answerWith(MESSAGE_ONE, MESSAGE_TWO)
+        .when(mockPersistentStorageAgent)
+        .loadMessages(Mockito.<Consumer<Message>>any());
+
+    MessageStore restoredMessageStore = MessageStore.getTestInstance(mockPersistentStorageAgent);
+    Assert.assertTrue(newEmptySnapshotter(restoredMessageStore).restore());
+
+    assertMessages(
+        restoredMessageStore.getMessagesInConversation(CONVERSATION_ID), MESSAGE_ONE, MESSAGE_TWO);
+  }
+
+  @Test
+  public void testRestore_corruptSnapshot() throws Exception {
+    Files.write(snapshotPath, new byte[] {1, 2, 3});
+
+    try {
+      newEmptySnapshotter(MessageStore.getTestInstance(mockPersistentStorageAgent)).restore();
+      Assert.fail("Expected an IOException");
+    } catch (IOException expected) {
+      // the caller falls back to loading from Datastore
+    }
+  }
+
+  @Test
+  public void testDelete() throws Exception {
+    StoreSnapshotter snapshotter =
+        newSnapshotter(MessageStore.getTestInstance(mockPersistentStorageAgent));
+    snapshotter.save();
+    Assert.assertTrue(Files.exists(snapshotPath));
+
+    snapshotter.delete();
+
+    Assert.assertFalse(Files.exists(snapshotPath));
+  }
+
+  /** Returns a StoreSnapshotter over stores holding the test entities. */
+  private StoreSnapshotter newSnapshotter(MessageStore messageStore) {
+    UserStore userStore = UserStore.getTestInstance(mockPersistentStorageAgent);
+    userStore.addUser(USER_ONE);
+    ConversationStore conversationStore =
+        ConversationStore.getTestInstance(mockPersistentStorageAgent);
+    conversationStore.addConversation(CONVERSATION);
+    messageStore.addMessage(MESSAGE_ONE);
+    messageStore.addMessage(MESSAGE_TWO);
+    ProfileStore profileStore = ProfileStore.getTestInstance(mockPersistentStorageAgent);
+    profileStore.addProfile(new Profile(UUID.randomUUID(), "user_one", "about me"));
+    return StoreSnapshotter.getTestInstance(
+        snapshotPath,
+        Duration.ofMinutes(5),
+        mockPersistentStorageAgent,
+        userStore,
+        conversationStore,
+        messageStore,
+        profileStore);
+  }
+
+  /** Returns a StoreSnapshotter over empty stores, which are kept in the restored* fields. */
+  private StoreSnapshotter newEmptySnapshotter(MessageStore messageStore) {
+    Mockito.clearInvocations(mockPersistentStorageAgent);
+    restoredUserStore = UserStore.getTestInstance(mockPersistentStorageAgent);
+    restoredConversationStore = ConversationStore.getTestInstance(mockPersistentStorageAgent);
+    restoredProfileStore = ProfileStore.getTestInstance(mockPersistentStorageAgent);
+    return StoreSnapshotter.getTestInstance(
+        snapshotPath,
+        Duration.ofMinutes(5),
+        mockPersistentStorageAgent,
+        restoredUserStore,
+        restoredConversationStore,
+        messageStore,
+        restoredProfileStore);
+  }
+
+  /** Stubs a load that streams the given values into the consumer passed as its last argument. */
+  @SafeVarargs
+  private static <T> Stubber answerWith(T... values) {
+    return Mockito.doAnswer(
+        invocation -> {
+          Object[] arguments = invocation.getArguments();
+          @SuppressWarnings("unchecked")
+          Consumer<T> consumer = (Consumer<T>) arguments[arguments.length - 1];
+          for (T value : values) {
+            consumer.accept(value);
+          }
+          return null;
+        });
+  }
+
+  private static void assertMessages(List<Message> actual, Message... expected) {
+    Assert.assertEquals(expected.length, actual.size());
+    for (int i = 0; i < expected.length; i++) {
+      Assert.assertEquals(expected[i].getId(), actual.get(i).getId());
+      Assert.assertEquals(expected[i].getContent(), actual.get(i).getContent());
+      Assert.assertEquals(expected[i].getCreationTime(), actual.get(i).getCreationTime());
+    }
+  }
+}
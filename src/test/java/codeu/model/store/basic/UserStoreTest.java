@@ -91,6 +91,31 @@ public class UserStoreTest {
     Mockito.verify(mockPersistentStorageAgent).writeThrough(inputUser);
   }
 
+  @Test
+  public void testAddUserIfNameAvailable() {
+    User inputUser =
+        new User(
+            UUID.randomUUID(),
+            "test_username",
+            "$2a$10$eDhncK/4cNH2KE.Y51AWpeL8/5znNBQLuAFlyJpSYNODR/SJQ/Fg6",
+            Instant.now());
+    User sameNameUser =
+        new User(
+            UUID.randomUUID(),
+            "test_username",
+            "$2a$10$eDhncK/4cNH2KE.Y51AWpeL8/5znNBQLuAFlyJpSYNODR/SJQ/Fg6",
+            Instant.now());
+
+    Assert.assertTrue(userStore.addUserIfNameAvailable(inputUser));
+    Assert.assertFalse(userStore.addUserIfNameAvailable(sameNameUser));
+
+    assertEquals(inputUser, userStore.getUser("test_username"));
+    Assert.assertNull(userStore.getUser(sameNameUser.getId()));
+    Assert.assertEquals(4, userStore.getNumUsers());
+    Mockito.verify(mockPersistentStorageAgent).writeThrough(inputUser);
+    Mockito.verify(mockPersistentStorageAgent, Mockito.never()).writeThrough(sameNameUser);
+  }
+
   @Test
   public void testIsUserRegistered_true() {
     Assert.assertTrue(userStore.isUserRegistered(USER_ONE.getName()));
@@ -101,6 +126,33 @@ public class UserStoreTest {
     Assert.assertFalse(userStore.isUserRegistered("fake username"));
   }
 
+  @Test
+  public void testDeleteAllUsers() {
+    userStore.deleteAllUsers();
+
+    Assert.assertEquals(0, userStore.getNumUsers());
+    Assert.assertNull(userStore.getUser(USER_ONE.getName()));
+    Assert.assertNull(userStore.getUser(USER_ONE.getId()));
+    Assert.assertFalse(userStore.isUserRegistered(USER_ONE.getName()));
+  }
+
+  @Test
+  public void testAddLoadedUser() {
+    User inputUser =
+        new User(
+            UUID.randomUUID(),
+            "test_username",
+            "$2a$10$eDhncK/4cNH2KE.Y51AWpeL8/5znNBQLuAFlyJpSYNODR/SJQ/Fg6",
+            Instant.now());
+
+    userStore.addLoadedUser(inputUser);
+
+    assertEquals(inputUser, userStore.getUser("test_username"));
+    assertEquals(inputUser, userStore.getUser(inputUser.getId()));
+    Assert.assertEquals(4, userStore.getNumUsers());
+    Mockito.verify(mockPersistentStorageAgent, Mockito.never()).writeThrough(inputUser);
+  }
+
   private void assertEquals(User expectedUser, User actualUser) {
     Assert.assertEquals(expectedUser.getId(), actualUser.getId());
     Assert.assertEquals(expectedUser.getName(), actualUser.getName());
@@ -0,0 +1,230 @@
+package codeu.model.store.persistence;
+
+import codeu.model.data.Conversation;
+import codeu.model.data.Conversation.ConversationType;
+import codeu.model.data.Message;
+import codeu.model.data.Profile;
+import codeu.model.data.User;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LogStorageBackendTest {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Path directory;
+  private LogStorageBackend backend;
+
+  @Before
+  public void setup() throws IOException {
+    directory = temporaryFolder.getRoot().toPath();
+    backend = LogStorageBackend.open(directory, LogStorageBackend.DEFAULT_SEGMENT_BYTES, true);
+  }
+
+  @After
+  public void tearDown() {
+    backend.close();
+  }
+
+  @Test
+  public void testSaveAndReplay() throws Exception {
+    User user = new User(UUID.randomUUID(), "user", "hash", Instant.ofEpochMilli(1000));
+    Conversation conversation =
+        new Conversation(
+            UUID.randomUUID(),
+            user.getId(),
+            "group",
+            Instant.ofEpochMilli(2000),
+            new ArrayList<>(Arrays.asList("user")),
+            ConversationType.GROUP);
+    Message messageOne = newMessage(conversation.getId(), 3000);
+    Message messageTwo = newMessage(conversation.getId(), 4000);
+    backend.writeThrough(user);
+    backend.writeThrough(conversation);
+    backend.writeThrough(Arrays.asList(messageOne, messageTwo));
+    backend.writeThrough(new Profile(UUID.randomUUID(), "user", "about me"));
+    backend.addConversationMembers(conversation, Arrays.asList("other"));
+
+    backend.close();
+    backend = LogStorageBackend.open(directory, LogStorageBackend.DEFAULT_SEGMENT_BYTES, true);
+
+    List<User> users = backend.loadUsers();
+    Assert.assertEquals(1, users.size());
+    Assert.assertEquals("hash", users.get(0).getPasswordHash());
+    Assert.assertEquals(user.getCreationTime(), users.get(0).getCreationTime());
+    List<Conversation> conversations = backend.loadConversations();
+    Assert.assertEquals(1, conversations.size());
+    Assert.assertEquals(Arrays.asList("user", "other"), conversations.get(0).getUsers());
+    Assert.assertEquals(ConversationType.GROUP, conversations.get(0).getConversationType());
+    assertMessages(backend.loadMessages(), messageOne, messageTwo);
+    assertMessages(backend.loadMessagesInConversation(conversation.getId()), messageOne, messageTwo);
+    Assert.assertEquals("about me", backend.loadProfiles().get("user"));
+  }
+
+  @Test
+  public void testDeletes() throws Exception {
+    UUID conversationId = UUID.randomUUID();
+    Message messageOne = newMessage(conversationId, 1000);
+    Message messageTwo = newMessage(conversationId, 2000);
+    backend.writeThrough(messageOne);
+    backend.writeThrough(messageTwo);
+
+    Assert.assertEquals(1, backend.deleteAllMessages(Arrays.asList(messageOne)));
+    assertMessages(backend.loadMessagesInConversation(conversationId), messageTwo);
+    Assert.assertEquals(1, backend.deleteAllStoredMessages());
+    Message messageThree = newMessage(conversationId, 3000);
+    backend.writeThrough(messageThree);
+
+    backend.close();
+    backend = LogStorageBackend.open(directory, LogStorageBackend.DEFAULT_SEGMENT_BYTES, true);
+
+    assertMessages(backend.loadMessages(), messageThree);
+    assertMessages(backend.loadMessagesInConversation(conversationId), messageThree);
+  }
+
+  @Test
+  public void testReplay_truncatesTornRecord() throws Exception {
+    Message message = newMessage(UUID.randomUUID(), 1000);
+    backend.writeThrough(message);
+    backend.writeThrough(newMessage(message.getConversationId(), 2000));
+    backend.close();
+
+    Path segment = onlySegment();
+    long size = Files.size(segment);
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+      channel.truncate(size - 3);
+    }
+    backend = LogStorageBackend.open(directory, LogStorageBackend.DEFAULT_SEGMENT_BYTES, true);
+
+    assertMessages(backend.loadMessages(), message);
+    Message later = newMessage(message.getConversationId(), 3000);
+    backend.writeThrough(later);
+    assertMessages(backend.loadMessagesInConversation(message.getConversationId()), message, later);
+  }
+
+  @Test
+  public void testReplay_rejectsCorruptRecordBeforeTail() throws Exception {
+    Message messageOne = newMessage(UUID.randomUUID(), 1000);
+    Message messageTwo = newMessage(messageOne.getConversationId(), 2000);
+    backend.writeThrough(messageOne);
+    backend.writeThrough(messageTwo);
+    backend.close();
+
+    // flip a byte in the first record's payload; the second record is still whole
+    Path segment = onlySegment();
+    long size = Files.size(segment);
+    byte[] bytes = Files.readAllBytes(segment);
+    bytes[10] ^= 0xff;
+    Files.write(segment, bytes);
+    try {
+      LogStorageBackend.open(directory, LogStorageBackend.DEFAULT_SEGMENT_BYTES, true);
+      Assert.fail("Opened a log with a corrupt record");
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage().startsWith("Corrupt record at offset 0"));
+    }
+    Assert.assertEquals(size, Files.size(segment));
+
+    // nothing was truncated, so repairing the byte recovers both records
+    bytes[10] ^= 0xff;
+    Files.write(segment, bytes);
+    backend = LogStorageBackend.open(directory, LogStorageBackend.DEFAULT_SEGMENT_BYTES, true);
+    assertMessages(backend.loadMessages(), messageOne, messageTwo);
+  }
+
+  @Test
+  public void testSegments() throws Exception {
+    backend.close();
+    backend = LogStorageBackend.open(directory, 200, true);
+    UUID conversationId = UUID.randomUUID();
+    List<Message> messages = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      messages.add(newMessage(conversationId, 1000 + i));
+      backend.writeThrough(messages.get(i));
+    }
+
+    try (Stream<Path> files = Files.list(directory)) {
+      Assert.assertTrue(files.count() > 1);
+    }
+    Message[] expected = messages.toArray(new Message[0]);
+    assertMessages(backend.loadMessages(), expected);
+    List<Message> createdSince = new ArrayList<>();
+    backend.loadMessagesCreatedSince(Instant.ofEpochMilli(1010), createdSince::add);
+    assertMessages(createdSince, messages.subList(10, 20).toArray(new Message[0]));
+    backend.close();
+    backend = LogStorageBackend.open(directory, 200, true);
+    assertMessages(backend.loadMessagesInConversation(conversationId), expected);
+  }
+
+  @Test
+  public void testConcurrentWriters() throws Exception {
+    UUID conversationId = UUID.randomUUID();
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> writers = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      Thread writer =
+          new Thread(
+              () -> {
+                try {
+                  start.await();
+                } catch (InterruptedException e) {
+                  return;
+                }
+                for (int j = 0; j < 50; j++) {
+                  backend.writeThrough(newMessage(conversationId, j));
+                }
+              });
+      writer.start();
+      writers.add(writer);
+    }
+    start.countDown();
+    for (Thread writer : writers) {
+      writer.join();
+    }
+
+    Assert.assertEquals(400, backend.loadMessages().size());
+    backend.close();
+    backend = LogStorageBackend.open(directory, LogStorageBackend.DEFAULT_SEGMENT_BYTES, true);
+    Assert.assertEquals(400, backend.loadMessagesInConversation(conversationId).size());
+  }
+
+  private Path onlySegment() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.findFirst().get();
+    }
+  }
+
+  private static Message newMessage(UUID conversationId, long creationMillis) {
+    return new Message(
+        UUID.randomUUID(),
+        conversationId,
+        UUID.randomUUID(),
+        "test content",
+        Instant.ofEpochMilli(creationMillis));
+  }
+
+  private static void assertMessages(List<Message> actual, Message... expected) {
+    Assert.assertEquals(expected.length, actual.size());
+    for (int i = 0; i < expected.length; i++) {
+      Assert.assertEquals(expected[i].getId(), actual.get(i).getId());
+      Assert.assertEquals(expected[i].getConversationId(), actual.get(i).getConversationId());
+      Assert.assertEquals(expected[i].getContent(), actual.get(i).getContent());
+      Assert.assertEquals(expected[i].getCreationTime(), actual.get(i).getCreationTime());
+    }
+  }
+}
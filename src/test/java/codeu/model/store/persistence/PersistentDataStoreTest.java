@@ -4,7 +4,14 @@ import static codeu.model.data.Conversation.ConversationType;
 
 import codeu.model.data.Conversation;
 import codeu.model.data.Message;
+import codeu.model.data.Profile;
 import codeu.model.data.User;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import java.time.Instant;
@@ -114,6 +121,31 @@ public class PersistentDataStoreTest {
     Assert.assertEquals(ConversationType.GROUP, resultConversationTwo.getConversationType());
   }
 
+  @Test
+  public void testAddConversationMembers() throws PersistentDataStoreException {
+    Conversation conversation =
+        new Conversation(
+            UUID.randomUUID(),
+            UUID.randomUUID(),
+            "group_conversation",
+            Instant.ofEpochMilli(1000),
+            new ArrayList<>(Arrays.asList("a")),
+            ConversationType.GROUP);
+    persistentDataStore.writeThrough(conversation);
+
+    persistentDataStore.addConversationMembers(conversation, Arrays.asList("z", "b"));
+    persistentDataStore.addConversationMembers(conversation, Arrays.asList("c"));
+
+    List<Conversation> resultConversations = persistentDataStore.loadConversations();
+    Assert.assertEquals(1, resultConversations.size());
+    Assert.assertEquals(Arrays.asList("a", "z", "b", "c"), resultConversations.get(0).getUsers());
+
+    Assert.assertEquals(1, persistentDataStore.deleteAllConversations(resultConversations));
+    persistentDataStore.writeThrough(conversation);
+    Assert.assertEquals(
+        Arrays.asList("a"), persistentDataStore.loadConversations().get(0).getUsers());
+  }
+
   @Test
   public void testSaveAndLoadMessages() throws PersistentDataStoreException {
     UUID idOne = UUID.fromString("10000000-2222-3333-4444-555555555555");
@@ -154,4 +186,322 @@ public class PersistentDataStoreTest {
     Assert.assertEquals(contentTwo, resultMessageTwo.getContent());
     Assert.assertEquals(creationTwo, resultMessageTwo.getCreationTime());
   }
+
+  @Test
+  public void testDeleteAllMessages() throws PersistentDataStoreException {
+    // more than two full batches, so the last batch is partial
+    List<Message> inputMessages = new ArrayList<>();
+    for (int i = 0; i < 2 * PersistentDataStore.MAX_BATCH_SIZE + 3; i++) {
+      inputMessages.add(
+          new Message(
+              UUID.randomUUID(),
+              UUID.randomUUID(),
+              UUID.randomUUID(),
+              "test content " + i,
+              Instant.ofEpochMilli(i)));
+    }
+    for (int start = 0; start < inputMessages.size(); start += PersistentDataStore.MAX_BATCH_SIZE) {
+      persistentDataStore.writeThrough(
+          inputMessages.subList(
+              start, Math.min(start + PersistentDataStore.MAX_BATCH_SIZE, inputMessages.size())));
+    }
+    Assert.assertEquals(inputMessages.size(), persistentDataStore.loadMessages().size());
+
+    int deleted = persistentDataStore.deleteAllMessages(inputMessages);
+
+    Assert.assertEquals(inputMessages.size(), deleted);
+    Assert.assertTrue(persistentDataStore.loadMessages().isEmpty());
+  }
+
+  @Test
+  public void testDeleteAllUsers_empty() throws PersistentDataStoreException {
+    Assert.assertEquals(0, persistentDataStore.deleteAllUsers(new ArrayList<>()));
+  }
+
+  @Test
+  public void testSaveAndLoadProfiles_upsert() throws PersistentDataStoreException {
+    persistentDataStore.writeThrough(new Profile(UUID.randomUUID(), "test_owner", "first"));
+    persistentDataStore.writeThrough(new Profile(UUID.randomUUID(), "test_owner", "second"));
+
+    Map<String, String> resultProfiles = persistentDataStore.loadProfiles();
+
+    Assert.assertEquals(1, resultProfiles.size());
+    Assert.assertEquals("second", resultProfiles.get("test_owner"));
+  }
+
+  @Test
+  public void testLoadProfiles_migratesLegacyEntities() throws PersistentDataStoreException {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Entity legacyOne = new Entity("user-profiles", UUID.randomUUID().toString());
+    legacyOne.setProperty("uuid", UUID.randomUUID().toString());
+    legacyOne.setProperty("owner_name", "legacy_owner");
+    legacyOne.setProperty("text", "legacy text");
+    datastore.put(legacyOne);
+    Entity legacyTwo = new Entity("user-profiles", UUID.randomUUID().toString());
+    legacyTwo.setProperty("uuid", UUID.randomUUID().toString());
+    legacyTwo.setProperty("owner_name", "updated_owner");
+    legacyTwo.setProperty("text", "stale text");
+    datastore.put(legacyTwo);
+    persistentDataStore.writeThrough(new Profile(UUID.randomUUID(), "updated_owner", "new text"));
+
+    Map<String, String> resultProfiles = persistentDataStore.loadProfiles();
+
+    Assert.assertEquals(2, resultProfiles.size());
+    Assert.assertEquals("legacy text", resultProfiles.get("legacy_owner"));
+    Assert.assertEquals("new text", resultProfiles.get("updated_owner"));
+    // loading doesn't write
+    Assert.assertEquals(3, datastore.prepare(new Query("user-profiles")).countEntities());
+
+    Instant beforeMigration = Instant.now();
+    Assert.assertEquals(1, persistentDataStore.migrateLegacyEntities());
+    Assert.assertEquals(0, persistentDataStore.migrateLegacyEntities());
+
+    // only owner-keyed entities are left, and loading again gives the same result
+    for (Entity entity : datastore.prepare(new Query("user-profiles")).asIterable()) {
+      Assert.assertEquals(entity.getProperty("owner_name"), entity.getKey().getName());
+    }
+    Assert.assertEquals(resultProfiles, persistentDataStore.loadProfiles());
+    Map<String, String> migratedProfiles =
+        persistentDataStore.loadProfilesUpdatedSince(beforeMigration);
+    Assert.assertEquals("legacy text", migratedProfiles.get("legacy_owner"));
+    Assert.assertFalse(migratedProfiles.containsKey("updated_owner"));
+  }
+
+  @Test
+  public void testLoadProfiles_skipsEntitiesWithoutOwner() throws PersistentDataStoreException {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Entity ownerless = new Entity("user-profiles", UUID.randomUUID().toString());
+    ownerless.setProperty("uuid", UUID.randomUUID().toString());
+    ownerless.setProperty("text", "nobody's text");
+    datastore.put(ownerless);
+    persistentDataStore.writeThrough(new Profile(UUID.randomUUID(), "test_owner", "about me"));
+
+    Map<String, String> resultProfiles = persistentDataStore.loadProfiles();
+
+    Assert.assertEquals(1, resultProfiles.size());
+    Assert.assertEquals("about me", resultProfiles.get("test_owner"));
+    Assert.assertEquals(2, datastore.prepare(new Query("user-profiles")).countEntities());
+  }
+
+  @Test
+  public void testLoadMessagesInConversation() throws PersistentDataStoreException {
+    UUID conversationOne = UUID.randomUUID();
+    UUID conversationTwo = UUID.randomUUID();
+    Message laterMessage =
+        new Message(
+            UUID.randomUUID(),
+            conversationOne,
+            UUID.randomUUID(),
+            "later",
+            Instant.ofEpochMilli(2000));
+    Message earlierMessage =
+        new Message(
+            UUID.randomUUID(),
+            conversationOne,
+            UUID.randomUUID(),
+            "earlier",
+            Instant.ofEpochMilli(1000));
+    Message otherMessage =
+        new Message(
+            UUID.randomUUID(),
+            conversationTwo,
+            UUID.randomUUID(),
+            "other",
+            Instant.ofEpochMilli(1500));
+    persistentDataStore.writeThrough(laterMessage);
+    persistentDataStore.writeThrough(earlierMessage);
+    persistentDataStore.writeThrough(otherMessage);
+
+    List<Message> resultMessages = persistentDataStore.loadMessagesInConversation(conversationOne);
+
+    Assert.assertEquals(2, resultMessages.size());
+    Assert.assertEquals(earlierMessage.getId(), resultMessages.get(0).getId());
+    Assert.assertEquals(laterMessage.getId(), resultMessages.get(1).getId());
+    Assert.assertEquals(conversationOne, resultMessages.get(1).getConversationId());
+
+    Assert.assertEquals(3, persistentDataStore.deleteAllStoredMessages());
+    Assert.assertTrue(persistentDataStore.loadMessages().isEmpty());
+  }
+
+  @Test
+  public void testLoadMessages_streamsInOrder() throws PersistentDataStoreException {
+    List<Message> inputMessages = new ArrayList<>();
+    for (int i = 0; i < PersistentDataStore.MAX_BATCH_SIZE + 10; i++) {
+      inputMessages.add(
+          new Message(
+              UUID.randomUUID(),
+              UUID.randomUUID(),
+              UUID.randomUUID(),
+              "test content " + i,
+              Instant.ofEpochMilli(i)));
+    }
+    persistentDataStore.writeThrough(inputMessages.subList(0, PersistentDataStore.MAX_BATCH_SIZE));
+    persistentDataStore.writeThrough(
+        inputMessages.subList(PersistentDataStore.MAX_BATCH_SIZE, inputMessages.size()));
+
+    List<UUID> streamedIds = new ArrayList<>();
+    persistentDataStore.loadMessages(message -> streamedIds.add(message.getId()));
+
+    Assert.assertEquals(inputMessages.size(), streamedIds.size());
+    for (int i = 0; i < inputMessages.size(); i++) {
+      Assert.assertEquals(inputMessages.get(i).getId(), streamedIds.get(i));
+    }
+  }
+
+  @Test
+  public void testLoadMessages_mergesLegacyEntities() throws PersistentDataStoreException {
+    UUID conversationId = UUID.randomUUID();
+    Message newOne = newMessage(conversationId, 1000);
+    Message newTwo = newMessage(conversationId, 3000);
+    persistentDataStore.writeThrough(newOne);
+    persistentDataStore.writeThrough(newTwo);
+    Message legacyMessage = newMessage(conversationId, 2000);
+    putLegacyMessage(legacyMessage);
+
+    List<Message> resultMessages = persistentDataStore.loadMessages();
+    List<Message> resultInConversation =
+        persistentDataStore.loadMessagesInConversation(conversationId);
+
+    for (List<Message> result : Arrays.asList(resultMessages, resultInConversation)) {
+      Assert.assertEquals(3, result.size());
+      Assert.assertEquals(newOne.getId(), result.get(0).getId());
+      Assert.assertEquals(legacyMessage.getId(), result.get(1).getId());
+      Assert.assertEquals(legacyMessage.getAuthorId(), result.get(1).getAuthorId());
+      Assert.assertEquals(legacyMessage.getCreationTime(), result.get(1).getCreationTime());
+      Assert.assertEquals(newTwo.getId(), result.get(2).getId());
+    }
+  }
+
+  @Test
+  public void testMigrateLegacyEntities() throws PersistentDataStoreException {
+    UUID conversationId = UUID.randomUUID();
+    Message legacyMessage = newMessage(conversationId, 2000);
+    putLegacyMessage(legacyMessage);
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Entity legacyConversation = new Entity("chat-conversations", conversationId.toString());
+    legacyConversation.setProperty("uuid", conversationId.toString());
+    legacyConversation.setProperty("owner_uuid", UUID.randomUUID().toString());
+    legacyConversation.setProperty("title", "legacy_conversation");
+    legacyConversation.setProperty("creation_time", Instant.ofEpochMilli(1000).toString());
+    legacyConversation.setProperty("users", Arrays.asList("a", "b"));
+    legacyConversation.setProperty("type", "DIRECT");
+    datastore.put(legacyConversation);
+
+    Assert.assertEquals(2, persistentDataStore.migrateLegacyEntities());
+    Assert.assertEquals(0, persistentDataStore.migrateLegacyEntities());
+
+    for (String kind : Arrays.asList("chat-messages", "chat-conversations")) {
+      for (Entity entity : datastore.prepare(new Query(kind)).asIterable()) {
+        Assert.assertFalse(entity.hasProperty("creation_time"));
+        Assert.assertFalse(entity.hasProperty("uuid"));
+        Assert.assertTrue(entity.hasProperty("creation_micros"));
+      }
+    }
+    Message resultMessage = persistentDataStore.loadMessages().get(0);
+    Assert.assertEquals(legacyMessage.getId(), resultMessage.getId());
+    Assert.assertEquals(conversationId, resultMessage.getConversationId());
+    Assert.assertEquals(legacyMessage.getCreationTime(), resultMessage.getCreationTime());
+    Conversation resultConversation = persistentDataStore.loadConversations().get(0);
+    Assert.assertEquals(conversationId, resultConversation.getId());
+    Assert.assertEquals(Arrays.asList("a", "b"), resultConversation.getUsers());
+  }
+
+  @Test
+  public void testLoadMessages_entityInBothSchemasLoadedOnce()
+      throws PersistentDataStoreException, EntityNotFoundException {
+    UUID conversationId = UUID.randomUUID();
+    Message legacyMessage = newMessage(conversationId, 1000);
+    Message bothMessage = newMessage(conversationId, 2000);
+    Message currentMessage = newMessage(conversationId, 3000);
+    putLegacyMessage(legacyMessage);
+    persistentDataStore.writeThrough(bothMessage);
+    persistentDataStore.writeThrough(currentMessage);
+
+    // as if migration rewrote it after the legacy query had already returned it
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Entity entity =
+        datastore.get(KeyFactory.createKey("chat-messages", bothMessage.getId().toString()));
+    entity.setProperty("creation_time", bothMessage.getCreationTime().toString());
+    datastore.put(entity);
+
+    List<Message> result = persistentDataStore.loadMessages();
+    Assert.assertEquals(3, result.size());
+    Assert.assertEquals(legacyMessage.getId(), result.get(0).getId());
+    Assert.assertEquals(bothMessage.getId(), result.get(1).getId());
+    Assert.assertEquals(currentMessage.getId(), result.get(2).getId());
+  }
+
+  @Test
+  public void testMigrateLegacyEntities_manyTransactions()throws PersistentDataStoreException {
+    UUID conversationId = UUID.randomUUID();
+    int count = PersistentDataStore.MAX_TRANSACTION_GROUPS * 2 + 1;
+    for (int i = 0; i < count; i++) {
+      putLegacyMessage(newMessage(conversationId, 1000 + i));
+    }
+
+    Assert.assertEquals(count, persistentDataStore.migrateLegacyEntities());
+
+    List<Message> result = persistentDataStore.loadMessagesInConversation(conversationId);
+    Assert.assertEquals(count, result.size());
+    for (int i = 0; i < count; i++) {
+      Assert.assertEquals(Instant.ofEpochMilli(1000 + i), result.get(i).getCreationTime());
+    }
+    Assert.assertEquals(0, persistentDataStore.migrateLegacyEntities());
+  }
+
+  @Test
+  public void testLoadChangesSince()throws PersistentDataStoreException {
+    UUID conversationId = UUID.randomUUID();
+    Message oldMessage = newMessage(conversationId, 1000);
+    Message newMessage = newMessage(conversationId, 3000);
+    persistentDataStore.writeThrough(oldMessage);
+    persistentDataStore.writeThrough(newMessage);
+    Conversation conversation =
+        new Conversation(
+            conversationId,
+            UUID.randomUUID(),
+            "group_conversation",
+            Instant.ofEpochMilli(1000),
+            new ArrayList<>(Arrays.asList("a")),
+            ConversationType.GROUP);
+    persistentDataStore.writeThrough(conversation);
+    Instant since = Instant.now();
+
+    List<Message> resultMessages = new ArrayList<>();
+    persistentDataStore.loadMessagesCreatedSince(Instant.ofEpochMilli(2000), resultMessages::add);
+    List<Conversation> resultConversations = new ArrayList<>();
+    persistentDataStore.loadConversationsUpdatedSince(since, resultConversations::add);
+
+    Assert.assertEquals(1, resultMessages.size());
+    Assert.assertEquals(newMessage.getId(), resultMessages.get(0).getId());
+    Assert.assertTrue(resultConversations.isEmpty());
+
+    persistentDataStore.addConversationMembers(conversation, Arrays.asList("b"));
+    persistentDataStore.writeThrough(new Profile(UUID.randomUUID(), "a", "about a"));
+    persistentDataStore.loadConversationsUpdatedSince(since, resultConversations::add);
+
+    Assert.assertEquals(1, resultConversations.size());
+    Assert.assertEquals(Arrays.asList("a", "b"), resultConversations.get(0).getUsers());
+    Assert.assertEquals("about a", persistentDataStore.loadProfilesUpdatedSince(since).get("a"));
+  }
+
+  private Message newMessage(UUID conversationId, long creationMillis) {
+    return new Message(
+        UUID.randomUUID(),
+        conversationId,
+        UUID.randomUUID(),
+        "test content",
+        Instant.ofEpochMilli(creationMillis));
+  }
+
+  /** Saves a Message the way entities were saved before the current schema. */
+  private void putLegacyMessage(Message message) {
+    Entity messageEntity = new Entity("chat-messages", message.getId().toString());
+    messageEntity.setProperty("uuid", message.getId().toString());
+    messageEntity.setProperty("conv_uuid", message.getConversationId().toString());
+    messageEntity.setProperty("author_uuid", message.getAuthorId().toString());
+    messageEntity.setProperty("content", message.getContent());
+    messageEntity.setProperty("creation_time", message.getCreationTime().toString());
+    DatastoreServiceFactory.getDatastoreService().put(messageEntity);
+  }
 }
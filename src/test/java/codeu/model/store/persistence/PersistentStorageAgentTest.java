@@ -4,44 +4,49 @@ import codeu.model.data.Conversation;
 import codeu.model.data.Message;
 import codeu.model.data.User;
 import java.time.Instant;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 /**
- * Contains tests of the PersistentStorageAgent class. Currently that class is just a pass-through
- * to PersistentDataStore, so these tests are pretty trivial. If you modify how
- * PersistentStorageAgent writes to PersistentDataStore, or if you swap out the backend to something
- * other than PersistentDataStore, then modify these tests.
+ * Contains tests of the PersistentStorageAgent class. Currently that class is mostly a pass-through
+ * to its StorageBackend, so these tests are pretty trivial. If you modify how
+ * PersistentStorageAgent writes to its StorageBackend, then modify these tests.
  */
 public class PersistentStorageAgentTest {
 
-  private PersistentDataStore mockPersistentDataStore;
+  private StorageBackend mockStorageBackend;
   private PersistentStorageAgent persistentStorageAgent;
 
   @Before
   public void setup() {
-    mockPersistentDataStore = Mockito.mock(PersistentDataStore.class);
-    persistentStorageAgent = PersistentStorageAgent.getTestInstance(mockPersistentDataStore);
+    mockStorageBackend = Mockito.mock(StorageBackend.class);
+    persistentStorageAgent = PersistentStorageAgent.getTestInstance(mockStorageBackend);
   }
 
   @Test
   public void testLoadUsers() throws PersistentDataStoreException {
     persistentStorageAgent.loadUsers();
-    Mockito.verify(mockPersistentDataStore).loadUsers();
+    Mockito.verify(mockStorageBackend).loadUsers();
   }
 
   @Test
   public void testLoadConversations() throws PersistentDataStoreException {
     persistentStorageAgent.loadConversations();
-    Mockito.verify(mockPersistentDataStore).loadConversations();
+    Mockito.verify(mockStorageBackend).loadConversations();
   }
 
   @Test
   public void testLoadMessages() throws PersistentDataStoreException {
     persistentStorageAgent.loadMessages();
-    Mockito.verify(mockPersistentDataStore).loadMessages();
+    Mockito.verify(mockStorageBackend).loadMessages();
   }
 
   @Test
@@ -53,7 +58,7 @@ public class PersistentStorageAgentTest {
             "$2a$10$5GNCbSPS1sqqM9.hdiE2hexn1w.vnNoR.CaHIztFEhdAD7h82tqX.",
             Instant.now());
     persistentStorageAgent.writeThrough(user);
-    Mockito.verify(mockPersistentDataStore).writeThrough(user);
+    Mockito.verify(mockStorageBackend).writeThrough(user);
   }
 
   @Test
@@ -61,7 +66,7 @@ public class PersistentStorageAgentTest {
     Conversation conversation =
         new Conversation(UUID.randomUUID(), UUID.randomUUID(), "test_conversation", Instant.now());
     persistentStorageAgent.writeThrough(conversation);
-    Mockito.verify(mockPersistentDataStore).writeThrough(conversation);
+    Mockito.verify(mockStorageBackend).writeThrough(conversation);
   }
 
   @Test
@@ -70,6 +75,162 @@ public class PersistentStorageAgentTest {
         new Message(
             UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), "test content", Instant.now());
     persistentStorageAgent.writeThrough(message);
-    Mockito.verify(mockPersistentDataStore).writeThrough(message);
+    Mockito.verify(mockStorageBackend).writeThrough(message);
+  }
+
+  @Test
+  public void testWriteThroughMessage_writeBehindAckAfterFlush() {
+    WriteBehindQueue writeBehindQueue =
+        new WriteBehindQueue(
+            mockStorageBackend, 10, 10, 10, WriteBehindQueue.Durability.ACK_AFTER_FLUSH);
+    writeBehindQueue.start();
+    persistentStorageAgent =
+        PersistentStorageAgent.getTestInstance(mockStorageBackend, writeBehindQueue);
+
+    Message message =
+        new Message(
+            UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), "test content", Instant.now());
+    persistentStorageAgent.writeThrough(message);
+
+    // the write has been acknowledged, so the batch must already have been put
+    ArgumentCaptor<List> batch = ArgumentCaptor.forClass(List.class);
+    Mockito.verify(mockStorageBackend).writeThrough(batch.capture());
+    Assert.assertEquals(1, batch.getValue().size());
+    Assert.assertSame(message, batch.getValue().get(0));
+    Mockito.verify(mockStorageBackend, Mockito.never()).writeThrough(message);
+    Assert.assertEquals(0, writeBehindQueue.getQueueDepth());
+    Assert.assertEquals(1, writeBehindQueue.getFlushedMessages());
+    persistentStorageAgent.close();
+  }
+
+  @Test
+  public void testWriteThroughMessage_writeBehindBatches() {
+    WriteBehindQueue writeBehindQueue =
+        new WriteBehindQueue(
+            mockStorageBackend, 100, 2, 10, WriteBehindQueue.Durability.ACK_AFTER_ENQUEUE);
+    writeBehindQueue.start();
+    persistentStorageAgent =
+        PersistentStorageAgent.getTestInstance(mockStorageBackend, writeBehindQueue);
+
+    for (int i = 0; i < 5; i++) {
+      persistentStorageAgent.writeThrough(
+          new Message(
+              UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), "test content", Instant.now()));
+    }
+    persistentStorageAgent.flush();
+
+    ArgumentCaptor<List> batches = ArgumentCaptor.forClass(List.class);
+    Mockito.verify(mockStorageBackend, Mockito.atLeast(3)).writeThrough(batches.capture());
+    int written = 0;
+    for (List batch : batches.getAllValues()) {
+      Assert.assertTrue(batch.size() <= 2);
+      written += batch.size();
+    }
+    Assert.assertEquals(5, written);
+    persistentStorageAgent.close();
+  }
+
+  @Test
+  public void testWriteBehindQueue_clampsSettings() {
+    WriteBehindQueue oversized =
+        new WriteBehindQueue(
+            mockStorageBackend,
+            100,
+            PersistentDataStore.MAX_BATCH_SIZE * 2,
+            10,
+            WriteBehindQueue.Durability.ACK_AFTER_FLUSH);
+    Assert.assertEquals(PersistentDataStore.MAX_BATCH_SIZE, oversized.getFlushSize());
+
+    WriteBehindQueue undersized =
+        new WriteBehindQueue(
+            mockStorageBackend, 0, 0, 10, WriteBehindQueue.Durability.ACK_AFTER_FLUSH);
+    Assert.assertEquals(1, undersized.getFlushSize());
+    Assert.assertEquals(1, undersized.getCapacity());
+
+    // the clamped queue still writes
+    undersized.start();
+    persistentStorageAgent = PersistentStorageAgent.getTestInstance(mockStorageBackend, undersized);
+    Message message =
+        new Message(
+            UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), "test content", Instant.now());
+    persistentStorageAgent.writeThrough(message);
+    Assert.assertEquals(1, undersized.getFlushedMessages());
+    persistentStorageAgent.close();
+  }
+
+  @Test
+  public void testWriteBehindQueue_closeFailsWritesItCannotFlush() throws Exception {
+    CountDownLatch flushStarted = new CountDownLatch(1);
+    CountDownLatch releaseFlush = new CountDownLatch(1);
+    Mockito.doAnswer(
+            invocation -> {
+              flushStarted.countDown();
+              releaseFlush.await();
+              return null;
+            })
+        .when(mockStorageBackend)
+        .writeThrough(Mockito.anyList());
+    WriteBehindQueue writeBehindQueue =
+        new WriteBehindQueue(
+            mockStorageBackend, 10, 1, 10, WriteBehindQueue.Durability.ACK_AFTER_FLUSH);
+    writeBehindQueue.start();
+
+    // the first write holds up the flusher, so the second stays queued
+    Thread stuckWriter = new Thread(() -> writeBehindQueue.write(newMessage()));
+    stuckWriter.start();
+    Assert.assertTrue(flushStarted.await(5, TimeUnit.SECONDS));
+    AtomicReference<RuntimeException> failure = new AtomicReference<>();
+    Thread queuedWriter =
+        new Thread(
+            () -> {
+              try {
+                writeBehindQueue.write(newMessage());
+              } catch (RuntimeException e) {
+                failure.set(e);
+              }
+            });
+    queuedWriter.start();
+    while (writeBehindQueue.getQueueDepth() == 0) {
+      Thread.sleep(1);
+    }
+
+    writeBehindQueue.close(10);
+
+    queuedWriter.join(5000);
+    Assert.assertFalse(queuedWriter.isAlive());
+    Assert.assertTrue(failure.get() instanceof IllegalStateException);
+    Assert.assertEquals(1, writeBehindQueue.getFailedMessages());
+
+    // once closed, writes go straight to the backend
+    Message message = newMessage();
+    writeBehindQueue.write(message);
+    Mockito.verify(mockStorageBackend).writeThrough(message);
+
+    releaseFlush.countDown();
+    stuckWriter.join(5000);
+    Assert.assertFalse(stuckWriter.isAlive());
+  }
+
+  private static Message newMessage() {
+    return new Message(
+        UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), "test content", Instant.now());
+  }
+
+  @Test
+  public void testWriteThroughMessage_afterClose() {
+    WriteBehindQueue writeBehindQueue =
+        new WriteBehindQueue(
+            mockStorageBackend, 10, 10, 10, WriteBehindQueue.Durability.ACK_AFTER_ENQUEUE);
+    writeBehindQueue.start();
+    persistentStorageAgent =
+        PersistentStorageAgent.getTestInstance(mockStorageBackend, writeBehindQueue);
+    persistentStorageAgent.close();
+
+    Message message =
+        new Message(
+            UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), "test content", Instant.now());
+    persistentStorageAgent.writeThrough(message);
+
+    Mockito.verify(mockStorageBackend).writeThrough(message);
   }
 }